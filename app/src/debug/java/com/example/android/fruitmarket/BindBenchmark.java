@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.ThumbnailCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Counts the objects allocated by binding a catalog row, and checks them against a near-zero
+ * budget. The rows alternate between several fruits, like a list being scrolled.
+ */
+public class BindBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = BindBenchmark.class.getSimpleName();
+
+    /** Name of the benchmark, see the debug BenchmarkService */
+    public static final String NAME = "bind_allocations";
+
+    /** Maximum number of allocations per bind, on average */
+    private static final double ALLOCATION_BUDGET = 0.5;
+
+    /** Number of distinct fruits bound */
+    private static final int FRUIT_COUNT = 16;
+
+    /** Number of untimed binds, so every buffer has grown to its final size */
+    private static final int WARMUP_BINDS = 200;
+
+    /** Number of counted binds */
+    private static final int BINDS = 2000;
+
+    private final Context mContext;
+
+    public BindBenchmark(Context context) {
+        mContext = context;
+    }
+
+    public JSONObject run() throws JSONException {
+        View view = LayoutInflater.from(mContext)
+                .inflate(R.layout.list_item, new FrameLayout(mContext), false);
+        FruitCursorAdapter.FruitViewHolder holder = new FruitCursorAdapter.FruitViewHolder(view);
+        ThumbnailCache thumbnailCache = ThumbnailCache.getInstance(mContext);
+        List<FruitItem> items = createItems();
+
+        for (int i = 0; i < WARMUP_BINDS; i++) {
+            holder.bind(items.get(i % FRUIT_COUNT), thumbnailCache);
+        }
+
+        // Only the allocations of this thread are counted
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < BINDS; i++) {
+            holder.bind(items.get(i % FRUIT_COUNT), thumbnailCache);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        double perBind = (double) allocations / BINDS;
+        boolean withinBudget = perBind <= ALLOCATION_BUDGET;
+        if (!withinBudget) {
+            Log.e(LOG_TAG, "Binding a row allocates " + perBind + " objects, over the budget of "
+                    + ALLOCATION_BUDGET);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("benchmark", NAME);
+        result.put("binds", BINDS);
+        result.put("allocations_per_bind", perBind);
+        result.put("budget", ALLOCATION_BUDGET);
+        result.put("within_budget", withinBudget);
+        return result;
+    }
+
+    /**
+     * Create fruits with values of every length, and no thumbnail.
+     */
+    private static List<FruitItem> createItems() {
+        String[] columns = {
+                FruitEntry._ID,
+                FruitEntry.COLUMN_FRUIT_NAME,
+                FruitEntry.COLUMN_FRUIT_SUPPLIER,
+                FruitEntry.COLUMN_FRUIT_PRICE,
+                FruitEntry.COLUMN_FRUIT_QUANTITY,
+                FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+                FruitEntry.COLUMN_FRUIT_TOTAL,
+                FruitEntry.COLUMN_FRUIT_PICTURE_VERSION,
+                FruitEntry.COLUMN_FRUIT_THUMBNAIL};
+        MatrixCursor cursor = new MatrixCursor(columns, FRUIT_COUNT);
+        for (int i = 0; i < FRUIT_COUNT; i++) {
+            int quantity = (int) Math.pow(10, i % 7);
+            cursor.addRow(new Object[] { i + 1, "Fruit " + i, "Supplier " + i, 25L * i,
+                    quantity, i, 25L * i * i, 0, null });
+        }
+        try {
+            return FruitItem.readAll(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.fruitmarket.data.ImageCodec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the size of the encoded pictures, and the time spent encoding and decoding them,
+ * once per {@link ImageCodec} and quality.
+ *
+ * The pictures are real product photos: the ones pushed to the codec_corpus directory inside
+ * the external files directory of the app, along with the pictures already stored by the app.
+ * Each one is prepared the way the editor does, at the size it's stored at, before being
+ * encoded.
+ */
+public class ImageCodecBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ImageCodecBenchmark.class.getSimpleName();
+
+    /** Name of the benchmark, see the debug BenchmarkService */
+    public static final String NAME = "image_codecs";
+
+    /** Name of the directory holding the product photos */
+    private static final String CORPUS_DIR = "codec_corpus";
+
+    /** Name of the directory holding the pictures stored by the app, see PictureStore */
+    private static final String PICTURES_DIR = "pictures";
+
+    /** Qualities measured for the lossy codecs, PNG is lossless and measured once */
+    private static final int[] QUALITIES = { 60, 75, 85, 95 };
+
+    /** Number of timed encodes and decodes per picture */
+    private static final int ROUNDS = 5;
+
+    private final Context mContext;
+
+    public ImageCodecBenchmark(Context context) {
+        mContext = context;
+    }
+
+    public JSONObject run() throws JSONException {
+        List<Bitmap> pictures = loadCorpus();
+
+        JSONArray codecs = new JSONArray();
+        try {
+            if (!pictures.isEmpty()) {
+                for (ImageCodec codec : ImageCodec.CODECS) {
+                    if (codec == ImageCodec.PNG) {
+                        codecs.put(run(codec, 0, pictures));
+                        continue;
+                    }
+                    for (int quality : QUALITIES) {
+                        codecs.put(run(codec, quality, pictures));
+                    }
+                }
+            }
+        } finally {
+            for (Bitmap picture : pictures) {
+                picture.recycle();
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("benchmark", NAME);
+        result.put("pictures", pictures.size());
+        result.put("rounds", ROUNDS);
+        result.put("default_codec", ImageCodec.getDefault().getName());
+        result.put("default_quality", BuildConfig.PICTURE_QUALITY);
+        result.put("codecs", codecs);
+        return result;
+    }
+
+    private JSONObject run(ImageCodec codec, int quality, List<Bitmap> pictures)
+            throws JSONException {
+        long bytes = 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (Bitmap picture : pictures) {
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                byte[] encoded = codec.encode(picture, quality);
+                long encodedAt = System.nanoTime();
+                Bitmap decoded = ImageCodec.decode(encoded);
+                decodeNanos += System.nanoTime() - encodedAt;
+                encodeNanos += encodedAt - start;
+
+                if (decoded != null) {
+                    decoded.recycle();
+                }
+                if (round == 0) {
+                    bytes += encoded.length;
+                }
+            }
+        }
+
+        int count = pictures.size();
+        JSONObject result = new JSONObject();
+        result.put("codec", codec.getName());
+        result.put("quality", quality);
+        result.put("total_bytes", bytes);
+        result.put("mean_bytes", bytes / count);
+        result.put("mean_encode_ms", encodeNanos / 1e6 / (count * ROUNDS));
+        result.put("mean_decode_ms", decodeNanos / 1e6 / (count * ROUNDS));
+        return result;
+    }
+
+    /**
+     * Decode every picture of the corpus at the size the app stores them at.
+     */
+    private List<Bitmap> loadCorpus() {
+        List<File> files = new ArrayList<File>();
+        addFiles(files, mContext.getExternalFilesDir(CORPUS_DIR));
+        addFiles(files, new File(mContext.getFilesDir(), PICTURES_DIR));
+        if (files.isEmpty()) {
+            Log.e(LOG_TAG, "No pictures to encode, push some photos to "
+                    + mContext.getExternalFilesDir(CORPUS_DIR));
+        }
+
+        ImageImporter importer = new ImageImporter(mContext.getContentResolver());
+        List<Bitmap> pictures = new ArrayList<Bitmap>(files.size());
+        for (File file : files) {
+            try {
+                pictures.add(importer.decode(Uri.fromFile(file)));
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Skipping unreadable picture " + file, e);
+            }
+        }
+        return pictures;
+    }
+
+    private static void addFiles(List<File> files, File directory) {
+        File[] children = directory == null ? null : directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            // The picture store keeps its temporary files next to the pictures
+            if (child.isFile() && !child.getName().endsWith(".tmp")) {
+                files.add(child);
+            }
+        }
+    }
+}
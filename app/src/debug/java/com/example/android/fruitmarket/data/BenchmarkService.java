@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import com.example.android.fruitmarket.BindBenchmark;
+import com.example.android.fruitmarket.ImageCodecBenchmark;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs the on-device benchmarks of the data layer, only in debug builds. Start it with:
+ *
+ * <pre>
+ * adb shell am startservice -n com.example.android.fruitmarket/.data.BenchmarkService \
+ *         --es benchmark storage_profiles
+ * </pre>
+ *
+ * The available benchmarks are storage_profiles ({@link StorageProfileBenchmark}),
+ * statement_cache ({@link StatementCacheBenchmark}), bind_allocations ({@link BindBenchmark}),
+ * image_codecs ({@link ImageCodecBenchmark}) and fruit_mapping ({@link FruitMappingBenchmark}).
+ *
+ * The service requires the DUMP permission, which adb shell has and no app can be given, so
+ * nothing else on the device can make it run against the user's data.
+ *
+ * The results are logged, and written as JSON to benchmarks/&lt;benchmark&gt;.json inside the
+ * external files directory of the app (or the internal one, if there's no external storage).
+ * The file only shows up once complete, so it can be waited for.
+ */
+public class BenchmarkService extends IntentService {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = BenchmarkService.class.getSimpleName();
+
+    /** Name of the benchmark to run */
+    public static final String EXTRA_BENCHMARK = "benchmark";
+
+    /** Name of the directory holding the results */
+    private static final String RESULTS_DIR = "benchmarks";
+
+    public BenchmarkService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String benchmark = intent == null ? null : intent.getStringExtra(EXTRA_BENCHMARK);
+        try {
+            JSONObject result;
+            if (StorageProfileBenchmark.NAME.equals(benchmark)) {
+                result = new StorageProfileBenchmark(this).run();
+            } else if (StatementCacheBenchmark.NAME.equals(benchmark)) {
+                result = new StatementCacheBenchmark(this).run();
+            } else if (BindBenchmark.NAME.equals(benchmark)) {
+                result = new BindBenchmark(this).run();
+            } else if (ImageCodecBenchmark.NAME.equals(benchmark)) {
+                result = new ImageCodecBenchmark(this).run();
+            } else if (FruitMappingBenchmark.NAME.equals(benchmark)) {
+                result = new FruitMappingBenchmark(this).run();
+            } else {
+                Log.e(LOG_TAG, "Unknown benchmark " + benchmark);
+                return;
+            }
+            Log.i(LOG_TAG, result.toString(2));
+            writeResult(benchmark, result);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to report benchmark " + benchmark, e);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write benchmark " + benchmark, e);
+        }
+    }
+
+    private void writeResult(String benchmark, JSONObject result) throws IOException {
+        File root = getExternalFilesDir(null);
+        File directory = new File(root != null ? root : getFilesDir(), RESULTS_DIR);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        File file = new File(directory, benchmark + ".json");
+        File partial = new File(directory, benchmark + ".json.tmp");
+        OutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(result.toString(2).getBytes("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+        if (!partial.renameTo(file)) {
+            throw new IOException("Failed to write " + file);
+        }
+        Log.i(LOG_TAG, "Results written to " + file);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Debug;
+
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts the objects allocated, and the time taken, to read a fruit out of a cursor and to
+ * write one: by column name with boxed values and through {@link ContentValues}, as the screens
+ * used to, and through a {@link Fruit.Mapper} and primitive binds, like {@link FruitWriter}'s
+ * typed path in {@link FruitProvider}.
+ *
+ * It works on a database of its own, straight through {@link FruitDbHelper} rather than a
+ * provider, so the app fruits and their observers are left alone.
+ */
+class FruitMappingBenchmark {
+
+    /** Name of the benchmark, see {@link BenchmarkService} */
+    static final String NAME = "fruit_mapping";
+
+    /** Number of fruits in the benchmark database, each one read per pass */
+    private static final int FRUIT_COUNT = 200;
+
+    /** Number of untimed passes over the cursor before each measure */
+    private static final int WARMUP_PASSES = 5;
+
+    /** Number of counted passes over the cursor */
+    private static final int PASSES = 50;
+
+    /** Number of untimed writes before each measure */
+    private static final int WARMUP_WRITES = 200;
+
+    /** Number of counted writes */
+    private static final int WRITES = 2000;
+
+    private static final String DATABASE_NAME = "benchmark_mapping.db";
+
+    /** Update of the typed path, as made by the provider */
+    private static final String SQL_UPDATE_FRUIT = "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+            + FruitEntry.COLUMN_FRUIT_NAME + "=?," + FruitEntry.COLUMN_FRUIT_SUPPLIER + "=?,"
+            + FruitEntry.COLUMN_FRUIT_PRICE + "=?," + FruitEntry.COLUMN_FRUIT_QUANTITY + "=? WHERE "
+            + FruitEntry._ID + "=?";
+
+    private static final String ID_SELECTION = FruitEntry._ID + "=?";
+
+    /** Columns read by the fruit screen */
+    private static final String[] PROJECTION = {
+            FruitEntry._ID,
+            FruitEntry.COLUMN_FRUIT_NAME,
+            FruitEntry.COLUMN_FRUIT_PRICE,
+            FruitEntry.COLUMN_FRUIT_QUANTITY,
+            FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+            FruitEntry.COLUMN_FRUIT_TOTAL,
+            FruitEntry.COLUMN_FRUIT_SUPPLIER };
+
+    private final Context mContext;
+
+    /** Sum of what was read, so the reads can't be optimized away */
+    private double mChecksum;
+
+    FruitMappingBenchmark(Context context) {
+        mContext = context;
+    }
+
+    JSONObject run() throws JSONException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        FruitDbHelper dbHelper = new FruitDbHelper(mContext, DATABASE_NAME,
+                StorageProfile.forName(BuildConfig.STORAGE_PROFILE));
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            long[] ids = new long[FRUIT_COUNT];
+            for (int i = 0; i < FRUIT_COUNT; i++) {
+                ContentValues values = new ContentValues();
+                values.put(FruitEntry.COLUMN_FRUIT_NAME, "Fruit " + i);
+                values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, "Supplier " + i % 10);
+                values.put(FruitEntry.COLUMN_FRUIT_PRICE, 25L * i);
+                values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, i);
+                ids[i] = db.insert(FruitEntry.TABLE_NAME, null, values);
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("benchmark", NAME);
+            result.put("rows_read", FRUIT_COUNT * PASSES);
+            result.put("writes", WRITES);
+
+            Cursor cursor = db.query(FruitEntry.TABLE_NAME, PROJECTION, null, null, null, null,
+                    null);
+            try {
+                // Fill the cursor window once, so only the reads themselves are measured
+                cursor.moveToLast();
+                putPerCall(result, "read_by_name", FRUIT_COUNT * PASSES,
+                        measureReads(cursor, false));
+                putPerCall(result, "read_mapper", FRUIT_COUNT * PASSES,
+                        measureReads(cursor, true));
+            } finally {
+                cursor.close();
+            }
+
+            putPerCall(result, "write_content_values", WRITES,
+                    measureWrites(dbHelper, ids, false));
+            putPerCall(result, "write_typed", WRITES, measureWrites(dbHelper, ids, true));
+            result.put("checksum", mChecksum);
+            return result;
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Read every row of the cursor, pass after pass. Return the allocations and nanoseconds
+     * taken by the counted passes.
+     */
+    private long[] measureReads(Cursor cursor, boolean mapper) {
+        for (int i = 0; i < WARMUP_PASSES; i++) {
+            readAll(cursor, mapper);
+        }
+
+        // Only the allocations of this thread are counted
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            readAll(cursor, mapper);
+        }
+        long nanos = System.nanoTime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        return new long[] { allocations, nanos };
+    }
+
+    private void readAll(Cursor cursor, boolean mapper) {
+        cursor.moveToPosition(-1);
+        if (mapper) {
+            Fruit.Mapper fruits = new Fruit.Mapper(cursor);
+            while (cursor.moveToNext()) {
+                Fruit fruit = fruits.read();
+                mChecksum += fruit.price + fruit.quantity + fruit.total;
+            }
+            return;
+        }
+
+        // What the fruit screen did before, per row
+        while (cursor.moveToNext()) {
+            String name = cursor.getString(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_NAME));
+            String supplier = cursor.getString(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_SUPPLIER));
+            Long price = cursor.getLong(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_PRICE));
+            Integer quantity = cursor.getInt(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_QUANTITY));
+            Integer quantityOrdered = cursor.getInt(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED));
+            Long total = cursor.getLong(cursor.getColumnIndex(
+                    FruitEntry.COLUMN_FRUIT_TOTAL));
+            mChecksum += price + quantity + quantityOrdered + total + name.length()
+                    + supplier.length();
+        }
+    }
+
+    /**
+     * Update the name, supplier, price and quantity of the fruits, one after another. Return the
+     * allocations and nanoseconds taken by the counted writes.
+     */
+    private static long[] measureWrites(FruitDbHelper dbHelper, long[] ids, boolean typed) {
+        // The names, suppliers and IDs are made beforehand, like the editor has them already
+        String[] names = new String[ids.length];
+        String[] suppliers = new String[ids.length];
+        String[][] idArgs = new String[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = "Fruit " + ids[i];
+            suppliers[i] = "Supplier " + i % 10;
+            idArgs[i] = new String[] { String.valueOf(ids[i]) };
+        }
+
+        for (int i = -WARMUP_WRITES; i < 0; i++) {
+            write(dbHelper, ids, idArgs, names, suppliers, i + WARMUP_WRITES, typed);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            write(dbHelper, ids, idArgs, names, suppliers, i, typed);
+        }
+        long nanos = System.nanoTime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        return new long[] { allocations, nanos };
+    }
+
+    private static void write(FruitDbHelper dbHelper, long[] ids, String[][] idArgs,
+                              String[] names, String[] suppliers, int i, boolean typed) {
+        int index = i % ids.length;
+        long price = 50 + (i & 0xff);
+        int quantity = i & 0x3ff;
+        if (typed) {
+            Fruit fruit = new Fruit(names[index], suppliers[index], price, quantity);
+            SQLiteStatement statement = dbHelper.acquireStatement(SQL_UPDATE_FRUIT);
+            try {
+                statement.bindString(1, fruit.name);
+                statement.bindString(2, fruit.supplier);
+                statement.bindLong(3, fruit.price);
+                statement.bindLong(4, fruit.quantity);
+                statement.bindLong(5, ids[index]);
+                statement.executeUpdateDelete();
+            } finally {
+                dbHelper.releaseStatement(statement);
+            }
+            return;
+        }
+
+        // What the editor did before
+        ContentValues values = new ContentValues();
+        values.put(FruitEntry.COLUMN_FRUIT_NAME, names[index]);
+        values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, suppliers[index]);
+        values.put(FruitEntry.COLUMN_FRUIT_PRICE, price);
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, quantity);
+        dbHelper.getWritableDatabase().update(FruitEntry.TABLE_NAME, values, ID_SELECTION,
+                idArgs[index]);
+    }
+
+    /**
+     * Put the allocations and microseconds per call of a measure, as name_allocations and
+     * name_us.
+     */
+    private static void putPerCall(JSONObject result, String name, int calls, long[] measure)
+            throws JSONException {
+        result.put(name + "_allocations", (double) measure[0] / calls);
+        result.put(name + "_us", measure[1] / 1e3 / calls);
+    }
+}
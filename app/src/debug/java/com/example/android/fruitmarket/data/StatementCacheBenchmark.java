@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures the cost per call of the by-ID update and lookup of {@link FruitProvider}, through
+ * the generic {@link SQLiteDatabase} methods and through the cached statement and SQL.
+ */
+class StatementCacheBenchmark {
+
+    /** Name of the benchmark, see {@link BenchmarkService} */
+    static final String NAME = "statement_cache";
+
+    /** Number of fruits in the benchmark database */
+    private static final int FRUIT_COUNT = 500;
+
+    /** Number of untimed calls before each measure */
+    private static final int WARMUP_CALLS = 500;
+
+    /** Number of timed calls per measure */
+    private static final int CALLS = 5000;
+
+    private static final String DATABASE_NAME = "benchmark_statements.db";
+
+    private static final String[] PROJECTION = {
+            FruitEntry._ID,
+            FruitEntry.COLUMN_FRUIT_NAME,
+            FruitEntry.COLUMN_FRUIT_PRICE,
+            FruitEntry.COLUMN_FRUIT_QUANTITY };
+
+    private final Context mContext;
+
+    StatementCacheBenchmark(Context context) {
+        mContext = context;
+    }
+
+    JSONObject run() throws JSONException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        FruitDbHelper dbHelper = new FruitDbHelper(mContext, DATABASE_NAME,
+                StorageProfile.forName(BuildConfig.STORAGE_PROFILE));
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            seed(db);
+
+            JSONObject result = new JSONObject();
+            result.put("benchmark", NAME);
+            result.put("calls", CALLS);
+            result.put("update_generic_us", micros(timeGenericUpdates(db)));
+            result.put("update_cached_us", micros(timeCachedUpdates(dbHelper)));
+            result.put("lookup_generic_us", micros(timeGenericLookups(db)));
+            result.put("lookup_cached_us", micros(timeCachedLookups(db)));
+            return result;
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /** What the provider did before: {@link SQLiteDatabase#update} with an "_id=?" selection */
+    private static long timeGenericUpdates(SQLiteDatabase db) {
+        long start = 0;
+        for (int i = -WARMUP_CALLS; i < CALLS; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            ContentValues values = new ContentValues();
+            values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, i & 0xff);
+            db.update(FruitEntry.TABLE_NAME, values, FruitEntry._ID + "=?",
+                    new String[] { String.valueOf(1 + (i & 0xffff) % FRUIT_COUNT) });
+        }
+        return (System.nanoTime() - start) / CALLS;
+    }
+
+    /** What the provider does now: a statement cached in the helper, with bound arguments */
+    private static long timeCachedUpdates(FruitDbHelper dbHelper) {
+        String sql = "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + "=? WHERE " + FruitEntry._ID + "=?";
+        long start = 0;
+        for (int i = -WARMUP_CALLS; i < CALLS; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            SQLiteStatement statement = dbHelper.acquireStatement(sql);
+            try {
+                statement.bindLong(1, i & 0xff);
+                statement.bindLong(2, 1 + (i & 0xffff) % FRUIT_COUNT);
+                statement.executeUpdateDelete();
+            } finally {
+                dbHelper.releaseStatement(statement);
+            }
+        }
+        return (System.nanoTime() - start) / CALLS;
+    }
+
+    /** What the provider did before: {@link SQLiteDatabase#query} with an "_id=?" selection */
+    private static long timeGenericLookups(SQLiteDatabase db) {
+        long start = 0;
+        for (int i = -WARMUP_CALLS; i < CALLS; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            Cursor cursor = db.query(FruitEntry.TABLE_NAME, PROJECTION, FruitEntry._ID + "=?",
+                    new String[] { String.valueOf(1 + (i & 0xffff) % FRUIT_COUNT) },
+                    null, null, null);
+            readAndClose(cursor);
+        }
+        return (System.nanoTime() - start) / CALLS;
+    }
+
+    /** What the provider does now: the SQL built once per projection, through a raw query */
+    private static long timeCachedLookups(SQLiteDatabase db) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, FruitEntry.TABLE_NAME, PROJECTION,
+                FruitEntry._ID + "=?", null, null, null, null);
+        long start = 0;
+        for (int i = -WARMUP_CALLS; i < CALLS; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            Cursor cursor = db.rawQuery(sql,
+                    new String[] { String.valueOf(1 + (i & 0xffff) % FRUIT_COUNT) });
+            readAndClose(cursor);
+        }
+        return (System.nanoTime() - start) / CALLS;
+    }
+
+    private static void readAndClose(Cursor cursor) {
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void seed(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < FRUIT_COUNT; i++) {
+                values.put(FruitEntry.COLUMN_FRUIT_NAME, "Fruit " + i);
+                values.put(FruitEntry.COLUMN_FRUIT_PRICE, 150L);
+                values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, 100);
+                db.insert(FruitEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+}
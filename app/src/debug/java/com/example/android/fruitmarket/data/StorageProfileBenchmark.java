@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the latency of catalog page reads while another thread keeps ordering fruits, once
+ * per {@link StorageProfile}. Every profile gets its own throwaway database.
+ */
+class StorageProfileBenchmark {
+
+    /** Name of the benchmark, see {@link BenchmarkService} */
+    static final String NAME = "storage_profiles";
+
+    /** Number of fruits in the benchmark database */
+    private static final int FRUIT_COUNT = 2000;
+
+    /** Number of timed page reads per profile */
+    private static final int READ_COUNT = 300;
+
+    /** Number of fruits per page read, the same as the catalog */
+    private static final int PAGE_SIZE = 100;
+
+    /** Orders one unit of a fruit, like {@link FruitProvider} does */
+    private static final String SQL_ORDER = "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY + " = " + FruitEntry.COLUMN_FRUIT_QUANTITY + " - 1, "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " = "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " + 1 WHERE " + FruitEntry._ID + " = ?";
+
+    private final Context mContext;
+
+    StorageProfileBenchmark(Context context) {
+        mContext = context;
+    }
+
+    JSONObject run() throws JSONException {
+        JSONArray profiles = new JSONArray();
+        for (StorageProfile profile : StorageProfile.PROFILES) {
+            profiles.put(run(profile));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("benchmark", NAME);
+        result.put("fruits", FRUIT_COUNT);
+        result.put("reads", READ_COUNT);
+        result.put("profiles", profiles);
+        return result;
+    }
+
+    private JSONObject run(StorageProfile profile) throws JSONException {
+        String name = "benchmark_" + profile.getName() + ".db";
+        mContext.deleteDatabase(name);
+        FruitDbHelper dbHelper = new FruitDbHelper(mContext, name, profile);
+        try {
+            final SQLiteDatabase db = dbHelper.getWritableDatabase();
+            seed(db);
+
+            // Keep ordering random fruits, one transaction per order, while the reads run
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final int[] writes = new int[1];
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteStatement order = db.compileStatement(SQL_ORDER);
+                    Random random = new Random(42);
+                    while (running.get()) {
+                        db.beginTransaction();
+                        try {
+                            order.bindLong(1, 1 + random.nextInt(FRUIT_COUNT));
+                            order.executeUpdateDelete();
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                        writes[0]++;
+                    }
+                    order.close();
+                }
+            }, "benchmark-writer");
+            writer.start();
+
+            long[] latencies = new long[READ_COUNT];
+            Random random = new Random(7);
+            for (int i = 0; i < READ_COUNT; i++) {
+                String after = String.format("Fruit %05d", random.nextInt(FRUIT_COUNT));
+                long start = System.nanoTime();
+                Cursor cursor = db.query(FruitEntry.TABLE_NAME, null,
+                        FruitEntry.COLUMN_FRUIT_NAME + " > ?", new String[] { after },
+                        null, null, FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry._ID,
+                        String.valueOf(PAGE_SIZE));
+                try {
+                    // Fill the whole window, like a loader does
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            running.set(false);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            Arrays.sort(latencies);
+            JSONObject result = new JSONObject();
+            result.put("profile", profile.getName());
+            result.put("p50_ms", millis(percentile(latencies, 50)));
+            result.put("p95_ms", millis(percentile(latencies, 95)));
+            result.put("p99_ms", millis(percentile(latencies, 99)));
+            result.put("max_ms", millis(latencies[latencies.length - 1]));
+            result.put("writes", writes[0]);
+            return result;
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    private static void seed(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < FRUIT_COUNT; i++) {
+                values.put(FruitEntry.COLUMN_FRUIT_NAME, String.format("Fruit %05d", i));
+                values.put(FruitEntry.COLUMN_FRUIT_PRICE, 150L);
+                values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, Integer.MAX_VALUE / 2);
+                values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, "Supplier " + (i % 20));
+                db.insert(FruitEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the given percentile of the sorted latencies, by the nearest rank method.
+     */
+    static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
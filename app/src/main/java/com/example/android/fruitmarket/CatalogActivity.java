@@ -6,7 +6,6 @@ package com.example.android.fruitmarket;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
@@ -14,28 +13,75 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.ThumbnailCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 //import android.content.ContentValues;
 
 public class CatalogActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, FruitCursorAdapter.OnFruitClickListener {
 
-    /** Identifier for the fruit data loader */
+    /** Identifier for the fruit data loader of the first page, next pages follow it */
     private static final int FRUIT_LOADER = 0;
 
-    /** Adapter for the ListView */
+    /** Identifier for the fruit search loader */
+    private static final int SEARCH_LOADER = -1;
+
+    /** Maximum number of fruits shown as search results */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Loader argument with the text to search */
+    private static final String ARG_SEARCH_QUERY = "query";
+
+    /** Number of fruits fetched by every page of the list */
+    private static final int PAGE_SIZE = 100;
+
+    /** The next page is fetched once the list is scrolled this close to its end */
+    private static final int PAGE_PREFETCH_DISTANCE = 25;
+
+    /** Loader argument with the key of the last fruit of the previous page */
+    private static final String ARG_PAGE_AFTER = "after";
+
+    /** Loader argument with the key of the last fruit of the page, if it is a closed page */
+    private static final String ARG_PAGE_UNTIL = "until";
+
+    /** Saved state key of the loader arguments of the pages */
+    private static final String STATE_PAGES = "pages";
+
+    /** Saved state key of the text being searched */
+    private static final String STATE_SEARCH_QUERY = "searchQuery";
+
+    /** Adapter for the RecyclerView */
     private FruitCursorAdapter mCursorAdapter;
 
+    /** Shown instead of the list while it has no fruits */
+    private View mEmptyView;
+
+    /** Loader arguments of every page of the list, in list order */
+    private ArrayList<Bundle> mPageArgs = new ArrayList<Bundle>();
+
+    /** Loaded cursor of every page of the list, in list order (null while it's loading) */
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+
+    /** Text being searched, or null if the list shows the pages of every fruit */
+    private String mSearchQuery;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -51,42 +97,149 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the fruit data
-        ListView fruitListView = (ListView) findViewById(R.id.list);
-
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        fruitListView.setEmptyView(emptyView);
+        // Find the RecyclerView which will be populated with the fruit data
+        RecyclerView fruitListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        fruitListView.setLayoutManager(layoutManager);
+        fruitListView.addItemDecoration(
+                new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
 
-        // Setup an Adapter to create a list item for each row of fruit data in the Cursor.
-        // There is no fruit data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new FruitCursorAdapter(this, null);
+        // Setup an Adapter to create a list item for each row of fruit data.
+        // There is no fruit data yet (until the loader finishes).
+        mCursorAdapter = new FruitCursorAdapter(this, this);
         fruitListView.setAdapter(mCursorAdapter);
 
-        // Setup the item click listener
-        fruitListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Show the empty view only while the list has 0 items
+        mEmptyView = findViewById(R.id.empty_view);
+        mCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                // Create new intent to go to {@link EditorActivity}
-                Intent intent = new Intent(CatalogActivity.this, FruitActivity.class);
+            public void onChanged() {
+                updateEmptyView();
+            }
 
-                // Form the content URI that represents the specific fruit that was clicked on,
-                // by appending the "id" (passed as input to this method) onto the
-                // {@link FruitEntry#CONTENT_URI}.
-                // For example, the URI would be "content://com.example.android.fruits/fruits/2"
-                // if the fruit with ID 2 was clicked on.
-                Uri currentfruitUri = ContentUris.withAppendedId(FruitEntry.CONTENT_URI, id);
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
 
-                // Set the URI on the data field of the intent
-                intent.setData(currentfruitUri);
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
 
-                // Launch the {@link EditorActivity} to display the data for the current fruit.
-                startActivity(intent);
+        // Fetch the next page when the user gets close to the end of the list
+        fruitListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= mCursorAdapter.getItemCount() - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
             }
         });
 
-        // Kick off the loader
-        getLoaderManager().initLoader(FRUIT_LOADER, null, this);
+        // Kick off the loaders, one per page that was already fetched (only the first one
+        // unless the activity is being recreated)
+        if (savedInstanceState != null) {
+            ArrayList<Bundle> pageArgs = savedInstanceState.getParcelableArrayList(STATE_PAGES);
+            if (pageArgs != null) {
+                mPageArgs = pageArgs;
+            }
+        }
+        if (mPageArgs.isEmpty()) {
+            mPageArgs.add(new Bundle());
+        }
+        for (int page = 0; page < mPageArgs.size(); page++) {
+            mPages.add(null);
+            getLoaderManager().initLoader(FRUIT_LOADER + page, mPageArgs.get(page), this);
+        }
+
+        // Keep showing the results of the text that was being searched
+        if (savedInstanceState != null) {
+            mSearchQuery = savedInstanceState.getString(STATE_SEARCH_QUERY);
+            if (mSearchQuery != null) {
+                getLoaderManager().initLoader(SEARCH_LOADER, buildSearchArgs(mSearchQuery), this);
+            }
+        }
+    }
+
+    @Override
+    public void onFruitClick(long id) {
+        // Create new intent to go to {@link FruitActivity}
+        Intent intent = new Intent(CatalogActivity.this, FruitActivity.class);
+
+        // Form the content URI that represents the specific fruit that was clicked on,
+        // by appending the "id" onto the {@link FruitEntry#CONTENT_URI}.
+        // For example, the URI would be "content://com.example.android.fruits/fruits/2"
+        // if the fruit with ID 2 was clicked on.
+        Uri currentfruitUri = ContentUris.withAppendedId(FruitEntry.CONTENT_URI, id);
+
+        // Set the URI on the data field of the intent
+        intent.setData(currentfruitUri);
+
+        // Launch the {@link FruitActivity} to display the data for the current fruit.
+        startActivity(intent);
+    }
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelableArrayList(STATE_PAGES, mPageArgs);
+        outState.putString(STATE_SEARCH_QUERY, mSearchQuery);
+    }
+
+    /**
+     * Start loading the page after the last one, if the last page is loaded and full
+     * (otherwise there is nothing else to fetch yet).
+     */
+    private void loadNextPage() {
+        // Search results aren't paged
+        if (mSearchQuery != null) {
+            return;
+        }
+
+        int lastPage = mPages.size() - 1;
+        Cursor last = mPages.get(lastPage);
+        if (last == null || last.getCount() < PAGE_SIZE || !last.moveToLast()) {
+            return;
+        }
+        String lastKey = FruitEntry.buildPageKey(
+                last.getString(last.getColumnIndex(FruitEntry.COLUMN_FRUIT_NAME)),
+                last.getLong(last.getColumnIndex(FruitEntry._ID)));
+
+        // Close the range of the last page at its last fruit, so fruits inserted in it later on
+        // grow that page instead of being pushed out of every page
+        Bundle closedArgs = new Bundle(mPageArgs.get(lastPage));
+        closedArgs.putString(ARG_PAGE_UNTIL, lastKey);
+        mPageArgs.set(lastPage, closedArgs);
+        getLoaderManager().restartLoader(FRUIT_LOADER + lastPage, closedArgs, this);
+
+        // The new page starts right after it
+        Bundle nextArgs = new Bundle();
+        nextArgs.putString(ARG_PAGE_AFTER, lastKey);
+        mPageArgs.add(nextArgs);
+        mPages.add(null);
+        getLoaderManager().initLoader(FRUIT_LOADER + lastPage + 1, nextArgs, this);
+    }
+
+    /**
+     * Show every loaded page in the list, one after the other.
+     */
+    private void swapPages() {
+        List<FruitItem> items = new ArrayList<FruitItem>();
+        for (Cursor page : mPages) {
+            if (page == null) {
+                // Pages after a page still loading would show up out of place
+                break;
+            }
+            items.addAll(FruitLoader.getItems(page));
+        }
+        mCursorAdapter.swapItems(items);
     }
 
     /**
@@ -159,40 +312,133 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+
+        // Show the text that was being searched again, before listening to the changes
+        if (mSearchQuery != null) {
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(mSearchQuery, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Show the fruits matching the given text, or every fruit if there is no text.
+     */
+    private void search(String query) {
+        String trimmedQuery = query.trim();
+        if (trimmedQuery.length() == 0) {
+            if (mSearchQuery != null) {
+                // Back to the pages of every fruit
+                mSearchQuery = null;
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+                swapPages();
+            }
+            return;
+        }
+        if (trimmedQuery.equals(mSearchQuery)) {
+            return;
+        }
+
+        mSearchQuery = trimmedQuery;
+
+        // Restarting the loader drops the results of the previous text, even if they are still
+        // loading, so stale results never show up
+        getLoaderManager().restartLoader(SEARCH_LOADER, buildSearchArgs(trimmedQuery), this);
+    }
+
+    private static Bundle buildSearchArgs(String query) {
+        Bundle args = new Bundle();
+        args.putString(ARG_SEARCH_QUERY, query);
+        return args;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Give back the memory held by the decoded thumbnails of the list
+        ThumbnailCache.getInstance(this).trimMemory(level);
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+        Uri uri;
+        if (i == SEARCH_LOADER) {
+            uri = FruitEntry.buildSearchUri(bundle.getString(ARG_SEARCH_QUERY), SEARCH_LIMIT);
+        } else {
+            // Open pages (the last one) are limited to PAGE_SIZE fruits, closed ones end at a key
+            String until = bundle.getString(ARG_PAGE_UNTIL);
+            uri = FruitEntry.buildPageUri(bundle.getString(ARG_PAGE_AFTER), until,
+                    until == null ? PAGE_SIZE : 0);
+        }
+
         // Define a projection that specifies the columns from the table we care about.
+        // The list only needs the small thumbnail, never the full picture.
         String[] projection = {
                 FruitEntry._ID,
                 FruitEntry.COLUMN_FRUIT_NAME,
                 FruitEntry.COLUMN_FRUIT_QUANTITY,
-                FruitEntry.COLUMN_FRUIT_PICTURE,
+                FruitEntry.COLUMN_FRUIT_THUMBNAIL,
+                FruitEntry.COLUMN_FRUIT_PICTURE_VERSION,
                 FruitEntry.COLUMN_FRUIT_SUPPLIER,
                 FruitEntry.COLUMN_FRUIT_TOTAL,
                 FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
                 FruitEntry.COLUMN_FRUIT_PRICE};
 
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                FruitEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+        // This loader will execute the ContentProvider's query method, and copy the rows,
+        // on a background thread
+        return new FruitLoader(this,    // Parent activity context
+                uri,                    // Provider content URI of the page or search to query
+                projection);            // Columns to include in the resulting Cursor
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link FruitCursorAdapter} with this new cursor containing updated fruit data
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == SEARCH_LOADER) {
+            // Update {@link FruitCursorAdapter} with the search results
+            if (mSearchQuery != null) {
+                mCursorAdapter.swapItems(FruitLoader.getItems(data));
+            }
+            return;
+        }
+
+        // Update {@link FruitCursorAdapter} with this new page containing updated fruit data
+        mPages.set(loader.getId() - FRUIT_LOADER, data);
+        if (mSearchQuery == null) {
+            swapPages();
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery != null) {
+                mCursorAdapter.swapItems(Collections.<FruitItem>emptyList());
+            }
+            return;
+        }
+
+        mPages.set(loader.getId() - FRUIT_LOADER, null);
+        if (mSearchQuery == null) {
+            swapPages();
+        }
     }
 }
@@ -6,7 +6,7 @@ package com.example.android.fruitmarket;
 import android.Manifest;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
-import android.content.ContentValues;
+import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -19,7 +19,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
@@ -33,10 +32,12 @@ import android.widget.ImageView;
 import android.widget.ScrollView;
 import android.widget.Toast;
 
+import com.example.android.fruitmarket.core.Money;
+import com.example.android.fruitmarket.data.Fruit;
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitWriter;
 
 import java.io.File;
-import java.io.IOException;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
@@ -79,6 +80,12 @@ public class EditorActivity extends AppCompatActivity implements
 
     private byte[] imageByte;
 
+    /** Imports the pictures picked by the user */
+    private ImageImporter mImageImporter;
+
+    /** Boolean flag that keeps track of whether a new picture was chosen (true) or not (false) */
+    private boolean mPictureHasChanged = false;
+
     /** Boolean flag that keeps track of whether the fruit has been edited (true) or not (false) */
     private boolean mFruitHasChanged = false;
 
@@ -99,6 +106,8 @@ public class EditorActivity extends AppCompatActivity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
+        mImageImporter = new ImageImporter(getContentResolver());
+
         // setting default system image icon in case user didnt upload a image
         Bitmap bm = BitmapFactory.decodeResource(getResources(), R.drawable.ic_new_image);
         imageByte = Utils.getBytes(Bitmap.createScaledBitmap(bm, 250, 250, false));
@@ -186,13 +195,14 @@ public class EditorActivity extends AppCompatActivity implements
             return;
         }
 
-        // Create a ContentValues object where column names are the keys,
-        // and fruit attributes from the editor are the values.
-        ContentValues values = new ContentValues();
-        values.put(FruitEntry.COLUMN_FRUIT_NAME, nameString);
-        values.put(FruitEntry.COLUMN_FRUIT_PRICE, priceString);
-        values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, supplierString);
-        values.put(FruitEntry.COLUMN_FRUIT_PICTURE, imageByte);
+        // The provider reads the price in cents, parse it here so it isn't boxed on the way
+        long price;
+        try {
+            price = Money.parse(priceString);
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Please, insert a valid price.", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
         // If the quantity is not provided by the user, don't try to parse the string into an
         // integer value. Use 0 by default.
@@ -200,13 +210,13 @@ public class EditorActivity extends AppCompatActivity implements
         if (!TextUtils.isEmpty(quantityString)) {
             quantity = Integer.parseInt(quantityString);
         }
-        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, quantity);
+        Fruit fruit = new Fruit(nameString, supplierString, price, quantity);
 
         // Determine if this is a new or existing fruit by checking if mCurrentFruitUri is null or not
         if (mCurrentFruitUri == null) {
-            // This is a NEW fruit, so insert a new fruit into the provider,
+            // This is a NEW fruit, so insert a new fruit into the provider, picture included,
             // returning the content URI for the new fruit.
-            Uri newUri = getContentResolver().insert(FruitEntry.CONTENT_URI, values);
+            Uri newUri = FruitWriter.insert(getContentResolver(), fruit, imageByte);
 
             // Show a toast message depending on whether or not the insertion was successful.
             if (newUri == null) {
@@ -220,10 +230,12 @@ public class EditorActivity extends AppCompatActivity implements
             }
         } else {
             // Otherwise this is an EXISTING fruit, so update the fruit with content URI:
-            // mCurrentFruitUri and pass in the new ContentValues. Pass in null for the selection
-            // and selection args because mCurrentFruitUri will already identify the correct row
-            // in the database that we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentFruitUri, values, null, null);
+            // mCurrentFruitUri, which already identifies the correct row in the database that
+            // we want to modify.
+            // Only send the picture again if the user picked a new one
+            int rowsAffected = mPictureHasChanged
+                    ? FruitWriter.update(getContentResolver(), mCurrentFruitUri, fruit, imageByte)
+                    : FruitWriter.update(getContentResolver(), mCurrentFruitUri, fruit);
 
             // Show a toast message depending on whether or not the update was successful.
             if (rowsAffected == 0) {
@@ -267,6 +279,12 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
+                // Wait for the picture being imported, rather than saving without it
+                if (mImageImporter.isBusy()) {
+                    Toast.makeText(this, R.string.editor_picture_importing,
+                            Toast.LENGTH_SHORT).show();
+                    return true;
+                }
                 // Save fruit to database
                 saveFruit();
                 // Exit activity
@@ -340,8 +358,7 @@ public class EditorActivity extends AppCompatActivity implements
                 FruitEntry.COLUMN_FRUIT_NAME,
                 FruitEntry.COLUMN_FRUIT_PRICE,
                 FruitEntry.COLUMN_FRUIT_QUANTITY,
-                FruitEntry.COLUMN_FRUIT_SUPPLIER,
-                FruitEntry.COLUMN_FRUIT_PICTURE};
+                FruitEntry.COLUMN_FRUIT_SUPPLIER};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -359,33 +376,42 @@ public class EditorActivity extends AppCompatActivity implements
             return;
         }
 
-        // Proceed with moving to the first row of the cursor and reading data from it
+        // Read the fruit from the first row of the cursor
         // (This should be the only row in the cursor)
-        if (cursor.moveToFirst()) {
-            // Find the columns of fruit attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_NAME);
-            int priceColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PRICE);
-            int quantityColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY);
-            int supplierColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_SUPPLIER);
-            int imageColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PICTURE);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String supplier = cursor.getString(supplierColumnIndex);
-            Double price = cursor.getDouble(priceColumnIndex);
-            int quantity = cursor.getInt(quantityColumnIndex);
-            Bitmap image = Utils.getImage(cursor.getBlob(imageColumnIndex));
-
+        Fruit fruit = new Fruit.Mapper(cursor).readFirst();
+        if (fruit != null) {
             // Update the views on the screen with the values from the database
-            mNameEditText.setText(name);
-            mPriceEditText.setText(String.valueOf(price));
-            mSupplierEditText.setText(supplier);
-            mQuantityEditText.setText(String.valueOf(quantity));
-
-            mPictureImageView.setImageBitmap(Bitmap.createScaledBitmap(image, 250, 250, false));
+            mNameEditText.setText(fruit.name);
+            mPriceEditText.setText(Money.format(fruit.price));
+            mSupplierEditText.setText(fruit.supplier);
+            mQuantityEditText.setText(String.valueOf(fruit.quantity));
+
+            // The picture isn't part of the cursor, stream it from the provider in the
+            // background, unless the user already picked a new one
+            if (!mPictureHasChanged && !mImageImporter.isBusy()) {
+                loadPicture();
+            }
         }
     }
 
+    /**
+     * Show the stored picture of the fruit, once it's loaded.
+     */
+    private void loadPicture() {
+        Uri pictureUri = FruitEntry.buildPictureUri(ContentUris.parseId(mCurrentFruitUri));
+        mImageImporter.loadImage(pictureUri, new ImageImporter.Callback() {
+            @Override
+            public void onImageImported(Bitmap picture, byte[] encoded) {
+                mPictureImageView.setImageBitmap(picture);
+            }
+
+            @Override
+            public void onImageImportFailed(Uri uri) {
+                // Nothing to show
+            }
+        });
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
@@ -528,17 +554,33 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     private void onSelectFromGalleryResult(Intent data) {
-        Bitmap bm = null;
-        if (data != null) {
-            try {
-                bm = MediaStore.Images.Media.getBitmap(getApplicationContext().getContentResolver(), data.getData());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (data == null || data.getData() == null) {
+            return;
         }
-        mPictureImageView.setVisibility(View.VISIBLE);
-        mPictureImageView.setImageBitmap(Bitmap.createScaledBitmap(bm, 250, 250, false));
 
-        this.imageByte = Utils.getBytes(Bitmap.createScaledBitmap(bm, 250, 250, false));
+        // Decode and encode the picture in the background, the editor shows it once it's ready
+        mImageImporter.importImage(data.getData(), new ImageImporter.Callback() {
+            @Override
+            public void onImageImported(Bitmap picture, byte[] encoded) {
+                mPictureImageView.setVisibility(View.VISIBLE);
+                mPictureImageView.setImageBitmap(picture);
+
+                imageByte = encoded;
+                mPictureHasChanged = true;
+            }
+
+            @Override
+            public void onImageImportFailed(Uri uri) {
+                Toast.makeText(EditorActivity.this, R.string.editor_picture_import_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Nothing left to show the picture in
+        mImageImporter.cancel();
     }
 }
@@ -26,6 +26,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.fruitmarket.core.Money;
+import com.example.android.fruitmarket.core.StockChange;
+import com.example.android.fruitmarket.data.Fruit;
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
 
 import butterknife.Bind;
@@ -35,6 +38,9 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
 
     //public static final String LOG_TAG = FruitActivity.class.getSimpleName();
 
+    /** Saved state key of the stock change not submitted yet */
+    private static final String STATE_STOCK_CHANGE = "stockChange";
+
     @Bind(R.id.fruit_image)
     ImageView photoImageView;
     @Bind(R.id.fruit_name)
@@ -56,7 +62,10 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
     @Bind(R.id.shipment_icon)
     ImageButton askMore;
     private Uri currentFruitUri;
-    private int stock;
+    // Stock read from the provider, and the change made to it here, not submitted yet
+    private final StockChange stock = new StockChange();
+    // Loads the picture of the fruit off the main thread
+    private ImageImporter imageLoader;
 
     protected void onCreate(Bundle savedInstanceState){
         super.onCreate(savedInstanceState);
@@ -66,6 +75,12 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
 
         Intent intent = getIntent();
         currentFruitUri = intent.getData();
+        imageLoader = new ImageImporter(getContentResolver());
+
+        // The change made before a rotation is still to be submitted
+        if (savedInstanceState != null) {
+            stock.restore(savedInstanceState.getInt(STATE_STOCK_CHANGE));
+        }
 
         getLoaderManager().initLoader(0, null, this);
 
@@ -92,24 +107,22 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
     }
 
     private void increaseQuantity() {
-        String [] aux = quantityTextView.getText().toString().split(" ");
-        stock = Integer.parseInt(aux[0]);
-        stock++;
-        quantityTextView.setText("" + stock + " kg");
+        stock.increase();
+        showStock();
     }
 
     private void decreaseQuantity() {
-        String[] aux = quantityTextView.getText().toString().split(" ");
-        stock = Integer.parseInt(aux[0]);
-
-        if(stock > 0){
-            stock--;
-            quantityTextView.setText("" + stock + " kg");
+        if (stock.decrease()) {
+            showStock();
         } else {
             Toast.makeText(FruitActivity.this, R.string.no_stock, Toast.LENGTH_LONG).show();
         }
     }
 
+    private void showStock() {
+        quantityTextView.setText(String.format("%s kg", String.valueOf(stock.getStock())));
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_fruit, menu);
@@ -202,8 +215,7 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
                 FruitEntry.COLUMN_FRUIT_QUANTITY,
                 FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
                 FruitEntry.COLUMN_FRUIT_TOTAL,
-                FruitEntry.COLUMN_FRUIT_SUPPLIER,
-                FruitEntry.COLUMN_FRUIT_PICTURE};
+                FruitEntry.COLUMN_FRUIT_SUPPLIER};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -221,35 +233,32 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
             return;
         }
 
-        // Proceed with moving to the first row of the cursor and reading data from it
+        // Read the fruit from the first row of the cursor
         // (This should be the only row in the cursor)
-        if (cursor.moveToFirst()) {
-            // Find the columns of fruit attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_NAME);
-            int priceColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PRICE);
-            int quantityColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY);
-            int supplierColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_SUPPLIER);
-            int imageColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PICTURE);
-            int qOrderedColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED);
-            int totalColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_TOTAL);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String supplier = cursor.getString(supplierColumnIndex);
-            Double price = cursor.getDouble(priceColumnIndex);
-            int quantity = cursor.getInt(quantityColumnIndex);
-            int quantityOrdered = cursor.getInt(qOrderedColumnIndex);
-            Double total = cursor.getDouble(totalColumnIndex);
-            Bitmap image = Utils.getImage(cursor.getBlob(imageColumnIndex));
-
+        Fruit fruit = new Fruit.Mapper(cursor).readFirst();
+        if (fruit != null) {
             // Update the views on the screen with the values from the database
-            nameTextView.setText(name);
-            priceTextView.setText(String.format("%s $/kg", String.valueOf(price)));
-            supplierTextView.setText(supplier);
-            quantityTextView.setText(String.format("%s kg", String.valueOf(quantity)));
-            quantityOrderedTextView.setText("Quantity ordered: " + quantityOrdered + " kg");
-            totalTextView.setText("Total: " + total + " $/kg");
-            photoImageView.setImageBitmap(Bitmap.createScaledBitmap(image, 250, 250, false));
+            nameTextView.setText(fruit.name);
+            priceTextView.setText(String.format("%s $/kg", Money.format(fruit.price)));
+            supplierTextView.setText(fruit.supplier);
+            stock.load(fruit.quantity);
+            showStock();
+            quantityOrderedTextView.setText("Quantity ordered: " + fruit.quantityOrdered + " kg");
+            totalTextView.setText("Total: " + Money.format(fruit.total) + " $/kg");
+
+            // The picture isn't part of the cursor, stream it from the provider in the background
+            imageLoader.loadImage(FruitEntry.buildPictureUri(ContentUris.parseId(currentFruitUri)),
+                    new ImageImporter.Callback() {
+                        @Override
+                        public void onImageImported(Bitmap picture, byte[] encoded) {
+                            photoImageView.setImageBitmap(picture);
+                        }
+
+                        @Override
+                        public void onImageImportFailed(Uri uri) {
+                            // Nothing to show
+                        }
+                    });
         }
     }
 
@@ -265,11 +274,21 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
     }
 
     private void updateStock() {
-        ContentValues values = new ContentValues();
-        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, stock);
+        if (currentFruitUri == null) {
+            return;
+        }
+        int change = stock.take();
+        if (change == 0) {
+            return;
+        }
 
-        if (currentFruitUri != null) {
-            getContentResolver().update(currentFruitUri, values, null, null);
+        // Only the change is recorded, so orders made meanwhile aren't overwritten
+        ContentValues values = new ContentValues();
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, change);
+        int rowsChanged = getContentResolver().update(
+                FruitEntry.buildStockUri(ContentUris.parseId(currentFruitUri)), values, null, null);
+        if (rowsChanged == 0) {
+            Toast.makeText(this, R.string.no_stock, Toast.LENGTH_LONG).show();
         }
     }
 
@@ -295,6 +314,19 @@ public class FruitActivity extends AppCompatActivity implements LoaderManager.Lo
         startActivity(shipment);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_STOCK_CHANGE, stock.getChange());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Nothing left to show the picture in
+        imageLoader.cancel();
+    }
+
     private void editFruit() {
         // Display the EditorActivity
         Intent intent = new Intent(FruitActivity.this, EditorActivity.class);
@@ -1,130 +1,308 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
 package com.example.android.fruitmarket;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.net.Uri;
-import android.util.Log;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.fruitmarket.core.Money;
+import com.example.android.fruitmarket.core.TextBuffer;
+import com.example.android.fruitmarket.data.Fruit;
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.ThumbnailCache;
 
-class FruitCursorAdapter extends CursorAdapter {
+import java.util.Collections;
+import java.util.List;
 
-    private static final String LOG_TAG = FruitCursorAdapter.class.getSimpleName();
+/**
+ * {@link RecyclerView} adapter of the catalog, showing the rows read from the provider cursors
+ * by {@link FruitLoader}.
+ *
+ * New rows are compared with the shown ones in the background, and only the rows that changed
+ * are bound again: ordering one fruit rebinds one row, not the whole list.
+ */
+class FruitCursorAdapter extends RecyclerView.Adapter<FruitCursorAdapter.FruitViewHolder> {
+
+    /**
+     * Interface for receiving the clicks on the fruits of the list.
+     */
+    interface OnFruitClickListener {
+        void onFruitClick(long id);
+    }
+
+    /** Cache of the decoded and scaled fruit pictures */
+    private final ThumbnailCache mThumbnailCache;
+
+    /** Receives the clicks on the fruits */
+    private final OnFruitClickListener mListener;
+
+    /** Posts the computed differences back to the main thread */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Rows shown by the list */
+    private List<FruitItem> mItems = Collections.emptyList();
+
+    /** Incremented by every {@link #swapItems(List)}, so only the latest difference is applied */
+    private int mGeneration;
+
+    /**
+     * Single click handler shared by every row: each clickable view is tagged with its holder.
+     */
+    private final View.OnClickListener mClickHandler = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            FruitViewHolder holder = (FruitViewHolder) v.getTag();
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                // The row is being removed
+                return;
+            }
+
+            long id = mItems.get(position).fruit.id;
+            if (v == holder.orderImageView) {
+                orderFruit(v.getContext(), id);
+            } else {
+                mListener.onFruitClick(id);
+            }
+        }
+    };
 
     /**
      * Constructs a new {@link FruitCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context  The context
+     * @param listener Receives the clicks on the fruits
      */
-    FruitCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
+    FruitCursorAdapter(Context context, OnFruitClickListener listener) {
+        mThumbnailCache = ThumbnailCache.getInstance(context);
+        mListener = listener;
+
+        // The IDs of the fruits are unique and stable, so the views can follow them
+        setHasStableIds(true);
     }
 
     /**
-     * Makes a new blank list item view. No data is set (or bound) to the views yet.
+     * Show the given rows. The difference with the rows shown so far is computed in the
+     * background, then applied, so it may not be visible right away.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param items rows to show, they must not be modified afterwards
+     */
+    void swapItems(final List<FruitItem> items) {
+        final List<FruitItem> oldItems = mItems;
+        final int generation = ++mGeneration;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new ItemsDiff(oldItems, items));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Rows swapped again meanwhile, those will be applied instead
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mItems = items;
+                        diff.dispatchUpdatesTo(FruitCursorAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).fruit.id;
+    }
+
+    /**
+     * Makes a new blank list item view, and finds its views once. No data is set (or bound) to
+     * the views yet.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+    public FruitViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        FruitViewHolder holder = new FruitViewHolder(view);
+
+        holder.itemView.setTag(holder);
+        holder.itemView.setOnClickListener(mClickHandler);
+        holder.orderImageView.setTag(holder);
+        holder.orderImageView.setOnClickListener(mClickHandler);
+        return holder;
     }
 
     /**
-     * This method binds the fruit data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current fruit can be set on the name TextView
-     * in the list item layout.
-     *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * This method binds the fruit data at the given position to the views of the given holder.
+     * For example, the name for the current fruit can be set on the name TextView in the list
+     * item layout.
      */
     @Override
-    public void bindView(final View view, final Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
-        ImageView pictureImageView = (ImageView) view.findViewById(R.id.product_image);
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView supplierTextView = (TextView) view.findViewById(R.id.supplier);
-        TextView priceTextView = (TextView) view.findViewById(R.id.price);
-        TextView quantityTextView = (TextView) view.findViewById(R.id.quantity);
-        TextView quantityOrderedTextView = (TextView) view.findViewById(R.id.quantity_ordered);
-        TextView totalTextView = (TextView) view.findViewById(R.id.total_order);
-        ImageView orderImageView = (ImageView) view.findViewById(R.id.buy_icon);
-
-        // Find the columns of fruit attributes that we're interested in
-        int idColumnIndex = cursor.getColumnIndex(FruitEntry._ID);
-        int imageColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PICTURE);
-        int nameColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_NAME);
-        int supplierColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_SUPPLIER);
-        int priceColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PRICE);
-        int quantityColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY);
-        int qOrderedColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED);
-        int totalColumnIndex = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_TOTAL);
-
-        // Read the fruit attributes from the Cursor for the current fruit
-        Bitmap image = Utils.getImage(cursor.getBlob(imageColumnIndex));
-        int inventoryId = cursor.getInt(idColumnIndex);
-        String fruitName = cursor.getString(nameColumnIndex);
-        String fruitSupplier = cursor.getString(supplierColumnIndex);
-        final Double fruitPrice = cursor.getDouble(priceColumnIndex);
-        final int fruitQuantity = cursor.getInt(quantityColumnIndex);
-        final int quantityOrdered = cursor.getInt(qOrderedColumnIndex);
-        Double totalPvp = cursor.getDouble(totalColumnIndex);
-
-        final Uri currentItemUri = ContentUris.withAppendedId(FruitEntry.CONTENT_URI, inventoryId);
-
-        // Update the TextViews with the attributes for the current fruit
-        nameTextView.setText(fruitName);
-        supplierTextView.setText(fruitSupplier);
-        priceTextView.setText(String.format("%s $/kg", fruitPrice));
-        quantityTextView.setText("Quantity: " + fruitQuantity + " kg");
-        quantityOrderedTextView.setText("Quantity ordered: " + quantityOrdered + " kg");
-        totalTextView.setText("Total: " + totalPvp + " $");
-        pictureImageView.setImageBitmap(Bitmap.createScaledBitmap(image, 250, 250, false));
-
-        orderImageView.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                ContentResolver resolver = v.getContext().getContentResolver();
-                int stock = fruitQuantity;
-
-                Log.e(LOG_TAG, "Stock is " + stock);
-
-                if (stock == 0) {
-                    Toast.makeText(v.getContext(), R.string.no_stock,
-                            Toast.LENGTH_LONG).show();
-                    return;
-                }
-
-                double price = fruitPrice;
-                int orderedAux = quantityOrdered + 1;
-                double total = price * orderedAux;
-
-                ContentValues values = new ContentValues();
-                values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, --stock);
-                values.put(FruitEntry.COLUMN_FRUIT_TOTAL, total);
-                values.put(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED, orderedAux);
-                resolver.update(currentItemUri, values, null, null);
-                context.getContentResolver().notifyChange(currentItemUri, null);
+    public void onBindViewHolder(FruitViewHolder holder, int position) {
+        holder.bind(mItems.get(position), mThumbnailCache);
+    }
+
+    /**
+     * Order one unit of the given fruit.
+     */
+    private static void orderFruit(Context context, long id) {
+        // Let the provider check the stock and update the order in one go, the values
+        // shown may be stale by now
+        ContentResolver resolver = context.getContentResolver();
+        int rowsOrdered = resolver.update(FruitEntry.buildOrderUri(id), new ContentValues(),
+                null, null);
+
+        if (rowsOrdered == 0) {
+            Toast.makeText(context, R.string.no_stock, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Views of a list item, found once when the item is created, and the buffers their text is
+     * built in. Binding a fruit doesn't allocate, so scrolling doesn't feed the garbage collector.
+     * A thumbnail missing from memory is loaded in the background, and shown once loaded if the
+     * item still shows the same fruit picture.
+     */
+    static class FruitViewHolder extends RecyclerView.ViewHolder
+            implements ThumbnailCache.Callback {
+
+        /** Initial capacity of the text buffers, enough for any usual value */
+        private static final int BUFFER_CAPACITY = 32;
+
+        final ImageView pictureImageView;
+        final TextView nameTextView;
+        final TextView supplierTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final TextView quantityOrderedTextView;
+        final TextView totalTextView;
+        final ImageView orderImageView;
+
+        private final TextBuffer mPriceText = new TextBuffer(BUFFER_CAPACITY);
+        private final TextBuffer mQuantityText = new TextBuffer(BUFFER_CAPACITY);
+        private final TextBuffer mQuantityOrderedText = new TextBuffer(BUFFER_CAPACITY);
+        private final TextBuffer mTotalText = new TextBuffer(BUFFER_CAPACITY);
+
+        /** Fruit and picture version of the thumbnail shown, so it's only set when it changes */
+        private long mThumbnailId = -1;
+        private long mThumbnailVersion = -1;
+
+        FruitViewHolder(View view) {
+            super(view);
+            pictureImageView = (ImageView) view.findViewById(R.id.product_image);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            supplierTextView = (TextView) view.findViewById(R.id.supplier);
+            priceTextView = (TextView) view.findViewById(R.id.price);
+            quantityTextView = (TextView) view.findViewById(R.id.quantity);
+            quantityOrderedTextView = (TextView) view.findViewById(R.id.quantity_ordered);
+            totalTextView = (TextView) view.findViewById(R.id.total_order);
+            orderImageView = (ImageView) view.findViewById(R.id.buy_icon);
+        }
+
+        /**
+         * Show the given fruit in the views of this list item.
+         */
+        void bind(FruitItem item, ThumbnailCache thumbnailCache) {
+            Fruit fruit = item.fruit;
+
+            // Update the TextViews with the attributes for the current fruit
+            nameTextView.setText(fruit.name);
+            supplierTextView.setText(fruit.supplier);
+            show(priceTextView, mPriceText.clear().appendFixed(fruit.price, Money.DECIMALS)
+                    .append(" $/kg"));
+            show(quantityTextView, mQuantityText.clear().append("Quantity: ")
+                    .append(fruit.quantity).append(" kg"));
+            show(quantityOrderedTextView, mQuantityOrderedText.clear()
+                    .append("Quantity ordered: ").append(fruit.quantityOrdered).append(" kg"));
+            show(totalTextView, mTotalText.clear().append("Total: ")
+                    .appendFixed(fruit.total, Money.DECIMALS).append(" $"));
+
+            // The thumbnail only changes with the fruit or its picture
+            if (fruit.id == mThumbnailId && fruit.pictureVersion == mThumbnailVersion) {
+                return;
             }
-        });
+
+            mThumbnailId = fruit.id;
+            mThumbnailVersion = fruit.pictureVersion;
+
+            // Only the memory tier is read here, the disk and the decoding are left to the
+            // background
+            Bitmap thumbnail = thumbnailCache.get(fruit.id, fruit.pictureVersion);
+            pictureImageView.setImageBitmap(thumbnail);
+            if (thumbnail == null && item.thumbnail != null) {
+                thumbnailCache.load(fruit.id, fruit.pictureVersion, item.thumbnail, this);
+            }
+        }
+
+        @Override
+        public void onThumbnailLoaded(long id, long version, Bitmap thumbnail) {
+            // The item may show another fruit, or another picture, by now
+            if (id == mThumbnailId && version == mThumbnailVersion) {
+                pictureImageView.setImageBitmap(thumbnail);
+            }
+        }
+
+        /**
+         * Show the text of the given buffer in the given view, without copying it.
+         */
+        private static void show(TextView view, TextBuffer text) {
+            view.setText(text.getChars(), 0, text.length());
+        }
+    }
+
+    /**
+     * Difference between two versions of the rows, matched by fruit ID.
+     */
+    private static class ItemsDiff extends DiffUtil.Callback {
+
+        private final List<FruitItem> mOldItems;
+        private final List<FruitItem> mNewItems;
+
+        ItemsDiff(List<FruitItem> oldItems, List<FruitItem> newItems) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).fruit.id
+                    == mNewItems.get(newItemPosition).fruit.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).hasSameContents(mNewItems.get(newItemPosition));
+        }
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.database.Cursor;
+
+import com.example.android.fruitmarket.data.Fruit;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of one row of the catalog, as read from the provider: the fruit, and its
+ * thumbnail.
+ *
+ * Rows are copied out of the cursor so the list can compare an old and a new version of itself
+ * in the background, long after their cursors have been replaced and closed by the loaders.
+ */
+final class FruitItem {
+
+    final Fruit fruit;
+
+    /** Encoded thumbnail, only read when it isn't cached yet */
+    final byte[] thumbnail;
+
+    private FruitItem(Fruit fruit, byte[] thumbnail) {
+        this.fruit = fruit;
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Returns true if the given item shows the same as this one. The thumbnail is covered by the
+     * picture version.
+     */
+    boolean hasSameContents(FruitItem other) {
+        return fruit.equals(other.fruit);
+    }
+
+    /**
+     * Copies every row of the given cursor, which must have the columns of the catalog
+     * projection. The position of the cursor is left before the first row.
+     */
+    static List<FruitItem> readAll(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return Collections.emptyList();
+        }
+
+        Fruit.Mapper mapper = new Fruit.Mapper(cursor);
+        int thumbnailColumn = cursor.getColumnIndexOrThrow(FruitEntry.COLUMN_FRUIT_THUMBNAIL);
+
+        List<FruitItem> items = new ArrayList<FruitItem>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            items.add(new FruitItem(mapper.read(), cursor.getBlob(thumbnailColumn)));
+        }
+        cursor.moveToPosition(-1);
+        return Collections.unmodifiableList(items);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+
+import java.util.List;
+
+/**
+ * {@link CursorLoader} of catalog rows that also copies them into {@link FruitItem}s, on the
+ * loader thread. The cursor is still what the loader watches for changes.
+ */
+class FruitLoader extends CursorLoader {
+
+    FruitLoader(Context context, Uri uri, String[] projection) {
+        super(context, uri, projection, null, null, null);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+        return cursor == null ? null : new ItemsCursor(cursor);
+    }
+
+    /**
+     * Returns the rows of a cursor delivered by a {@link FruitLoader}.
+     */
+    static List<FruitItem> getItems(Cursor cursor) {
+        return ((ItemsCursor) cursor).mItems;
+    }
+
+    /**
+     * Cursor carrying its rows already copied.
+     */
+    private static class ItemsCursor extends CursorWrapper {
+
+        private final List<FruitItem> mItems;
+
+        ItemsCursor(Cursor cursor) {
+            super(cursor);
+            mItems = FruitItem.readAll(cursor);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Imports a picture picked by the user as a fruit picture, off the main thread. Also loads the
+ * stored pictures to show them, the same way.
+ *
+ * The source is never decoded at full size: its bounds are read first, and it is decoded
+ * subsampled close to {@link #TARGET_SIZE}, so the memory used depends on the target size and
+ * not on the camera that took the photo. The EXIF orientation of the source is honored.
+ */
+class ImageImporter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ImageImporter.class.getSimpleName();
+
+    /** Width and height (in pixels) of the imported pictures */
+    static final int TARGET_SIZE = 250;
+
+    /**
+     * Interface for receiving the imported pictures, on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * @param picture the imported picture, scaled to the target size
+         * @param encoded the picture encoded as stored by the provider, see ImageCodec; null if
+         *                it was only loaded
+         */
+        void onImageImported(Bitmap picture, byte[] encoded);
+
+        void onImageImportFailed(Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+
+    /** Posts the results back to the main thread */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Incremented by every import and cancel, so only the latest import is delivered */
+    private int mGeneration;
+
+    /** Whether an import is running */
+    private boolean mBusy;
+
+    ImageImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Import the picture with the given URI in the background, and deliver it to the given
+     * callback. Any import still running is superseded.
+     */
+    @MainThread
+    void importImage(Uri uri, Callback callback) {
+        mBusy = true;
+        execute(uri, true, callback);
+    }
+
+    /**
+     * Load the picture with the given URI in the background, without encoding it, and deliver it
+     * to the given callback. Any import still running is superseded, and this doesn't count as
+     * one for {@link #isBusy()}.
+     */
+    @MainThread
+    void loadImage(Uri uri, Callback callback) {
+        execute(uri, false, callback);
+    }
+
+    @MainThread
+    private void execute(final Uri uri, final boolean encode, final Callback callback) {
+        final int generation = ++mGeneration;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap picture = null;
+                byte[] encoded = null;
+                try {
+                    picture = decode(uri);
+                    encoded = encode ? Utils.getBytes(picture) : null;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to import " + uri, e);
+                } catch (RuntimeException e) {
+                    // Decoding a broken file can throw too, it mustn't crash the editor
+                    Log.e(LOG_TAG, "Failed to import " + uri, e);
+                }
+
+                final Bitmap result = encoded != null || !encode ? picture : null;
+                final byte[] resultBytes = encoded;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mBusy = false;
+                        if (result != null) {
+                            callback.onImageImported(result, resultBytes);
+                        } else {
+                            callback.onImageImportFailed(uri);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns true while an import is running.
+     */
+    @MainThread
+    boolean isBusy() {
+        return mBusy;
+    }
+
+    /**
+     * Drop the result of the running import, if any.
+     */
+    @MainThread
+    void cancel() {
+        mGeneration++;
+        mBusy = false;
+    }
+
+    /**
+     * Decode the picture with the given URI, subsampled, rotated upright and scaled to the
+     * target size.
+     */
+    @WorkerThread
+    Bitmap decode(Uri uri) throws IOException {
+        // Read the size of the source only, nothing is allocated for its pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + uri);
+        }
+
+        // Decode it subsampled, to the smallest size still at least as big as the target
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight);
+        Bitmap sampled = decodeStream(uri, options);
+        if (sampled == null) {
+            throw new IOException("Failed to decode " + uri);
+        }
+
+        // Turn it upright, and scale it to the target size in the same pass
+        int orientation = readOrientation(uri);
+        Matrix matrix = new Matrix();
+        applyOrientation(matrix, orientation);
+        boolean rotated = isTransposed(orientation);
+        float width = rotated ? sampled.getHeight() : sampled.getWidth();
+        float height = rotated ? sampled.getWidth() : sampled.getHeight();
+        matrix.postScale(TARGET_SIZE / width, TARGET_SIZE / height);
+
+        Bitmap picture = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(),
+                sampled.getHeight(), matrix, true);
+        if (picture != sampled) {
+            sampled.recycle();
+        }
+        return picture;
+    }
+
+    /**
+     * Return the largest power of 2 that still leaves both sides of the decoded picture at
+     * least as big as the target.
+     */
+    private static int calculateInSampleSize(int width, int height) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= TARGET_SIZE
+                && height / (inSampleSize * 2) >= TARGET_SIZE) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream stream = openStream(uri);
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Return the EXIF orientation of the given picture, or
+     * {@link ExifInterface#ORIENTATION_NORMAL} if it has none.
+     */
+    private int readOrientation(Uri uri) {
+        try {
+            InputStream stream = openStream(uri);
+            try {
+                return new ExifInterface(stream).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.ORIENTATION_NORMAL);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the orientation of " + uri, e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private InputStream openStream(Uri uri) throws IOException {
+        InputStream stream = mResolver.openInputStream(uri);
+        if (stream == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns true if the given EXIF orientation swaps the width and the height.
+     */
+    private static boolean isTransposed(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * Set up the given matrix to turn a picture with the given EXIF orientation upright.
+     */
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                // Already upright
+                break;
+        }
+    }
+}
@@ -4,20 +4,17 @@
 package com.example.android.fruitmarket;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
-import java.io.ByteArrayOutputStream;
+import com.example.android.fruitmarket.data.ImageCodec;
 
 class Utils {
-    // convert from bitmap to byte array
+    // convert from bitmap to byte array, in the format chosen at build time
     static byte[] getBytes(Bitmap bitmap) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream);
-        return stream.toByteArray();
+        return ImageCodec.getDefault().encode(bitmap);
     }
 
-    // convert from byte array to bitmap
+    // convert from byte array to bitmap, whatever its format
     static Bitmap getImage(byte[] image) {
-        return BitmapFactory.decodeByteArray(image, 0, image.length);
+        return ImageCodec.decode(image);
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects the changes made by {@link FruitProvider} and notifies them in one go, at most once
+ * per window.
+ *
+ * A change to a single fruit is notified on its item URI, which reaches the observers of that
+ * fruit and of the whole table. A change to several fruits is notified once on
+ * {@link FruitEntry#CONTENT_URI}, which reaches every observer, so the catalog requeries once
+ * per window whatever the number of fruits that changed. Nothing is dispatched while a batch is
+ * running, its changes are dispatched when it ends.
+ */
+final class ChangeNotifier {
+
+    private final ContentResolver mResolver;
+
+    /** Time (in milliseconds) changes are held for before being notified */
+    private final long mWindowMillis;
+
+    /** Dispatches the notifications out of the thread that made the changes */
+    private final Handler mHandler;
+
+    /** Counts the changes and the notifications dispatched, see {@link ProviderStats#ENABLED} */
+    private final ProviderStats mStats;
+
+    /** IDs of the fruits changed since the last dispatch */
+    private final Set<Long> mChangedIds = new HashSet<Long>();
+
+    /** Whether the whole table changed since the last dispatch */
+    private boolean mChangedAll;
+
+    /** Whether a dispatch is already scheduled */
+    private boolean mScheduled;
+
+    /** Number of batches running */
+    private int mBatchDepth;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param resolver     resolver to notify the changes to
+     * @param windowMillis time changes are held for, 0 to notify them as soon as possible
+     * @param stats        stats of the provider making the changes
+     */
+    ChangeNotifier(ContentResolver resolver, long windowMillis, ProviderStats stats) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+        mStats = stats;
+
+        HandlerThread thread = new HandlerThread(ChangeNotifier.class.getSimpleName());
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Record a change to the given fruit.
+     */
+    synchronized void notifyItem(long id) {
+        if (ProviderStats.ENABLED) {
+            mStats.onNotify(1);
+        }
+        mChangedIds.add(id);
+        schedule();
+    }
+
+    /**
+     * Record a change to the given fruits.
+     */
+    synchronized void notifyItems(long[] ids) {
+        if (ProviderStats.ENABLED) {
+            mStats.onNotify(ids.length);
+        }
+        for (long id : ids) {
+            mChangedIds.add(id);
+        }
+        schedule();
+    }
+
+    /**
+     * Record a change to any number of fruits, which can't be told apart.
+     */
+    synchronized void notifyAllItems() {
+        if (ProviderStats.ENABLED) {
+            mStats.onNotify(1);
+        }
+        mChangedAll = true;
+        schedule();
+    }
+
+    /**
+     * Hold every change until the matching {@link #endBatch()}. Batches can be nested.
+     */
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * End a batch started by {@link #beginBatch()}. Once the outermost batch ends, every change
+     * recorded meanwhile is dispatched at once.
+     */
+    synchronized void endBatch() {
+        if (--mBatchDepth == 0 && (mChangedAll || !mChangedIds.isEmpty())) {
+            mHandler.removeCallbacks(mDispatch);
+            mScheduled = true;
+            mHandler.post(mDispatch);
+        }
+    }
+
+    /**
+     * Dispatch the changes still held, and stop the thread dispatching them. Nothing is
+     * dispatched afterwards.
+     */
+    void shutdown() {
+        mHandler.removeCallbacks(mDispatch);
+        dispatch();
+        mHandler.getLooper().quit();
+    }
+
+    private void schedule() {
+        if (mScheduled || mBatchDepth > 0) {
+            return;
+        }
+        mScheduled = true;
+        mHandler.postDelayed(mDispatch, mWindowMillis);
+    }
+
+    private void dispatch() {
+        Uri uri;
+        synchronized (this) {
+            mScheduled = false;
+            if (mBatchDepth > 0) {
+                // A batch started meanwhile, it dispatches when it ends
+                return;
+            }
+
+            if (mChangedAll || mChangedIds.size() > 1) {
+                uri = FruitEntry.CONTENT_URI;
+            } else if (mChangedIds.size() == 1) {
+                uri = ContentUris.withAppendedId(FruitEntry.CONTENT_URI,
+                        mChangedIds.iterator().next());
+            } else {
+                return;
+            }
+            mChangedAll = false;
+            mChangedIds.clear();
+        }
+        mResolver.notifyChange(uri, null);
+        if (ProviderStats.ENABLED) {
+            mStats.onDispatch();
+        }
+    }
+}
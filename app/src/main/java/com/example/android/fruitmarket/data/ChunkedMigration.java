@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * {@link Migration} that also rewrites the existing rows of the fruits table.
+ *
+ * The rewrite doesn't run in the upgrade transaction. {@link FruitDbHelper} runs it afterwards,
+ * in the background, one chunk of rows at a time, each chunk in its own transaction along with
+ * the progress of the migration. A migration interrupted by the process being killed resumes
+ * from the last chunk committed. Until it is done, the rest of the app must cope with rows in
+ * both their old and their new shape.
+ */
+abstract class ChunkedMigration extends Migration {
+
+    /** Returned by {@link #migrateChunk} when there are no rows left to migrate */
+    static final long NO_MORE_ROWS = -1;
+
+    /** Default maximum number of rows migrated per chunk */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+
+    ChunkedMigration(int version, String name) {
+        super(version, name);
+    }
+
+    /**
+     * Maximum number of rows migrated per chunk (and per transaction).
+     */
+    int getChunkSize() {
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Migrate the next chunk of rows, the ones with an ID greater than the given one, in ID order.
+     * This is already called inside a transaction.
+     *
+     * @param afterId ID of the last row migrated by the previous chunk, 0 for the first one
+     * @param limit   maximum number of rows to migrate
+     * @return the ID of the last row migrated, or {@link #NO_MORE_ROWS} if there was none left
+     */
+    abstract long migrateChunk(SQLiteDatabase db, long afterId, int limit);
+
+    /**
+     * Return the IDs of the next chunk of fruits, in ID order.
+     *
+     * @param selection extra selection the fruits must match, or null for every fruit
+     */
+    static long[] queryChunkIds(SQLiteDatabase db, String selection, long afterId, int limit) {
+        String where = FruitEntry._ID + " > ?";
+        if (selection != null) {
+            where += " AND (" + selection + ")";
+        }
+        Cursor cursor = db.query(FruitEntry.TABLE_NAME, new String[] { FruitEntry._ID }, where,
+                new String[] { String.valueOf(afterId) }, null, null, FruitEntry._ID,
+                String.valueOf(limit));
+        try {
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Immutable fruit, as read from the provider with a {@link Mapper}, or written to it with
+ * {@link FruitWriter}. The values are primitives, so nothing is boxed on the way.
+ */
+public final class Fruit {
+
+    /** ID of the fruit, 0 for a fruit not stored yet */
+    public final long id;
+    public final String name;
+    public final String supplier;
+    /** Price per kg, in cents */
+    public final long price;
+    public final int quantity;
+    public final int quantityOrdered;
+    /** Price of the quantity ordered, in cents */
+    public final long total;
+    public final long pictureVersion;
+
+    public Fruit(long id, String name, String supplier, long price, int quantity,
+                 int quantityOrdered, long total, long pictureVersion) {
+        this.id = id;
+        this.name = name;
+        this.supplier = supplier;
+        this.price = price;
+        this.quantity = quantity;
+        this.quantityOrdered = quantityOrdered;
+        this.total = total;
+        this.pictureVersion = pictureVersion;
+    }
+
+    /**
+     * Constructs a fruit not stored yet, with nothing ordered.
+     */
+    public Fruit(String name, String supplier, long price, int quantity) {
+        this(0, name, supplier, price, quantity, 0, 0, 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Fruit)) {
+            return false;
+        }
+        Fruit other = (Fruit) o;
+        return id == other.id
+                && equals(name, other.name)
+                && equals(supplier, other.supplier)
+                && price == other.price
+                && quantity == other.quantity
+                && quantityOrdered == other.quantityOrdered
+                && total == other.total
+                && pictureVersion == other.pictureVersion;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ id >>> 32);
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        result = 31 * result + (supplier == null ? 0 : supplier.hashCode());
+        result = 31 * result + (int) (price ^ price >>> 32);
+        result = 31 * result + quantity;
+        result = 31 * result + quantityOrdered;
+        result = 31 * result + (int) (total ^ total >>> 32);
+        return 31 * result + (int) (pictureVersion ^ pictureVersion >>> 32);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Reads the fruits of a cursor. The columns are looked up once, when the mapper is created,
+     * instead of once per row. Columns left out of the projection read as 0 (or null).
+     */
+    public static final class Mapper {
+
+        private final Cursor mCursor;
+        private final int mId;
+        private final int mName;
+        private final int mSupplier;
+        private final int mPrice;
+        private final int mQuantity;
+        private final int mQuantityOrdered;
+        private final int mTotal;
+        private final int mPictureVersion;
+
+        public Mapper(Cursor cursor) {
+            mCursor = cursor;
+            mId = cursor.getColumnIndex(FruitEntry._ID);
+            mName = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_NAME);
+            mSupplier = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_SUPPLIER);
+            mPrice = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PRICE);
+            mQuantity = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY);
+            mQuantityOrdered = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED);
+            mTotal = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_TOTAL);
+            mPictureVersion = cursor.getColumnIndex(FruitEntry.COLUMN_FRUIT_PICTURE_VERSION);
+        }
+
+        /**
+         * Returns the fruit of the current row of the cursor.
+         */
+        public Fruit read() {
+            return new Fruit(
+                    mId == -1 ? 0 : mCursor.getLong(mId),
+                    mName == -1 ? null : mCursor.getString(mName),
+                    mSupplier == -1 ? null : mCursor.getString(mSupplier),
+                    mPrice == -1 ? 0 : mCursor.getLong(mPrice),
+                    mQuantity == -1 ? 0 : mCursor.getInt(mQuantity),
+                    mQuantityOrdered == -1 ? 0 : mCursor.getInt(mQuantityOrdered),
+                    mTotal == -1 ? 0 : mCursor.getLong(mTotal),
+                    mPictureVersion == -1 ? 0 : mCursor.getLong(mPictureVersion));
+        }
+
+        /**
+         * Returns the fruit of the first row of the cursor, or null if it has none.
+         */
+        public Fruit readFirst() {
+            return mCursor.moveToFirst() ? read() : null;
+        }
+    }
+}
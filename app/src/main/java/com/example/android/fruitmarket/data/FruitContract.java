@@ -23,6 +23,41 @@ public final class FruitContract {
      * as the ContentProvider hasn't been given any information on what to do with "staff".
      */
     static final String PATH_FRUITS = "fruits";
+    /**
+     * Path appended to a single fruit URI to stream its picture, for instance
+     * content://com.example.android.fruits/fruits/3/picture
+     */
+    static final String PATH_PICTURE = "picture";
+    /**
+     * Path appended to a single fruit URI to order one unit of it, for instance
+     * content://com.example.android.fruits/fruits/3/order
+     */
+    static final String PATH_ORDER = "order";
+    /**
+     * Path appended to the fruits URI to search fruits by name and supplier, for instance
+     * content://com.example.android.fruits/fruits/search?q=apple
+     */
+    static final String PATH_SEARCH = "search";
+    /**
+     * Path appended to the fruits URI to read the inventory summary, for instance
+     * content://com.example.android.fruits/fruits/summary
+     */
+    static final String PATH_SUMMARY = "summary";
+    /**
+     * Path appended to a single fruit URI to add to (or take from) its stock, for instance
+     * content://com.example.android.fruits/fruits/3/stock
+     */
+    static final String PATH_STOCK = "stock";
+    /**
+     * Path appended to the fruits URI to export or import the fruits as CSV, for instance
+     * content://com.example.android.fruits/fruits/csv
+     */
+    static final String PATH_CSV = "csv";
+    /**
+     * Method of {@link android.content.ContentResolver#call} returning the stats of the calls
+     * made to the provider, per URI, in debug builds
+     */
+    public static final String METHOD_STATS = "stats";
     /**
      * Use CONTENT_AUTHORITY to create the base of all URI's which apps will use to contact
      * the content provider.
@@ -43,6 +78,18 @@ public final class FruitContract {
 
         /** The content URI to access the fruit data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_FRUITS);
+        /**
+         * The content URI of the fruits as CSV, one line per fruit after a header line naming
+         * the columns. Reading it (with {@link ContentResolver#openInputStream}) streams every
+         * fruit out. Writing to it (with {@link ContentResolver#openOutputStream}) imports the
+         * lines written, in the background: each line updates the fruits with its name, or
+         * inserts a new fruit if there is none. Lines that aren't a valid fruit are skipped.
+         */
+        public static final Uri CSV_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CSV);
+        /**
+         * The MIME type of the {@link #CSV_URI}.
+         */
+        public static final String CSV_MIME_TYPE = "text/csv";
         /**
          * Unique ID number for the fruit (only for use in the database table).
          *
@@ -56,9 +103,9 @@ public final class FruitContract {
          */
         public final static String COLUMN_FRUIT_NAME = "name";
         /**
-         * Price of the fruit.
+         * Price of the fruit per kg, in cents.
          *
-         * Type: REAL
+         * Type: INTEGER
          */
         public final static String COLUMN_FRUIT_PRICE = "price";
         /**
@@ -80,17 +127,55 @@ public final class FruitContract {
          */
         public final static String COLUMN_FRUIT_SUPPLIER = "supplier";
         /**
-         * Picture of the fruit.
+         * Picture of the fruit. The picture itself is stored in a file, read and write it through
+         * {@link #buildPictureUri(long)}.
          *
-         * Type: TEXT (URL of the photo)
+         * Type: TEXT (reference of the picture file)
          */
         public final static String COLUMN_FRUIT_PICTURE = "picture";
         /**
-         * Final price.
+         * Version of the picture, bumped by the provider every time the picture changes.
+         * Used to key cached thumbnails of the picture.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_FRUIT_PICTURE_VERSION = "pictureVersion";
+        /**
+         * Small pre-scaled copy of the picture, kept up to date by the provider.
+         * Lists should query this one instead of {@link #COLUMN_FRUIT_PICTURE}.
+         *
+         * Type: BLOB (JPEG)
+         */
+        public final static String COLUMN_FRUIT_THUMBNAIL = "thumbnail";
+        /**
+         * Final price: the price times the quantity ordered, in cents. Computed from them, so it
+         * can't be written.
          * <p>
-         * Type: REAL
+         * Type: INTEGER
          */
         public final static String COLUMN_FRUIT_TOTAL = "total";
+        /**
+         * Version of the fruit, bumped by the database every time the fruit changes. Versions
+         * are increasing over the whole table, so the fruits changed since a given version are
+         * the ones with a greater one.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_FRUIT_VERSION = "version";
+        /**
+         * Time of the last change to the fruit, in milliseconds since the epoch. Stamped by the
+         * database, unless the change sets it.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_FRUIT_UPDATED_AT = "updatedAt";
+        /**
+         * ID of the fruit shared by every copy of the app, assigned the first time the fruit is
+         * synced, see {@link FruitSync}. Internal to the provider.
+         *
+         * Type: TEXT
+         */
+        final static String COLUMN_FRUIT_SYNC_ID = "syncId";
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of fruits.
          */
@@ -101,9 +186,304 @@ public final class FruitContract {
          */
         static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_FRUITS;
+        /**
+         * Query parameter of {@link #CONTENT_URI} limiting the number of fruits returned.
+         * When present, fruits are sorted by name (then ID), so the list can be fetched page by
+         * page with {@link #QUERY_PARAMETER_AFTER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        /**
+         * Query parameter of {@link #CONTENT_URI} to only return the fruits sorted after the given
+         * page key, see {@link #buildPageKey(String, long)}.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+        /**
+         * Query parameter of {@link #CONTENT_URI} to only return the fruits sorted up to (and
+         * including) the given page key, see {@link #buildPageKey(String, long)}.
+         */
+        public static final String QUERY_PARAMETER_UNTIL = "until";
+        /**
+         * Query parameter of the search URI with the text to look for, see
+         * {@link #buildSearchUri(String, int)}.
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
         /**
          * Name of database table for fruits
          */
         final static String TABLE_NAME = "fruits";
+        /**
+         * Name of the full-text index over the name and supplier of the fruits. Its docid is the
+         * ID of the fruit.
+         */
+        final static String SEARCH_TABLE_NAME = "fruits_search";
+        /**
+         * Name of the view of the fruits with their orders applied: the fruits table only holds
+         * a snapshot of the quantities, the orders recorded since are in {@link OrderEntry}.
+         * Reads go through this view, writes through the table.
+         */
+        final static String CURRENT_VIEW_NAME = "fruits_current";
+        /**
+         * ID of the last order folded into the quantities of the fruits table, see
+         * {@link #CURRENT_VIEW_NAME}. Internal to the provider, not part of the view.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_FRUIT_LEDGER_POSITION = "ledgerPosition";
+
+        /**
+         * Returns the content URI to stream the picture of the given fruit with
+         * {@link ContentResolver#openInputStream(Uri)} and
+         * {@link ContentResolver#openOutputStream(Uri)}.
+         *
+         * @param id ID of the fruit
+         */
+        public static Uri buildPictureUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_PICTURE)
+                    .build();
+        }
+
+        /**
+         * Returns the key of a fruit in the name order used by pages, to use as the
+         * {@link #QUERY_PARAMETER_AFTER} or {@link #QUERY_PARAMETER_UNTIL} of a page.
+         *
+         * @param name name of the fruit
+         * @param id   ID of the fruit
+         */
+        public static String buildPageKey(String name, long id) {
+            return name + "," + id;
+        }
+
+        /**
+         * Returns the content URI of a page of fruits, sorted by name.
+         *
+         * @param after key of the last fruit of the previous page, or null for the first page
+         * @param until key of the last fruit of this page, or null if it isn't known yet
+         * @param limit maximum number of fruits of the page, or 0 for no limit
+         */
+        public static Uri buildPageUri(String after, String until, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (after != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, after);
+            }
+            if (until != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_UNTIL, until);
+            }
+            if (limit > 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the content URI to search fruits by name and supplier. Every word of the query
+         * has to match the start of a word of the name or the supplier, and the fruits come
+         * sorted by relevance, the ones whose name starts with the query first.
+         *
+         * @param query text to look for
+         * @param limit maximum number of fruits to return, or 0 for no limit
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query);
+            if (limit > 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the content URI to add to the stock of the given fruit. Adding is done with an
+         * {@link ContentResolver#update} on this URI, with the quantity to add (negative to
+         * take from the stock) as {@link #COLUMN_FRUIT_QUANTITY}. It returns 1 if the stock was
+         * changed, or 0 if there isn't as much stock to take.
+         *
+         * @param id ID of the fruit
+         */
+        public static Uri buildStockUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_STOCK)
+                    .build();
+        }
+
+        /**
+         * Returns the content URI to order one unit of the given fruit. Ordering is done with
+         * an {@link ContentResolver#update} on this URI (no values are needed), which returns 1
+         * if the fruit was ordered, or 0 if it is out of stock.
+         *
+         * @param id ID of the fruit
+         */
+        public static Uri buildOrderUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_ORDER)
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the order ledger table. Each entry is one
+     * change to the quantities of a fruit: an order, or a change to its stock. Entries are only
+     * ever appended, the fruits table keeps a snapshot of the quantities they add up to, which
+     * is brought up to date in the background.
+     */
+    static final class OrderEntry implements BaseColumns {
+
+        /**
+         * ID of the fruit.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_ORDER_FRUIT_ID = "fruitId";
+        /**
+         * Change to the quantity of fruits available.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_ORDER_QUANTITY = "quantity";
+        /**
+         * Change to the quantity of fruits ordered.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_ORDER_QUANTITY_ORDERED = "quantityOrdered";
+        /**
+         * Change to the total, the price of the units ordered at the time. Dropped in version
+         * 10, the totals are computed from the prices since.
+         *
+         * Type: REAL
+         */
+        final static String COLUMN_ORDER_TOTAL = "total";
+        /**
+         * Time the change was recorded at, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_ORDER_TIME = "time";
+        /**
+         * Name of database table for the order ledger
+         */
+        final static String TABLE_NAME = "order_events";
+        /**
+         * Name of database table holding the ID of the last order the compaction went through
+         */
+        final static String COMPACTION_TABLE_NAME = "order_compaction";
+        /**
+         * Column of {@link #COMPACTION_TABLE_NAME} with that ID.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_COMPACTED_ID = "compactedId";
+    }
+
+    /**
+     * Inner class that defines constant values for the sync tables, see {@link FruitSync}.
+     */
+    static final class SyncEntry implements BaseColumns {
+
+        /**
+         * Name of database table holding the state of the sync, in a single row
+         */
+        final static String STATE_TABLE_NAME = "sync_state";
+        /**
+         * Last version given to a fruit, see {@link FruitEntry#COLUMN_FRUIT_VERSION}.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_CHANGE_VERSION = "changeVersion";
+        /**
+         * Fruits with a version up to this one have been pushed (or found unchanged).
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_SYNCED_VERSION = "syncedVersion";
+        /**
+         * Orders up to this ID have been pushed, see {@link OrderEntry}.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_SYNCED_ORDER_ID = "syncedOrderId";
+        /**
+         * Token of the server changes pulled so far, null before the first pull.
+         *
+         * Type: TEXT
+         */
+        final static String COLUMN_SERVER_TOKEN = "serverToken";
+        /**
+         * Name of database table holding the last values of the fruits both sides agreed on,
+         * by fruit ID, with the columns of the fruits table they stand for.
+         */
+        final static String BASE_TABLE_NAME = "sync_base";
+        /**
+         * Server version of the values of a fruit, in {@link #BASE_TABLE_NAME}, or of a deleted
+         * fruit, in {@link #DELETED_TABLE_NAME}.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_SERVER_VERSION = "serverVersion";
+        /**
+         * Name of database table holding the synced fruits deleted since the last push, by
+         * {@link FruitEntry#COLUMN_FRUIT_SYNC_ID}.
+         */
+        final static String DELETED_TABLE_NAME = "sync_deleted";
+    }
+
+    /**
+     * Inner class that defines constant values for the inventory summary, the totals of the
+     * whole fruits table. The summary is a single row, kept up to date by the database on every
+     * change to the fruits, so reading it costs the same whatever the number of fruits.
+     */
+    public static final class SummaryEntry implements BaseColumns {
+
+        /** The content URI to read the summary from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(FruitEntry.CONTENT_URI,
+                PATH_SUMMARY);
+        /**
+         * Number of fruits.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_FRUIT_COUNT = "fruitCount";
+        /**
+         * Quantity of fruits available, over every fruit.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_QUANTITY = "stockQuantity";
+        /**
+         * Value of the fruits available: the price times the quantity, over every fruit, in
+         * cents.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stockValue";
+        /**
+         * Quantity of fruits ordered, over every fruit.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ORDERED_QUANTITY = "orderedQuantity";
+        /**
+         * Value of the fruits ordered: the total, over every fruit, in cents.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ORDERED_VALUE = "orderedValue";
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_FRUITS + "/" + PATH_SUMMARY;
+        /**
+         * Name of database table for the summary
+         */
+        final static String TABLE_NAME = "fruits_summary";
+        /**
+         * ID of the only row of the summary table
+         */
+        final static long ROW_ID = 1;
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.fruitmarket.core.Money;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Format of the fruits exported and imported through {@link FruitEntry#CSV_URI}.
+ *
+ * The first line names the columns, the following ones hold one fruit each. An import can
+ * name any of the {@link #COLUMNS}, in any order, but it needs the name, which picks the fruits
+ * to update. An empty field leaves the column as it is, or at its default for a new fruit.
+ *
+ * The prices and totals are written in units, with two decimals, where the provider holds
+ * cents. The total is computed from the price and the quantity ordered, so it is exported, but
+ * ignored by an import.
+ */
+final class FruitCsv {
+
+    /** Columns exported, in this order, and the only ones imported */
+    static final String[] COLUMNS = {
+            FruitEntry.COLUMN_FRUIT_NAME,
+            FruitEntry.COLUMN_FRUIT_SUPPLIER,
+            FruitEntry.COLUMN_FRUIT_PRICE,
+            FruitEntry.COLUMN_FRUIT_QUANTITY,
+            FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+            FruitEntry.COLUMN_FRUIT_TOTAL };
+
+    private static final String LINE_END = "\r\n";
+
+    private FruitCsv() {
+    }
+
+    /**
+     * Write the header line, then a line for every remaining row of the given cursor, which
+     * must select the {@link #COLUMNS} in order.
+     */
+    static void write(Cursor cursor, Writer out) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i != 0) {
+                out.write(',');
+            }
+            out.write(COLUMNS[i]);
+        }
+        out.write(LINE_END);
+
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i != 0) {
+                    out.write(',');
+                }
+                if (cursor.isNull(i)) {
+                    continue;
+                }
+                String column = COLUMNS[i];
+                if (column.equals(FruitEntry.COLUMN_FRUIT_PRICE)
+                        || column.equals(FruitEntry.COLUMN_FRUIT_TOTAL)) {
+                    out.write(Money.format(cursor.getLong(i)));
+                } else {
+                    writeField(out, cursor.getString(i));
+                }
+            }
+            out.write(LINE_END);
+        }
+    }
+
+    /**
+     * Write a field, quoted only if it has to be.
+     */
+    private static void writeField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1
+                && value.indexOf('\r') == -1) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    /**
+     * Return the column of every field of the given header line, as an index of
+     * {@link #COLUMNS}.
+     *
+     * @throws IOException if a column is unknown or repeated, or the name is missing
+     */
+    static int[] readHeader(List<String> fields) throws IOException {
+        int[] columns = new int[fields.size()];
+        boolean hasName = false;
+        for (int i = 0; i < columns.length; i++) {
+            String field = fields.get(i).trim();
+            columns[i] = -1;
+            for (int j = 0; j < COLUMNS.length; j++) {
+                if (COLUMNS[j].equalsIgnoreCase(field)) {
+                    columns[i] = j;
+                }
+            }
+            if (columns[i] == -1) {
+                throw new IOException("Unknown CSV column " + field);
+            }
+            for (int j = 0; j < i; j++) {
+                if (columns[j] == columns[i]) {
+                    throw new IOException("Repeated CSV column " + field);
+                }
+            }
+            hasName |= COLUMNS[columns[i]].equals(FruitEntry.COLUMN_FRUIT_NAME);
+        }
+        if (!hasName) {
+            throw new IOException("CSV requires a " + FruitEntry.COLUMN_FRUIT_NAME + " column");
+        }
+        return columns;
+    }
+
+    /**
+     * Put the fields of a line into the given values, by the columns read from the header.
+     *
+     * @throws IllegalArgumentException if the line doesn't have one field per column, or a
+     *                                  number can't be read
+     */
+    static void readValues(int[] columns, List<String> fields, ContentValues values) {
+        if (fields.size() != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " fields, found "
+                    + fields.size());
+        }
+        for (int i = 0; i < columns.length; i++) {
+            String field = fields.get(i).trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            String column = COLUMNS[columns[i]];
+            if (column.equals(FruitEntry.COLUMN_FRUIT_TOTAL)) {
+                continue;
+            }
+            if (column.equals(FruitEntry.COLUMN_FRUIT_PRICE)) {
+                values.put(column, parseMoney(column, field));
+            } else if (column.equals(FruitEntry.COLUMN_FRUIT_QUANTITY)
+                    || column.equals(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED)) {
+                values.put(column, parseInt(column, field));
+            } else {
+                values.put(column, field);
+            }
+        }
+    }
+
+    private static long parseMoney(String column, String field) {
+        try {
+            return Money.parse(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + column + " " + field);
+        }
+    }
+
+    private static int parseInt(String column, String field) {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + column + " " + field);
+        }
+    }
+}
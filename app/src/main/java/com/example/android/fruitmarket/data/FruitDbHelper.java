@@ -3,30 +3,143 @@
  */
 package com.example.android.fruitmarket.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
 
+import com.example.android.fruitmarket.BuildConfig;
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class FruitDbHelper extends SQLiteOpenHelper {
-    //public static final String LOG_TAG = FruitDbHelper.class.getSimpleName();
+    private static final String LOG_TAG = FruitDbHelper.class.getSimpleName();
 
     /** Name of the database file */
     private static final String DATABASE_NAME = "fruitmarket.db";
 
     /**
-     * Database version. If you change the database schema, you must increment the database version.
+     * Database version. If you change the database schema, you must increment the database version
+     * and register a {@link Migration} to it in the constructor.
+     */
+    private static final int DATABASE_VERSION = 10;
+
+    /** Table keeping the progress of the chunked migrations still pending */
+    private static final String MIGRATIONS_TABLE_NAME = "migrations";
+    private static final String COLUMN_MIGRATION_VERSION = "version";
+    private static final String COLUMN_MIGRATION_NAME = "name";
+    private static final String COLUMN_MIGRATION_LAST_ID = "last_id";
+
+    private static final String SQL_CREATE_MIGRATIONS_TABLE = "CREATE TABLE "
+            + MIGRATIONS_TABLE_NAME + " ("
+            + COLUMN_MIGRATION_VERSION + " INTEGER PRIMARY KEY, "
+            + COLUMN_MIGRATION_NAME + " TEXT NOT NULL, "
+            + COLUMN_MIGRATION_LAST_ID + " INTEGER NOT NULL DEFAULT 0)";
+
+    /** Every step of the schema history, by version */
+    private final List<Migration> mMigrations = new ArrayList<Migration>();
+
+    /** SQLite settings the database is opened with */
+    private final StorageProfile mProfile;
+
+    /** Compiled statements of the hot paths, see {@link #acquireStatement(String)} */
+    private final StatementCache mStatements = new StatementCache();
+
+    /** Last fruits looked up by ID, see {@link #getRowCache()} */
+    private final RowCache mRowCache = new RowCache();
+
+    /** Helper of the app database, shared by the provider and the sync */
+    private static FruitDbHelper sInstance;
+
+    /**
+     * Returns the helper of the app database. Every writer shares it, so they share its
+     * connection, and wait for each other instead of failing on a locked database.
+     */
+    static synchronized FruitDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FruitDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Closes the helper of the app database, so the next one opens a new database. Each test
+     * runs with a database of its own.
      */
-    private static final int DATABASE_VERSION = 1;
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        if (sInstance != null) {
+            sInstance.close();
+            sInstance = null;
+        }
+    }
 
     /**
-     * Constructs a new instance of {@link FruitDbHelper}.
+     * Constructs a new instance of {@link FruitDbHelper}, using the storage profile chosen at
+     * build time.
      *
      * @param context of the app
      */
     FruitDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, StorageProfile.forName(BuildConfig.STORAGE_PROFILE));
+    }
+
+    /**
+     * Constructs a new instance of {@link FruitDbHelper} for the given database file and
+     * storage profile.
+     *
+     * @param context of the app
+     * @param name    name of the database file
+     * @param profile SQLite settings to open the database with
+     */
+    FruitDbHelper(Context context, String name, StorageProfile profile) {
+        super(context, name, null, DATABASE_VERSION);
+        mProfile = profile;
+        PictureStore pictureStore = new PictureStore(context);
+        mMigrations.add(new PictureVersionMigration());
+        mMigrations.add(new ThumbnailMigration(pictureStore));
+        mMigrations.add(new PictureStoreMigration(pictureStore));
+        mMigrations.add(new NameIndexMigration());
+        mMigrations.add(new SearchIndexMigration());
+        mMigrations.add(new SummaryMigration());
+        mMigrations.add(new LedgerMigration());
+        mMigrations.add(new SyncMigration());
+        mMigrations.add(new MoneyMigration(pictureStore));
+    }
+
+    /**
+     * This is called when the database connection is being configured, before it is created or
+     * upgraded.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // A new connection, the statements compiled for the previous one are gone
+        mStatements.clear();
+        mProfile.applyPragmas(db);
+        if (mProfile.isWriteAheadLogging()) {
+            db.enableWriteAheadLogging();
+        } else {
+            db.disableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * This is called when the database has been opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // onConfigure only exists from Jelly Bean on
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            onConfigure(db);
+        }
     }
 
     /**
@@ -34,7 +147,8 @@ class FruitDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create a String that contains the SQL statement to create the fruits table
+        // Create a String that contains the SQL statement to create the first version of the
+        // fruits table. The later versions are applied by their migrations.
         String SQL_CREATE_FRUITS_TABLE =  "CREATE TABLE " + FruitEntry.TABLE_NAME + " ("
                 + FruitEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + FruitEntry.COLUMN_FRUIT_NAME + " TEXT NOT NULL, "
@@ -47,12 +161,132 @@ class FruitDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_FRUITS_TABLE);
+        db.execSQL(SQL_CREATE_MIGRATIONS_TABLE);
+
+        // The table is empty, so there are no rows to migrate
+        for (Migration migration : mMigrations) {
+            migration.migrateSchema(db);
+        }
     }
 
     /**
      * This is called when the database needs to be upgraded.
+     *
+     * Only the schema changes run here, blocking the first access to the database. The rows are
+     * rewritten later on by {@link #migratePendingData()}.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Statements compiled against the old schema must not outlive it
+        mStatements.clear();
+
+        if (oldVersion < 6) {
+            // Versions before 6 kept no migration progress
+            db.execSQL(SQL_CREATE_MIGRATIONS_TABLE);
+        }
+
+        for (Migration migration : mMigrations) {
+            int version = migration.getVersion();
+            if (version <= oldVersion || version > newVersion) {
+                continue;
+            }
+
+            Log.i(LOG_TAG, "Migrating to version " + version + " (" + migration.getName() + ")");
+            migration.migrateSchema(db);
+            if (migration instanceof ChunkedMigration) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_MIGRATION_VERSION, version);
+                values.put(COLUMN_MIGRATION_NAME, migration.getName());
+                db.insert(MIGRATIONS_TABLE_NAME, null, values);
+            }
+        }
+    }
+
+    /**
+     * Return the compiled statement for the given SQL on the writable database, compiled once
+     * and reused from then on. It's the caller's alone until given back with
+     * {@link #releaseStatement(SQLiteStatement)}, which must happen in a finally block.
+     */
+    SQLiteStatement acquireStatement(String sql) {
+        return mStatements.acquire(getWritableDatabase(), sql);
+    }
+
+    /**
+     * Give back a statement returned by {@link #acquireStatement(String)}.
+     */
+    void releaseStatement(SQLiteStatement statement) {
+        mStatements.release(statement);
+    }
+
+    /**
+     * Return the cache of the fruits looked up by ID. Whatever writes to the fruits must
+     * invalidate it.
+     */
+    RowCache getRowCache() {
+        return mRowCache;
+    }
+
+    @Override
+    public synchronized void close() {
+        mStatements.clear();
+        super.close();
+    }
+
+    /**
+     * Run the row rewrites left pending by {@link #onUpgrade}, in version order, one chunk per
+     * transaction. Safe to call again after being interrupted: every migration resumes from its
+     * last committed chunk.
+     *
+     * @return true if any row was migrated
+     */
+    @WorkerThread
+    boolean migratePendingData() {
+        SQLiteDatabase db = getWritableDatabase();
+        boolean migrated = false;
+        for (Migration migration : mMigrations) {
+            if (!(migration instanceof ChunkedMigration)) {
+                continue;
+            }
+            ChunkedMigration chunked = (ChunkedMigration) migration;
+            String[] selectionArgs = { String.valueOf(chunked.getVersion()) };
+
+            long afterId = queryMigrationProgress(db, selectionArgs);
+            while (afterId != ChunkedMigration.NO_MORE_ROWS) {
+                db.beginTransaction();
+                try {
+                    long lastId = chunked.migrateChunk(db, afterId, chunked.getChunkSize());
+                    if (lastId == ChunkedMigration.NO_MORE_ROWS) {
+                        db.delete(MIGRATIONS_TABLE_NAME, COLUMN_MIGRATION_VERSION + "=?",
+                                selectionArgs);
+                        Log.i(LOG_TAG, "Migration " + chunked.getName() + " done");
+                    } else {
+                        ContentValues values = new ContentValues();
+                        values.put(COLUMN_MIGRATION_LAST_ID, lastId);
+                        db.update(MIGRATIONS_TABLE_NAME, values, COLUMN_MIGRATION_VERSION + "=?",
+                                selectionArgs);
+                        migrated = true;
+                    }
+                    db.setTransactionSuccessful();
+                    afterId = lastId;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Return the ID of the last row migrated by the given chunked migration, or
+     * {@link ChunkedMigration#NO_MORE_ROWS} if the migration isn't pending.
+     */
+    private static long queryMigrationProgress(SQLiteDatabase db, String[] selectionArgs) {
+        Cursor cursor = db.query(MIGRATIONS_TABLE_NAME, new String[] { COLUMN_MIGRATION_LAST_ID },
+                COLUMN_MIGRATION_VERSION + "=?", selectionArgs, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : ChunkedMigration.NO_MORE_ROWS;
+        } finally {
+            cursor.close();
+        }
     }
 }
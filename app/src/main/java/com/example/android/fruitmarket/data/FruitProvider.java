@@ -3,17 +3,55 @@
  */
 package com.example.android.fruitmarket.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.core.CsvReader;
+import com.example.android.fruitmarket.core.FruitRules;
 import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.SummaryEntry;
+import com.example.android.fruitmarket.data.PictureStore.StagedPicture;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@link ContentProvider} for Fruits app.
@@ -29,6 +67,49 @@ public class FruitProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single fruit in the fruits table */
     private static final int FRUIT_ID = 501;
 
+    /** URI matcher code for the content URI for the picture of a single fruit */
+    private static final int FRUIT_PICTURE = 502;
+
+    /** URI matcher code for the content URI to order one unit of a single fruit */
+    private static final int FRUIT_ORDER = 503;
+
+    /** URI matcher code for the content URI to search fruits by name and supplier */
+    private static final int FRUIT_SEARCH = 504;
+
+    /** URI matcher code for the content URI for the inventory summary */
+    private static final int FRUIT_SUMMARY = 505;
+
+    /** URI matcher code for the content URI to change the stock of a single fruit */
+    private static final int FRUIT_STOCK = 506;
+
+    /** URI matcher code for the content URI for the fruits as CSV */
+    private static final int FRUIT_CSV = 507;
+
+    /** Number of CSV lines imported per transaction */
+    private static final int CSV_BATCH_SIZE = 1000;
+
+    /** Encoding of the CSV streams */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Maximum number of projections whose lookup by ID SQL is kept */
+    private static final int QUERY_BY_ID_CACHE_SIZE = 16;
+
+    /** Name of each URI in the {@link ProviderStats}, by its code minus {@link #FRUITS} */
+    private static final String[] STATS_URI_NAMES = {
+            "fruits", "fruit_id", "picture", "order", "search", "summary", "stock", "csv" };
+
+    /** SQL of {@link #insert(Fruit)} */
+    private static final String SQL_INSERT_FRUIT = "INSERT INTO " + FruitEntry.TABLE_NAME + " ("
+            + FruitEntry.COLUMN_FRUIT_NAME + "," + FruitEntry.COLUMN_FRUIT_SUPPLIER + ","
+            + FruitEntry.COLUMN_FRUIT_PRICE + "," + FruitEntry.COLUMN_FRUIT_QUANTITY
+            + ") VALUES (?,?,?,?)";
+
+    /** SQL of {@link #update(Uri, Fruit)} */
+    private static final String SQL_UPDATE_FRUIT = "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+            + FruitEntry.COLUMN_FRUIT_NAME + "=?," + FruitEntry.COLUMN_FRUIT_SUPPLIER + "=?,"
+            + FruitEntry.COLUMN_FRUIT_PRICE + "=?," + FruitEntry.COLUMN_FRUIT_QUANTITY + "=? WHERE "
+            + FruitEntry._ID + "=?";
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -55,20 +136,112 @@ public class FruitProvider extends ContentProvider {
         // For example, "content://com.example.android.fruits/fruits/3" matches, but
         // "content://com.example.android.fruits/fruits" (without a number at the end) doesn't match.
         sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY, FruitContract.PATH_FRUITS + "/#", FRUIT_ID);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/#/picture" will
+        // map to the integer code {@link #FRUIT_PICTURE}. This URI is only used to stream the
+        // picture of ONE single fruit, through {@link #openFile(Uri, String)}.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/#/" + FruitContract.PATH_PICTURE, FRUIT_PICTURE);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/#/order" will
+        // map to the integer code {@link #FRUIT_ORDER}. Updating this URI orders one unit of
+        // ONE single fruit.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/#/" + FruitContract.PATH_ORDER, FRUIT_ORDER);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/#/stock" will
+        // map to the integer code {@link #FRUIT_STOCK}. Updating this URI adds to the stock of
+        // ONE single fruit.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/#/" + FruitContract.PATH_STOCK, FRUIT_STOCK);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/search" will
+        // map to the integer code {@link #FRUIT_SEARCH}. This URI is used to search MULTIPLE
+        // rows of the fruits table through their full-text index.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/" + FruitContract.PATH_SEARCH, FRUIT_SEARCH);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/summary" will
+        // map to the integer code {@link #FRUIT_SUMMARY}. This URI is used to read the ONE single
+        // row of the summary table, with the totals of the fruits table.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/" + FruitContract.PATH_SUMMARY, FRUIT_SUMMARY);
+
+        // The content URI of the form "content://com.example.android.fruits/fruits/csv" will
+        // map to the integer code {@link #FRUIT_CSV}. This URI is only used to stream ALL the
+        // fruits out as CSV, or to import them, through {@link #openFile(Uri, String)}.
+        sUriMatcher.addURI(FruitContract.CONTENT_AUTHORITY,
+                FruitContract.PATH_FRUITS + "/" + FruitContract.PATH_CSV, FRUIT_CSV);
     }
 
     /** Database helper object */
     private FruitDbHelper mDbHelper;
 
+    /** Store holding the fruit pictures */
+    private PictureStore mPictureStore;
+
+    /** Collects the changes, and notifies them at most once per window */
+    private ChangeNotifier mNotifier;
+
+    /** Records the orders and stock changes */
+    private OrderLedger mLedger;
+
+    /** Last fruits looked up by ID */
+    private RowCache mRowCache;
+
+    /** Calls made to the provider, kept only in debug builds */
+    private final ProviderStats mStats = new ProviderStats(STATS_URI_NAMES);
+
+    /** SQL of the lookups by ID, by their projection */
+    private final LruCache<String, String> mQueryByIdSql =
+            new LruCache<String, String>(QUERY_BY_ID_CACHE_SIZE);
+
     @Override
     public boolean onCreate() {
-        mDbHelper = new FruitDbHelper(getContext());
+        mDbHelper = FruitDbHelper.getInstance(getContext());
+        mPictureStore = new PictureStore(getContext());
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                BuildConfig.NOTIFY_WINDOW_MS, mStats);
+        mLedger = new OrderLedger(mDbHelper);
+        mRowCache = mDbHelper.getRowCache();
+
+        // Rewrite the rows left behind by a database upgrade, and fold the orders recorded
+        // since the last compaction, without blocking the app
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDbHelper.migratePendingData()) {
+                    mRowCache.clear();
+                    mNotifier.notifyAllItems();
+                }
+                mLedger.compact();
+            }
+        });
         return true;
     }
 
+    /**
+     * Notifies the changes still held, and stops the thread notifying them. The system never
+     * shuts a provider down, only tests do.
+     */
+    @Override
+    public void shutdown() {
+        mNotifier.shutdown();
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        if (!ProviderStats.ENABLED) {
+            return performQuery(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        long start = mStats.begin();
+        Cursor cursor = performQuery(uri, projection, selection, selectionArgs, sortOrder);
+        return mStats.endQuery(getStatsIndex(uri), start, cursor);
+    }
+
+    private Cursor performQuery(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -79,11 +252,18 @@ public class FruitProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case FRUITS:
+                // A page of fruits was requested, query it by its keys
+                if (isPageQuery(uri)) {
+                    cursor = queryPage(database, uri, projection, selection, selectionArgs,
+                            sortOrder);
+                    break;
+                }
+
                 // For the FRUITS code, query the fruits table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the fruits table.
-                cursor = database.query(FruitEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(FruitEntry.CURRENT_VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
                 break;
             case FRUIT_ID:
                 // For the FRUIT_ID code, extract out the ID from the URI.
@@ -94,13 +274,45 @@ public class FruitProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = FruitEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                long id = ContentUris.parseId(uri);
+                selectionArgs = new String[] { String.valueOf(id) };
+
+                // The last fruits looked up are kept whole in memory, so looking the same fruit
+                // up again, with any projection, doesn't read the database. Otherwise the whole
+                // row is read and kept.
+                RowCache.Row row = mRowCache.get(id);
+                if (row == null) {
+                    long generation = mRowCache.getGeneration();
+                    row = RowCache.readRow(database.rawQuery(getQueryByIdSql(null),
+                            selectionArgs));
+                    if (row != null) {
+                        mRowCache.put(id, row, generation);
+                    }
+                }
+                cursor = row == null ? null : row.toCursor(projection);
+                if (cursor != null) {
+                    break;
+                }
 
                 // This will perform a query on the fruits table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(FruitEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // Cursor containing that row of the table. A single row needs no sort order, so
+                // the SQL only depends on the projection, and is built once per projection.
+                cursor = database.rawQuery(getQueryByIdSql(projection), selectionArgs);
+                break;
+            case FRUIT_SEARCH:
+                // For the FRUIT_SEARCH code, look the text up in the full-text index. The
+                // results come sorted by relevance, so no sort order is accepted.
+                if (sortOrder != null) {
+                    throw new IllegalArgumentException("Search results are sorted by relevance: "
+                            + uri);
+                }
+                cursor = querySearch(database, uri, projection, selection, selectionArgs);
+                break;
+            case FRUIT_SUMMARY:
+                // For the FRUIT_SUMMARY code, read the single row the triggers keep up to date,
+                // instead of going through every fruit
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -109,14 +321,222 @@ public class FruitProvider extends ContentProvider {
         // Set notification URI on the Cursor,
         // so we know what content URI the Cursor was created for.
         // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // Search results and the summary depend on any fruit, so they watch the whole table:
+        // changes are notified on the item URIs, which their URIs don't contain.
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                match == FRUIT_SEARCH || match == FRUIT_SUMMARY ? FruitEntry.CONTENT_URI : uri);
 
         // Return the cursor
         return cursor;
     }
 
+    /**
+     * Return the SQL to query a single fruit by its ID with the given projection, built only the
+     * first time it is asked for.
+     */
+    private String getQueryByIdSql(String[] projection) {
+        String key = projection == null ? "*" : TextUtils.join(",", projection);
+        String sql = mQueryByIdSql.get(key);
+        if (sql == null) {
+            sql = SQLiteQueryBuilder.buildQueryString(false, FruitEntry.CURRENT_VIEW_NAME,
+                    projection, FruitEntry._ID + "=?", null, null, null, null);
+            mQueryByIdSql.put(key, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Search the fruits whose name and supplier match every word of the query of the given URI.
+     * Every word is matched as a prefix, and results are ranked by {@link SearchRank}.
+     */
+    private Cursor querySearch(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs) {
+        // Only keep the letters and digits of the query, so nothing in it can be taken as
+        // a full-text query operator
+        String query = uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_QUERY);
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; query != null && i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() != 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+
+        // Nothing to look for, so nothing is found
+        if (words.isEmpty()) {
+            return database.query(FruitEntry.CURRENT_VIEW_NAME, projection, "0", null,
+                    null, null, null);
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String w : words) {
+            match.append(match.length() == 0 ? "" : " ").append(w).append('*');
+        }
+
+        // Find the matching fruits first, with their match counts, to rank them
+        StringBuilder sql = new StringBuilder("SELECT ").append(FruitEntry.TABLE_NAME)
+                .append('.').append(FruitEntry._ID).append(", ").append(FruitEntry.TABLE_NAME)
+                .append('.').append(FruitEntry.COLUMN_FRUIT_NAME).append(", search.info FROM ")
+                .append(FruitEntry.CURRENT_VIEW_NAME).append(" AS ")
+                .append(FruitEntry.TABLE_NAME)
+                .append(" JOIN (SELECT docid, matchinfo(").append(FruitEntry.SEARCH_TABLE_NAME)
+                .append(", 'pcx') AS info FROM ").append(FruitEntry.SEARCH_TABLE_NAME)
+                .append(" WHERE ").append(FruitEntry.SEARCH_TABLE_NAME)
+                .append(" MATCH ?) AS search ON ").append(FruitEntry.TABLE_NAME).append('.')
+                .append(FruitEntry._ID).append(" = search.docid");
+
+        List<String> args = new ArrayList<String>();
+        args.add(match.toString());
+        if (selection != null) {
+            sql.append(" WHERE (").append(selection).append(')');
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+
+        long[] ids;
+        Cursor matches = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            ids = SearchRank.rank(matches, words.get(0));
+        } finally {
+            matches.close();
+        }
+
+        int count = ids.length;
+        String limit = uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                int max = Integer.parseInt(limit);
+                // A negative limit means none, like in SQL
+                count = max < 0 ? count : Math.min(count, max);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit in " + uri);
+            }
+        }
+        if (count <= 0) {
+            return database.query(FruitEntry.CURRENT_VIEW_NAME, projection, "0", null,
+                    null, null, null);
+        }
+
+        // Then read the best ones, in their rank order
+        StringBuilder in = new StringBuilder();
+        StringBuilder order = new StringBuilder("CASE ").append(FruitEntry._ID);
+        for (int i = 0; i < count; i++) {
+            in.append(i == 0 ? "" : ",").append(ids[i]);
+            order.append(" WHEN ").append(ids[i]).append(" THEN ").append(i);
+        }
+        order.append(" END");
+        return database.query(FruitEntry.CURRENT_VIEW_NAME, projection,
+                FruitEntry._ID + " IN (" + in + ")", null, null, null, order.toString());
+    }
+
+    /**
+     * Return true if the given URI asks for a page of fruits.
+     */
+    private static boolean isPageQuery(Uri uri) {
+        return uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_LIMIT) != null
+                || uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_AFTER) != null
+                || uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_UNTIL) != null;
+    }
+
+    /**
+     * Query a page of fruits sorted by name and ID. Pages start after the key given by
+     * {@link FruitEntry#QUERY_PARAMETER_AFTER}, and end with the key given by
+     * {@link FruitEntry#QUERY_PARAMETER_UNTIL} or after {@link FruitEntry#QUERY_PARAMETER_LIMIT}
+     * fruits. Both keys are resolved through the name index, so fetching a page costs the same
+     * whatever its position in the table.
+     */
+    private Cursor queryPage(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Pages are always sorted by name: " + uri);
+        }
+
+        StringBuilder where = new StringBuilder();
+        List<String> whereArgs = new ArrayList<String>();
+        if (selection != null) {
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                whereArgs.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+
+        String after = uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_AFTER);
+        if (after != null) {
+            // (name, _id) > (afterName, afterId)
+            appendPageBound(where, whereArgs, after, ">=", ">", uri);
+        }
+
+        String until = uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_UNTIL);
+        if (until != null) {
+            // (name, _id) <= (untilName, untilId)
+            appendPageBound(where, whereArgs, until, "<=", "<=", uri);
+        }
+
+        String limit = uri.getQueryParameter(FruitEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) < 0) {
+                    throw new IllegalArgumentException("Invalid page limit in " + uri);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page limit in " + uri);
+            }
+        }
+
+        return database.query(FruitEntry.CURRENT_VIEW_NAME, projection,
+                where.length() == 0 ? null : where.toString(),
+                whereArgs.toArray(new String[whereArgs.size()]), null, null,
+                FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry._ID, limit);
+    }
+
+    /**
+     * Append to the given selection the condition comparing the (name, ID) pair of the fruits to
+     * the given page key. The name comparison alone can use the name index, the ID one breaks
+     * the ties between fruits with the same name.
+     */
+    private static void appendPageBound(StringBuilder where, List<String> whereArgs, String key,
+                                        String nameOperator, String idOperator, Uri uri) {
+        // The ID is a number, so the last comma always separates it from the name
+        int separator = key.lastIndexOf(',');
+        if (separator == -1) {
+            throw new IllegalArgumentException("Invalid page key in " + uri);
+        }
+        String name = key.substring(0, separator);
+        String id = key.substring(separator + 1);
+        try {
+            Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page key in " + uri);
+        }
+
+        if (where.length() != 0) {
+            where.append(" AND ");
+        }
+        where.append(FruitEntry.COLUMN_FRUIT_NAME).append(nameOperator).append("? AND (")
+                .append(FruitEntry.COLUMN_FRUIT_NAME).append("<>? OR ")
+                .append(FruitEntry._ID).append(idOperator).append("?)");
+        whereArgs.add(name);
+        whereArgs.add(name);
+        whereArgs.add(id);
+    }
+
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+        if (!ProviderStats.ENABLED) {
+            return performInsert(uri, contentValues);
+        }
+        long start = mStats.begin();
+        Uri itemUri = performInsert(uri, contentValues);
+        mStats.end(getStatsIndex(uri), ProviderStats.INSERT, start, itemUri == null ? 0 : 1);
+        return itemUri;
+    }
+
+    private Uri performInsert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case FRUITS:
@@ -131,58 +551,261 @@ public class FruitProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertFruit(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(FruitEntry.COLUMN_FRUIT_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Fruit requires a name");
-        }
+        // Check that the values describe a valid fruit
+        validateInsert(values);
 
-        // Check that the gender is valid
-        Double price = values.getAsDouble(FruitEntry.COLUMN_FRUIT_PRICE);
-        if (price == null || price < 0.0) {
-            throw new IllegalArgumentException("Fruit requires valid price");
+        // Stage the picture, stamp its version and build its thumbnail
+        StagedPicture picture = null;
+        if (values.containsKey(FruitEntry.COLUMN_FRUIT_PICTURE)) {
+            values = new ContentValues(values);
+            picture = stagePicture(values);
         }
 
-        // If the weight is provided, check that it's greater than or equal to 0 kg
-        Integer quantity = values.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY);
-        if (quantity != null && quantity < 0) {
-            throw new IllegalArgumentException("Fruit requires valid quantity");
-        }
-
-        // No need to check the breed, any value is valid (including null).
-
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert the new fruit with the given values
-        long id = database.insert(FruitEntry.TABLE_NAME, null, values);
+        // Insert the new fruit with the given values, storing its picture along
+        long id = -1;
+        database.beginTransaction();
+        try {
+            commitPicture(database, picture);
+            id = database.insert(FruitEntry.TABLE_NAME, null, values);
+            if (id != -1) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+            finishPicture(database, picture, id != -1);
+        }
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the fruit content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Notify all listeners that the data has changed for the new fruit. Nothing is cached
+        // for it: IDs are never given again, and missing fruits aren't cached
+        mNotifier.notifyItem(id);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Check that the given values describe a valid new fruit, throw an
+     * {@link IllegalArgumentException} otherwise.
+     */
+    private static void validateInsert(ContentValues values) {
+        // Check that the name is not null, the price is valid, and the quantity, if provided,
+        // is greater than or equal to 0 kg
+        FruitRules.checkName(values.getAsString(FruitEntry.COLUMN_FRUIT_NAME));
+        FruitRules.checkPrice(values.getAsLong(FruitEntry.COLUMN_FRUIT_PRICE));
+        FruitRules.checkQuantity(values.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY));
+        checkNotComputed(values);
+
+        // No need to check the supplier, any value is valid (including null).
+    }
+
+    /**
+     * Throw an {@link IllegalArgumentException} if the given values write the total, which is
+     * computed from the price and the quantity ordered.
+     */
+    private static void checkNotComputed(ContentValues values) {
+        if (values.containsKey(FruitEntry.COLUMN_FRUIT_TOTAL)) {
+            throw new IllegalArgumentException("Fruit total is computed, it can't be written");
+        }
+    }
+
+    /**
+     * Insert many fruits at once, in a single transaction, reusing one compiled statement per
+     * set of columns. The batch is all or nothing: if a fruit fails the
+     * {@link #insertFruit(Uri, ContentValues)} validation rules, or the database rejects it,
+     * nothing is inserted, and an {@link IllegalArgumentException} tells which fruit and why.
+     * Listeners are notified only once, at the end.
+     *
+     * @return the number of fruits inserted, which is the number of given values
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (!ProviderStats.ENABLED) {
+            return performBulkInsert(uri, values);
+        }
+        long start = mStats.begin();
+        int rowsInserted = performBulkInsert(uri, values);
+        mStats.end(getStatsIndex(uri), ProviderStats.INSERT, start, rowsInserted);
+        return rowsInserted;
+    }
+
+    private int performBulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != FRUITS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Check every fruit and stage its picture first, so the transaction only has to move
+        // the pictures in place
+        ContentValues[] rows = new ContentValues[values.length];
+        StagedPicture[] pictures = new StagedPicture[values.length];
+        long[] ids = new long[values.length];
+        boolean inserted = false;
+        try {
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    validateInsert(values[i]);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Fruit " + i + " of bulk insert is invalid: " + e.getMessage(), e);
+                }
+                rows[i] = values[i];
+                if (values[i].containsKey(FruitEntry.COLUMN_FRUIT_PICTURE)) {
+                    rows[i] = new ContentValues(values[i]);
+                    pictures[i] = stagePicture(rows[i]);
+                }
+            }
+
+            // Compiled insert statements, by the columns they insert
+            Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < rows.length; i++) {
+                    commitPicture(database, pictures[i]);
+                    try {
+                        ids[i] = executeInsert(database, statements, rows[i]);
+                    } catch (SQLException e) {
+                        throw new IllegalArgumentException(
+                                "Fruit " + i + " of bulk insert was rejected: " + e.getMessage(),
+                                e);
+                    }
+                }
+                database.setTransactionSuccessful();
+                inserted = true;
+            } finally {
+                database.endTransaction();
+                for (SQLiteStatement statement : statements.values()) {
+                    statement.close();
+                }
+            }
+        } finally {
+            // Pictures stored by a rolled back batch are deleted again, unless shared
+            for (StagedPicture picture : pictures) {
+                finishPicture(database, picture, inserted);
+            }
+        }
+
+        // Every inserted fruit is notified at once
+        if (ids.length != 0) {
+            mNotifier.notifyItems(ids);
+        }
+        return ids.length;
+    }
+
+    /**
+     * Insert the given values through the compiled statement matching their columns. Return the
+     * ID of the new fruit.
+     */
+    private static long executeInsert(SQLiteDatabase database,
+                                      Map<String, SQLiteStatement> statements,
+                                      ContentValues values) {
+        // Sort the columns, so every row with the same columns shares the same statement
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        String sql = buildInsertSql(columns);
+
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+        return statement.executeInsert();
+    }
+
+    /**
+     * Return the SQL to insert a fruit with the given columns.
+     */
+    private static String buildInsertSql(String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(FruitEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Apply the given operations in a single transaction, notifying their changes only once, at
+     * the end.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        mNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            return results;
+        } finally {
+            database.endTransaction();
+
+            // The operations dropped their fruits from the cache before the batch committed, so
+            // they could have been read and cached again as they were before it
+            mRowCache.clear();
+            mNotifier.endBatch();
+        }
+    }
+
     @Override
     public int update(@NonNull Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        if (!ProviderStats.ENABLED) {
+            return performUpdate(uri, contentValues, selection, selectionArgs);
+        }
+        long start = mStats.begin();
+        int rowsUpdated = performUpdate(uri, contentValues, selection, selectionArgs);
+        mStats.end(getStatsIndex(uri), ProviderStats.UPDATE, start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int performUpdate(Uri uri, ContentValues contentValues, String selection,
+                              String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case FRUITS:
-                return updateFruit(uri, contentValues, selection, selectionArgs);
+                return updateFruit(contentValues, selection, selectionArgs);
             case FRUIT_ID:
                 // For the FRUIT_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
+                // Unless the picture changes, this goes through a compiled statement.
+                long id = ContentUris.parseId(uri);
+                if (!contentValues.containsKey(FruitEntry.COLUMN_FRUIT_PICTURE)) {
+                    return updateFruitById(id, contentValues);
+                }
                 selection = FruitEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateFruit(uri, contentValues, selection, selectionArgs);
+                selectionArgs = new String[] { String.valueOf(id) };
+                return updateFruit(contentValues, selection, selectionArgs);
+            case FRUIT_ORDER:
+                // For the FRUIT_ORDER code, the ID is the segment before "order". The values,
+                // selection and selection arguments are ignored.
+                return orderFruit(Long.parseLong(uri.getPathSegments().get(1)));
+            case FRUIT_STOCK:
+                // For the FRUIT_STOCK code, the ID is the segment before "stock", and the
+                // quantity to add is the only value.
+                return changeStock(Long.parseLong(uri.getPathSegments().get(1)), contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -193,61 +816,341 @@ public class FruitProvider extends ContentProvider {
      * specified in the selection and selection arguments (which could be 0 or 1 or more fruits).
      * Return the number of rows that were successfully updated.
      */
-    private int updateFruit(Uri uri, ContentValues values, String selection,
+    private int updateFruit(ContentValues values, String selection, String[] selectionArgs) {
+        // Check that the values are valid for an existing fruit
+        validateUpdate(values);
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // If the picture changes, stage it, bump its version and rebuild its thumbnail
+        StagedPicture picture = null;
+        if (values.containsKey(FruitEntry.COLUMN_FRUIT_PICTURE)) {
+            values = new ContentValues(values);
+            picture = stagePicture(values);
+        }
+        return updateFruit(values, picture, selection, selectionArgs);
+    }
+
+    /**
+     * Update the fruits matching the given selection and selection arguments with the given
+     * values, already validated, storing the given staged picture along (if any). Return the
+     * number of rows that were successfully updated.
+     */
+    private int updateFruit(ContentValues values, StagedPicture picture, String selection,
                             String[] selectionArgs) {
+        // Get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean pictureChanged = values.containsKey(FruitEntry.COLUMN_FRUIT_PICTURE);
+
+        // Remember which fruits are affected, so they can be notified (and their cached
+        // thumbnails dropped and replaced pictures released, if the picture changes) once the
+        // update is done. The transaction keeps them from changing in between.
+        long[] ids;
+        int rowsUpdated = 0;
+        database.beginTransaction();
+        try {
+            ids = queryIds(database, selection, selectionArgs);
+            if (hasLedgerColumns(values)) {
+                mLedger.fold(ids);
+            }
+            String[] replacedPictures = null;
+            if (pictureChanged) {
+                replacedPictures = queryPictures(database, selection, selectionArgs);
+                commitPicture(database, picture);
+            }
+
+            // Perform the update on the database and get the number of rows affected
+            rowsUpdated = database.update(FruitEntry.TABLE_NAME, values, selection, selectionArgs);
+            if (pictureChanged) {
+                releasePictures(database, replacedPictures);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            finishPicture(database, picture, rowsUpdated != 0);
+        }
+        if (rowsUpdated != 0) {
+            mRowCache.invalidate(ids);
+        }
+
+        if (pictureChanged && rowsUpdated != 0) {
+            invalidateThumbnails(ids);
+        }
+
+        // If 1 or more rows were updated, then notify all listeners that those fruits changed
+        if (rowsUpdated != 0) {
+            mNotifier.notifyItems(ids);
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    /**
+     * Update a single fruit, through a compiled statement cached for its set of columns. The
+     * picture must not be part of the values. Return the number of rows updated (0 or 1).
+     */
+    private int updateFruitById(long id, ContentValues values) {
+        // Same rules as any update
+        validateUpdate(values);
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Sort the columns, so every update of the same columns shares the same statement
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            // The quantities written replace the ones read, tail included
+            if (hasLedgerColumns(values)) {
+                mLedger.fold(new long[] { id });
+            }
+            SQLiteStatement statement = mDbHelper.acquireStatement(buildUpdateByIdSql(columns));
+            try {
+                statement.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                }
+                statement.bindLong(columns.length + 1, id);
+                rowsUpdated = statement.executeUpdateDelete();
+            } finally {
+                mDbHelper.releaseStatement(statement);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If the row was updated, then notify all listeners that the fruit changed
+        if (rowsUpdated != 0) {
+            mRowCache.invalidate(id);
+            mNotifier.notifyItem(id);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Return the SQL to update the given columns of a single fruit, by its ID.
+     */
+    private static String buildUpdateByIdSql(String[] columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(FruitEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]).append("=?");
+        }
+        return sql.append(" WHERE ").append(FruitEntry._ID).append("=?").toString();
+    }
+
+    /**
+     * Insert the given fruit, through a cached compiled statement bound with its primitive
+     * values, with no {@link ContentValues} to box them in and unbox them out of. Only its name,
+     * supplier, price and quantity are written. Return the content URI of the new fruit, or null
+     * if the insertion failed.
+     *
+     * Called in process by {@link FruitWriter}, with the same rules and notifications as
+     * {@link #insert(Uri, ContentValues)}.
+     */
+    Uri insert(Fruit fruit) {
+        if (!ProviderStats.ENABLED) {
+            return insertFruit(fruit);
+        }
+        long start = mStats.begin();
+        Uri itemUri = insertFruit(fruit);
+        mStats.end(getStatsIndex(FruitEntry.CONTENT_URI), ProviderStats.INSERT, start,
+                itemUri == null ? 0 : 1);
+        return itemUri;
+    }
+
+    private Uri insertFruit(Fruit fruit) {
+        validate(fruit);
+
+        SQLiteStatement statement = mDbHelper.acquireStatement(SQL_INSERT_FRUIT);
+        long id;
+        try {
+            bindFruit(statement, fruit);
+            id = statement.executeInsert();
+        } finally {
+            mDbHelper.releaseStatement(statement);
+        }
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + fruit.name);
+            return null;
+        }
+
+        mNotifier.notifyItem(id);
+        return ContentUris.withAppendedId(FruitEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Update the name, supplier, price and quantity of the fruit with the given content URI to
+     * the ones of the given fruit, through a cached compiled statement bound with its primitive
+     * values. Return the number of rows updated (0 or 1).
+     *
+     * Called in process by {@link FruitWriter}, with the same rules and notifications as
+     * {@link #update(Uri, ContentValues, String, String[])}.
+     */
+    int update(Uri uri, Fruit fruit) {
+        if (sUriMatcher.match(uri) != FRUIT_ID) {
+            throw new IllegalArgumentException("Update is not supported for " + uri);
+        }
+        if (!ProviderStats.ENABLED) {
+            return updateFruit(ContentUris.parseId(uri), fruit);
+        }
+        long start = mStats.begin();
+        int rowsUpdated = updateFruit(ContentUris.parseId(uri), fruit);
+        mStats.end(getStatsIndex(uri), ProviderStats.UPDATE, start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int updateFruit(long id, Fruit fruit) {
+        validate(fruit);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            // The quantity written replaces the one read, tail included
+            mLedger.fold(new long[] { id });
+            SQLiteStatement statement = mDbHelper.acquireStatement(SQL_UPDATE_FRUIT);
+            try {
+                bindFruit(statement, fruit);
+                statement.bindLong(5, id);
+                rowsUpdated = statement.executeUpdateDelete();
+            } finally {
+                mDbHelper.releaseStatement(statement);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsUpdated != 0) {
+            mRowCache.invalidate(id);
+            mNotifier.notifyItem(id);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Check that the given fruit is valid, throw an {@link IllegalArgumentException} otherwise.
+     */
+    private static void validate(Fruit fruit) {
+        FruitRules.checkName(fruit.name);
+        FruitRules.checkPrice(fruit.price);
+        FruitRules.checkQuantity(fruit.quantity);
+    }
+
+    /**
+     * Bind the name, supplier, price and quantity of the given fruit to the first four
+     * parameters of the given statement, in that order.
+     */
+    private static void bindFruit(SQLiteStatement statement, Fruit fruit) {
+        statement.bindString(1, fruit.name);
+        if (fruit.supplier == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, fruit.supplier);
+        }
+        statement.bindLong(3, fruit.price);
+        statement.bindLong(4, fruit.quantity);
+    }
+
+    /**
+     * Check that the given values are valid changes for an existing fruit, throw an
+     * {@link IllegalArgumentException} otherwise.
+     */
+    private static void validateUpdate(ContentValues values) {
         // If the {@link FruitEntry#COLUMN_FRUIT_NAME} key is present,
         // check that the name value is not null.
         if (values.containsKey(FruitEntry.COLUMN_FRUIT_NAME)) {
-            String name = values.getAsString(FruitEntry.COLUMN_FRUIT_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Fruit requires a name");
-            }
+            FruitRules.checkName(values.getAsString(FruitEntry.COLUMN_FRUIT_NAME));
         }
 
         // If the {@link FruitEntry#COLUMN_FRUIT_PRICE} key is present,
         // check that the price value is valid.
         if (values.containsKey(FruitEntry.COLUMN_FRUIT_PRICE)) {
-            Double price = values.getAsDouble(FruitEntry.COLUMN_FRUIT_PRICE);
-            if (price == null || price < 0.0) {
-                throw new IllegalArgumentException("Fruit requires valid price");
-            }
+            FruitRules.checkPrice(values.getAsLong(FruitEntry.COLUMN_FRUIT_PRICE));
         }
 
         // If the {@link FruitEntry#COLUMN_FRUIT_QUANTITY} key is present,
         // check that the quantity value is valid.
         if (values.containsKey(FruitEntry.COLUMN_FRUIT_QUANTITY)) {
             // Check that the weight is greater than or equal to 0 kg
-            Integer quantity = values.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY);
-            if (quantity != null && quantity < 0) {
-                throw new IllegalArgumentException("Fruit requires valid quantity");
-            }
+            FruitRules.checkQuantity(values.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY));
         }
+        checkNotComputed(values);
 
         // No need to check the supplier and/or the picture, any value is valid (including null).
+    }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
-        }
+    /**
+     * Return true if the given values write any of the quantities kept by the order ledger.
+     * Their tails must be folded first, or they would be applied on top of the new values.
+     */
+    private static boolean hasLedgerColumns(ContentValues values) {
+        return values.containsKey(FruitEntry.COLUMN_FRUIT_QUANTITY)
+                || values.containsKey(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED);
+    }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Order one unit of the given fruit, atomically, as long as there is stock left. The order
+     * is appended to the {@link OrderLedger}, the fruit row isn't written.
+     * Return 1 if the fruit was ordered, 0 if it is out of stock (or doesn't exist).
+     */
+    private int orderFruit(long id) {
+        int ordered = mLedger.order(id);
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(FruitEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Notify the listeners of this fruit only once, and only if something was ordered
+        if (ordered != 0) {
+            mRowCache.invalidate(id);
+            mNotifier.notifyItem(id);
+        }
+        return ordered;
+    }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Add the {@link FruitEntry#COLUMN_FRUIT_QUANTITY} of the given values to the stock of the
+     * given fruit, atomically, as long as the stock doesn't go below 0. The change is appended
+     * to the {@link OrderLedger}, the fruit row isn't written.
+     * Return 1 if the stock was changed, 0 otherwise.
+     */
+    private int changeStock(long id, ContentValues values) {
+        Integer quantity = values == null ? null
+                : values.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY);
+        if (quantity == null || values.size() != 1) {
+            throw new IllegalArgumentException("Stock changes require only a quantity");
+        }
+        if (quantity == 0) {
+            return 0;
         }
 
-        // Return the number of rows updated
-        return rowsUpdated;
+        int changed = mLedger.changeStock(id, quantity);
+        if (changed != 0) {
+            mRowCache.invalidate(id);
+            mNotifier.notifyItem(id);
+        }
+        return changed;
     }
 
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        if (!ProviderStats.ENABLED) {
+            return performDelete(uri, selection, selectionArgs);
+        }
+        long start = mStats.begin();
+        int rowsDeleted = performDelete(uri, selection, selectionArgs);
+        mStats.end(getStatsIndex(uri), ProviderStats.DELETE, start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int performDelete(Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -257,37 +1160,588 @@ public class FruitProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case FRUITS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(FruitEntry.TABLE_NAME, selection, selectionArgs);
+                if (selection == null) {
+                    // Deleting every fruit, so no thumbnail is worth keeping
+                    rowsDeleted = deleteFruits(database, null, null);
+                    mRowCache.clear();
+                    ThumbnailCache.getInstance(getContext()).clear();
+                    if (rowsDeleted != 0) {
+                        mNotifier.notifyAllItems();
+                    }
+                    break;
+                }
+
+                // Delete all rows that match the selection and selection args. The transaction
+                // keeps the fruits deleted from changing once their IDs are read, so every one
+                // of them is dropped from the caches and notified once it's committed
+                long[] ids;
+                database.beginTransaction();
+                try {
+                    ids = queryIds(database, selection, selectionArgs);
+                    rowsDeleted = deleteFruits(database, selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                mRowCache.invalidate(ids);
+                invalidateThumbnails(ids);
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyItems(ids);
+                }
                 break;
             case FRUIT_ID:
                 // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
                 selection = FruitEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(FruitEntry.TABLE_NAME, selection, selectionArgs);
+                selectionArgs = new String[] { String.valueOf(id) };
+                rowsDeleted = deleteFruits(database, selection, selectionArgs);
+                mRowCache.invalidate(id);
+                ThumbnailCache.getInstance(getContext()).invalidate(id);
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyItem(id);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
-
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Delete the fruits matching the given selection and selection arguments, and the pictures
+     * no other fruit uses, in one transaction. Return the number of rows deleted.
+     */
+    private int deleteFruits(SQLiteDatabase database, String selection,
+                             String[] selectionArgs) {
+        database.beginTransaction();
+        try {
+            String[] pictures = queryPictures(database, selection, selectionArgs);
+            int rowsDeleted = database.delete(FruitEntry.TABLE_NAME, selection, selectionArgs);
+            releasePictures(database, pictures);
+            database.setTransactionSuccessful();
+            return rowsDeleted;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Put a new picture version and the thumbnail of the picture in the given values. A picture
+     * given as bytes is staged in the {@link PictureStore}, and replaced by its reference.
+     *
+     * @return the staged picture, to commit inside the transaction writing the values, and
+     * finish after it; or null if the picture was given as a reference
+     */
+    private StagedPicture stagePicture(ContentValues values) {
+        Object picture = values.get(FruitEntry.COLUMN_FRUIT_PICTURE);
+        StagedPicture staged = null;
+        File file;
+        if (picture instanceof byte[]) {
+            try {
+                staged = mPictureStore.stage((byte[]) picture);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to store fruit picture", e);
+            }
+            values.put(FruitEntry.COLUMN_FRUIT_PICTURE, staged.reference);
+            file = staged.file;
+        } else {
+            file = mPictureStore.getFile(values.getAsString(FruitEntry.COLUMN_FRUIT_PICTURE));
+        }
+        putPictureVersion(values, ThumbnailCache.encodeThumbnail(file));
+        return staged;
+    }
+
+    /**
+     * Put a new picture version and the given thumbnail (which may be null) in the given values.
+     */
+    private static void putPictureVersion(ContentValues values, byte[] thumbnail) {
+        values.put(FruitEntry.COLUMN_FRUIT_PICTURE_VERSION, System.currentTimeMillis());
+        if (thumbnail != null) {
+            values.put(FruitEntry.COLUMN_FRUIT_THUMBNAIL, thumbnail);
+        } else {
+            values.putNull(FruitEntry.COLUMN_FRUIT_THUMBNAIL);
+        }
+    }
+
+    /**
+     * Store the given staged picture (if any), inside the transaction writing the fruits that use
+     * it.
+     */
+    private void commitPicture(SQLiteDatabase database, StagedPicture picture) {
+        if (picture == null) {
+            return;
+        }
+        try {
+            mPictureStore.commit(database, picture);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to store fruit picture", e);
+        }
+    }
+
+    /**
+     * Clean up after the given staged picture (if any), once the transaction that was to write
+     * the fruits using it is over. If it wrote nothing, the stored picture is deleted again,
+     * unless some other fruit uses it.
+     */
+    private void finishPicture(SQLiteDatabase database, StagedPicture picture, boolean written) {
+        if (picture == null) {
+            return;
+        }
+        mPictureStore.discard(picture);
+        if (!written) {
+            database.beginTransaction();
+            try {
+                mPictureStore.releaseIfUnused(database, picture.reference);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Return the distinct picture references of the fruits matching the given selection and
+     * selection arguments. Pictures not moved to the store yet come back as null.
+     */
+    private String[] queryPictures(SQLiteDatabase database, String selection,
+                                   String[] selectionArgs) {
+        Cursor cursor = database.query(true, FruitEntry.TABLE_NAME,
+                new String[] { "CASE WHEN typeof(" + FruitEntry.COLUMN_FRUIT_PICTURE + ")='blob'"
+                        + " THEN NULL ELSE " + FruitEntry.COLUMN_FRUIT_PICTURE + " END" },
+                selection, selectionArgs,
+                null, null, null, null);
+        try {
+            String[] pictures = new String[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                pictures[cursor.getPosition()] = cursor.getString(0);
+            }
+            return pictures;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete the given pictures from the {@link PictureStore}, unless some fruit still uses them.
+     * Must be the last step of the transaction dropping the fruits' references to them.
+     */
+    private void releasePictures(SQLiteDatabase database, String[] pictures) {
+        for (String picture : pictures) {
+            mPictureStore.releaseIfUnused(database, picture);
+        }
+    }
+
+    /**
+     * Return the picture reference of the given fruit, or null if there is no such fruit.
+     */
+    private String queryPicture(long id) {
+        String[] pictures = queryPictures(mDbHelper.getReadableDatabase(),
+                FruitEntry._ID + "=?", new String[] { String.valueOf(id) });
+        return pictures.length == 0 ? null : pictures[0];
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        final int match = sUriMatcher.match(uri);
+        if (match == FRUIT_CSV) {
+            return mode.contains("w") ? openCsvForWrite() : openCsvForRead();
+        }
+        if (match != FRUIT_PICTURE) {
+            throw new FileNotFoundException("Cannot open unknown URI " + uri);
+        }
+
+        // For the FRUIT_PICTURE code, the ID is the segment before "picture"
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        if (mode.contains("w")) {
+            return openPictureForWrite(id);
+        }
+
+        File file = mPictureStore.getFile(queryPicture(id));
+        if (file == null) {
+            throw new FileNotFoundException("No picture for " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Return the write side of a pipe. Whatever is written into it is streamed into the
+     * {@link PictureStore} in the background, and becomes the picture of the given fruit once
+     * the pipe is closed. The writer isn't told when it's done, or whether the picture was
+     * readable: clients that need to know update the fruit with the picture bytes instead.
+     */
+    private ParcelFileDescriptor openPictureForWrite(final long id) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createPipe();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                StagedPicture picture = null;
+                try {
+                    picture = mPictureStore.stage(in);
+
+                    // Don't replace the picture with something that can't be shown
+                    byte[] thumbnail = ThumbnailCache.encodeThumbnail(picture.file);
+                    if (thumbnail == null) {
+                        Log.e(LOG_TAG, "Discarding unreadable picture for fruit " + id);
+                        return;
+                    }
+
+                    ContentValues values = new ContentValues();
+                    values.put(FruitEntry.COLUMN_FRUIT_PICTURE, picture.reference);
+                    putPictureVersion(values, thumbnail);
+                    updateFruit(values, picture, FruitEntry._ID + "=?",
+                            new String[] { String.valueOf(id) });
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to write picture for fruit " + id, e);
+                } finally {
+                    if (picture != null) {
+                        mPictureStore.discard(picture);
+                    }
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close picture pipe", e);
+                    }
+                }
+            }
+        });
+
+        return pipe[1];
+    }
+
+    /**
+     * Return the read side of a pipe, which every fruit is streamed into as CSV, in the
+     * background, straight from a cursor over the fruits.
+     */
+    private ParcelFileDescriptor openCsvForRead() throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createPipe();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), UTF_8));
+                Cursor cursor = null;
+                try {
+                    cursor = mDbHelper.getReadableDatabase().query(FruitEntry.CURRENT_VIEW_NAME,
+                            FruitCsv.COLUMNS, null, null, null, null, FruitEntry._ID);
+                    FruitCsv.write(cursor, out);
+                } catch (IOException e) {
+                    // Most likely the reader closed its side early
+                    Log.w(LOG_TAG, "Failed to export fruits", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close CSV pipe", e);
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Return the write side of a pipe. Whatever is written into it is imported as CSV in the
+     * background, as it comes, see {@link #importCsv(Reader)}.
+     */
+    private ParcelFileDescriptor openCsvForWrite() throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createPipe();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Reader in = new InputStreamReader(
+                        new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), UTF_8);
+                try {
+                    importCsv(in);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to import fruits", e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close CSV pipe", e);
+                    }
+                }
+            }
+        });
+        return pipe[1];
+    }
+
+    private static ParcelFileDescriptor[] createPipe() throws FileNotFoundException {
+        try {
+            return ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open pipe: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Import the fruits of the given CSV (see {@link FruitCsv}), reading one line at a time, and
+     * committing every {@link #CSV_BATCH_SIZE} lines. Every line updates the fruits with its
+     * name, or inserts a new one, with the same rules as {@link #update} and {@link #insert}.
+     * Lines breaking them are logged and skipped. If the CSV itself is broken, the lines before
+     * the current batch stay imported. Listeners are notified only once, at the end.
+     *
+     * @return the number of lines imported
+     */
+    private int importCsv(Reader in) throws IOException {
+        CsvReader reader = new CsvReader(in);
+        List<String> fields = new ArrayList<String>();
+        if (!reader.readRecord(fields)) {
+            return 0;
+        }
+        int[] columns = FruitCsv.readHeader(fields);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        ContentValues values = new ContentValues();
+        int rowsImported = 0;
+        int rowsSkipped = 0;
+        boolean hasMore = true;
+
+        mNotifier.beginBatch();
+        try {
+            while (hasMore) {
+                int batchImported = 0;
+                database.beginTransaction();
+                try {
+                    for (int i = 0; i < CSV_BATCH_SIZE && hasMore; i++) {
+                        hasMore = reader.readRecord(fields);
+                        if (!hasMore || fields.size() == 1 && fields.get(0).isEmpty()) {
+                            continue;
+                        }
+                        try {
+                            values.clear();
+                            FruitCsv.readValues(columns, fields, values);
+                            upsertFruit(database, statements, values);
+                            batchImported++;
+                        } catch (IllegalArgumentException e) {
+                            Log.w(LOG_TAG, "Skipping CSV line " + reader.getLineNumber() + ": "
+                                    + e.getMessage());
+                            rowsSkipped++;
+                        } catch (SQLException e) {
+                            Log.w(LOG_TAG, "Skipping CSV line " + reader.getLineNumber() + ": "
+                                    + e.getMessage());
+                            rowsSkipped++;
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                rowsImported += batchImported;
+                if (batchImported != 0) {
+                    mRowCache.clear();
+                    mNotifier.notifyAllItems();
+                }
+            }
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            mNotifier.endBatch();
+        }
+
+        Log.i(LOG_TAG, "Imported " + rowsImported + " fruits from CSV, skipped " + rowsSkipped);
+        return rowsImported;
+    }
+
+    /**
+     * Update the fruits with the name of the given values, or insert a new fruit if there is
+     * none, with the compiled statement matching the columns. Must be called inside a
+     * transaction.
+     */
+    private void upsertFruit(SQLiteDatabase database, Map<String, SQLiteStatement> statements,
+                             ContentValues values) {
+        String name = values.getAsString(FruitEntry.COLUMN_FRUIT_NAME);
+        FruitRules.checkName(name);
+        long[] ids = queryIds(database, FruitEntry.COLUMN_FRUIT_NAME + "=?",
+                new String[] { name });
+        if (ids.length == 0) {
+            // Same rules as a single insert, no picture comes from CSV
+            validateInsert(values);
+            executeInsert(database, statements, values);
+            return;
+        }
+
+        // Same rules as any update, and the quantities written replace the ones read
+        validateUpdate(values);
+        if (hasLedgerColumns(values)) {
+            mLedger.fold(ids);
+        }
+
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        String sql = buildUpdateByIdSql(columns);
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        for (long id : ids) {
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            statement.bindLong(columns.length + 1, id);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  Bundle opts) throws FileNotFoundException {
+        // Fruit pictures can be streamed as is to anyone asking for their format
+        if (sUriMatcher.match(uri) == FRUIT_PICTURE
+                && matchesPictureType(uri, mimeTypeFilter)) {
+            return new AssetFileDescriptor(openFile(uri, "r"), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        // The fruits can be streamed as CSV to anyone asking for it
+        if (sUriMatcher.match(uri) == FRUIT_CSV
+                && ClipDescription.compareMimeTypes(FruitEntry.CSV_MIME_TYPE, mimeTypeFilter)) {
+            return new AssetFileDescriptor(openCsvForRead(), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) == FRUIT_PICTURE
+                && matchesPictureType(uri, mimeTypeFilter)) {
+            return new String[] { getPictureType(uri) };
+        }
+        if (sUriMatcher.match(uri) == FRUIT_CSV
+                && ClipDescription.compareMimeTypes(FruitEntry.CSV_MIME_TYPE, mimeTypeFilter)) {
+            return new String[] { FruitEntry.CSV_MIME_TYPE };
+        }
+        return null;
+    }
+
+    private boolean matchesPictureType(Uri uri, String mimeTypeFilter) {
+        String type = getPictureType(uri);
+        return type != null && ClipDescription.compareMimeTypes(type, mimeTypeFilter);
+    }
+
+    /**
+     * Return the MIME type of the picture of the given URI, read from the picture itself as
+     * pictures stored with different {@link ImageCodec}s live side by side, or null if there is
+     * no picture.
+     */
+    private String getPictureType(Uri uri) {
+        // For the FRUIT_PICTURE code, the ID is the segment before "picture"
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        File file = mPictureStore.getFile(queryPicture(id));
+        if (file == null) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return ImageCodec.readMimeType(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read picture " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close picture " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the IDs of the fruits matching the given selection and selection arguments.
+     */
+    private long[] queryIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Cursor cursor = database.query(FruitEntry.TABLE_NAME, new String[] { FruitEntry._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drop the cached thumbnails of the given fruits.
+     */
+    private void invalidateThumbnails(long[] ids) {
+        ThumbnailCache thumbnailCache = ThumbnailCache.getInstance(getContext());
+        for (long id : ids) {
+            thumbnailCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Return the index of the given URI in the {@link ProviderStats}. Only called once the call
+     * succeeded, so the URI matched.
+     */
+    private static int getStatsIndex(Uri uri) {
+        return sUriMatcher.match(uri) - FRUITS;
+    }
+
+    /**
+     * Answer {@link FruitContract#METHOD_STATS} with the {@link ProviderStats#toBundle() stats}
+     * of the calls made so far, and the hits and misses of the {@link RowCache}.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (FruitContract.METHOD_STATS.equals(method)) {
+            Bundle stats = mStats.toBundle();
+            stats.putLong("row_cache_hits", mRowCache.getHitCount());
+            stats.putLong("row_cache_misses", mRowCache.getMissCount());
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Print the stats of the calls made so far, and of the {@link RowCache}, for
+     * "adb shell dumpsys activity provider com.example.android.fruitmarket".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+        writer.println("Row cache: " + mRowCache.getHitCount() + " hits, "
+                + mRowCache.getMissCount() + " misses");
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case FRUITS:
+            case FRUIT_SEARCH:
                 return FruitEntry.CONTENT_LIST_TYPE;
             case FRUIT_ID:
                 return FruitEntry.CONTENT_ITEM_TYPE;
+            case FRUIT_PICTURE:
+                return getPictureType(uri);
+            case FRUIT_SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case FRUIT_CSV:
+                return FruitEntry.CSV_MIME_TYPE;
+            case FRUIT_ORDER:
+            case FRUIT_STOCK:
+                // Only ever updated, there is no data to type
+                return null;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.fruitmarket.core.FieldMerge;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.OrderEntry;
+import com.example.android.fruitmarket.data.FruitContract.SyncEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Syncs the fruits with an {@link InventoryServer}, moving only what changed since the last sync.
+ *
+ * The server changes are pulled first, from the token of the last pull, and merged field by
+ * field with the local ones, against the base: the last values both sides agreed on. A field
+ * changed on one side only takes that change. The name, supplier and price changed on both sides
+ * take the latest change, the server one on a tie. The quantities changed on both sides add up
+ * both changes, so no order is lost.
+ *
+ * Then the fruits changed since the last push, by version or by orders, are pushed, along with
+ * the deleted ones. A change rejected because the server moved on is pushed again by the next
+ * sync, merged with what it pulls. A fruit edited on one side and deleted on the other is kept.
+ *
+ * Pictures are not synced.
+ */
+public final class FruitSync {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = FruitSync.class.getSimpleName();
+
+    /** Maximum number of fruits pulled or pushed per request, and applied per transaction */
+    private static final int BATCH_SIZE = 100;
+
+    /** Only one sync runs at a time, they share the sync state */
+    private static final Object sLock = new Object();
+
+    /** Fruit values, in the same order in the fruits and in the base */
+    private static final String[] VALUE_COLUMNS = {
+            FruitEntry.COLUMN_FRUIT_NAME,
+            FruitEntry.COLUMN_FRUIT_SUPPLIER,
+            FruitEntry.COLUMN_FRUIT_PRICE,
+            FruitEntry.COLUMN_FRUIT_QUANTITY,
+            FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+            FruitEntry.COLUMN_FRUIT_UPDATED_AT };
+
+    /**
+     * Selects a fruit with its current values and its base, by the columns of {@link Local}.
+     * The condition is appended.
+     */
+    private static final String SQL_SELECT_LOCAL = "SELECT f." + FruitEntry._ID + ", f."
+            + FruitEntry.COLUMN_FRUIT_SYNC_ID + ", " + buildColumns("f") + ", b."
+            + SyncEntry.COLUMN_SERVER_VERSION + ", " + buildColumns("b") + " FROM "
+            + FruitEntry.CURRENT_VIEW_NAME + " f LEFT JOIN " + SyncEntry.BASE_TABLE_NAME
+            + " b ON b." + SyncEntry._ID + " = f." + FruitEntry._ID + " WHERE ";
+
+    /** Selects a fruit by its sync ID */
+    private static final String SQL_SELECT_BY_SYNC_ID = SQL_SELECT_LOCAL + "f."
+            + FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?";
+
+    /**
+     * Selects the next page of fruits to push: changed within the given versions, or ordered
+     * within the given order IDs, after the given fruit ID.
+     */
+    private static final String SQL_SELECT_CHANGED = SQL_SELECT_LOCAL + "f." + FruitEntry._ID
+            + " > ?1 AND (f." + FruitEntry.COLUMN_FRUIT_VERSION + " > ?2 AND f."
+            + FruitEntry.COLUMN_FRUIT_VERSION + " <= ?3 OR f." + FruitEntry._ID + " IN (SELECT "
+            + OrderEntry.COLUMN_ORDER_FRUIT_ID + " FROM " + OrderEntry.TABLE_NAME + " WHERE "
+            + OrderEntry._ID + " > ?4 AND " + OrderEntry._ID + " <= ?5)) ORDER BY f."
+            + FruitEntry._ID + " LIMIT " + BATCH_SIZE;
+
+    /**
+     * Outcome of a sync.
+     */
+    public static final class Result {
+
+        /** Number of server changes applied */
+        public final int pulled;
+
+        /** Number of changes accepted by the server */
+        public final int pushed;
+
+        /** Number of changes rejected by the server, pushed again by the next sync */
+        public final int rejected;
+
+        Result(int pulled, int pushed, int rejected) {
+            this.pulled = pulled;
+            this.pushed = pushed;
+            this.rejected = rejected;
+        }
+    }
+
+    private final Context mContext;
+    private final FruitDbHelper mDbHelper;
+    private final InventoryServer mServer;
+    private final OrderLedger mLedger;
+    private final PictureStore mPictureStore;
+
+    /**
+     * Constructs a sync of the app fruits with the given server.
+     */
+    public FruitSync(Context context, InventoryServer server) {
+        this(context, FruitDbHelper.getInstance(context), server);
+    }
+
+    /**
+     * Constructs a sync of the fruits of the given database with the given server.
+     */
+    FruitSync(Context context, FruitDbHelper dbHelper, InventoryServer server) {
+        mContext = context.getApplicationContext();
+        mDbHelper = dbHelper;
+        mServer = server;
+        mLedger = new OrderLedger(dbHelper);
+        mPictureStore = new PictureStore(mContext);
+    }
+
+    /**
+     * Pull the server changes, then push the local ones. Whatever was synced before a failure
+     * stays synced, the next sync goes on from there.
+     *
+     * @throws IOException if the server can't be reached
+     */
+    @WorkerThread
+    public Result sync() throws IOException {
+        synchronized (sLock) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            return push(db, pull(db));
+        }
+    }
+
+    /**
+     * Pull and apply the server changes, one batch per transaction, notified once per batch.
+     * Return the number applied.
+     */
+    private int pull(SQLiteDatabase db) throws IOException {
+        String token = DatabaseUtils.stringForQuery(db, "SELECT "
+                + SyncEntry.COLUMN_SERVER_TOKEN + " FROM " + SyncEntry.STATE_TABLE_NAME, null);
+        int applied = 0;
+        boolean hasMore = true;
+        while (hasMore) {
+            InventoryServer.Changes changes = mServer.pull(token, BATCH_SIZE);
+            List<String> pictures = new ArrayList<String>();
+            int batchApplied = 0;
+            db.beginTransaction();
+            try {
+                for (SyncRecord record : changes.records) {
+                    if (apply(db, record, pictures)) {
+                        batchApplied++;
+                    }
+                }
+                db.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                        + SyncEntry.COLUMN_SERVER_TOKEN + " = ?", new Object[] { changes.token });
+
+                // Last, so no fruit can start using them again in between
+                for (String picture : pictures) {
+                    mPictureStore.releaseIfUnused(db, picture);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (batchApplied != 0) {
+                mDbHelper.getRowCache().clear();
+                mContext.getContentResolver().notifyChange(FruitEntry.CONTENT_URI, null);
+                applied += batchApplied;
+            }
+            token = changes.token;
+            hasMore = changes.hasMore;
+        }
+        return applied;
+    }
+
+    /**
+     * Apply a server change. Return whether it changed anything.
+     *
+     * @param pictures collects the pictures of the deleted fruits, to release afterwards
+     */
+    private boolean apply(SQLiteDatabase db, SyncRecord record, List<String> pictures) {
+        Local local = queryLocal(db, SQL_SELECT_BY_SYNC_ID, new String[] { record.syncId });
+        if (local == null) {
+            return applyNew(db, record);
+        }
+        if (local.baseVersion == record.version) {
+            // Our own change, coming back
+            return false;
+        }
+
+        if (record.deleted) {
+            if (local.hasChanges()) {
+                // The edit wins: keep the fruit, and push it back on top of the deletion
+                writeBase(db, local.id, record.version, null);
+                return false;
+            }
+            pictures.add(DatabaseUtils.stringForQuery(db, "SELECT CASE WHEN typeof("
+                    + FruitEntry.COLUMN_FRUIT_PICTURE + ")='blob' THEN NULL ELSE "
+                    + FruitEntry.COLUMN_FRUIT_PICTURE + " END FROM " + FruitEntry.TABLE_NAME
+                    + " WHERE " + FruitEntry._ID + " = " + local.id, null));
+            db.delete(FruitEntry.TABLE_NAME, FruitEntry._ID + " = " + local.id, null);
+            // Deleted on both sides now, nothing to push
+            db.delete(SyncEntry.DELETED_TABLE_NAME, FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?",
+                    new String[] { record.syncId });
+            ThumbnailCache.getInstance(mContext).invalidate(local.id);
+            return true;
+        }
+
+        ContentValues merged = merge(local, record);
+        if (merged.size() != 0) {
+            // The quantities are written whole, so the ledger tail must be in the row first
+            mLedger.fold(new long[] { local.id });
+            merged.put(FruitEntry.COLUMN_FRUIT_UPDATED_AT,
+                    Math.max(local.values.updatedAt, record.updatedAt));
+            db.update(FruitEntry.TABLE_NAME, merged, FruitEntry._ID + " = " + local.id, null);
+        }
+        writeBase(db, local.id, record.version, record);
+        return merged.size() != 0;
+    }
+
+    /**
+     * Apply a server change to a fruit unknown here. Return whether it changed anything.
+     */
+    private boolean applyNew(SQLiteDatabase db, SyncRecord record) {
+        String[] syncId = new String[] { record.syncId };
+        Cursor cursor = db.query(SyncEntry.DELETED_TABLE_NAME,
+                new String[] { SyncEntry.COLUMN_SERVER_VERSION },
+                FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?", syncId, null, null, null);
+        long deletedVersion;
+        try {
+            deletedVersion = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+
+        if (record.deleted) {
+            db.delete(SyncEntry.DELETED_TABLE_NAME, FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?",
+                    syncId);
+            return false;
+        }
+        if (deletedVersion >= record.version) {
+            // Deleted here after this change, the deletion is pushed later
+            return false;
+        }
+
+        // New on the server, or edited there after it was deleted here: the edit wins
+        db.delete(SyncEntry.DELETED_TABLE_NAME, FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?", syncId);
+        ContentValues values = toValues(record);
+        values.put(FruitEntry.COLUMN_FRUIT_SYNC_ID, record.syncId);
+        long id = db.insertOrThrow(FruitEntry.TABLE_NAME, null, values);
+        writeBase(db, id, record.version, record);
+        return true;
+    }
+
+    /**
+     * Return the values to write to merge the given server change into the local fruit, empty
+     * if the local fruit already has them.
+     */
+    private static ContentValues merge(Local local, SyncRecord server) {
+        SyncRecord base = local.base;
+        ContentValues values = new ContentValues();
+        boolean serverLatest = server.updatedAt >= local.values.updatedAt;
+
+        String name = FieldMerge.pick(local.values.name, server.name,
+                base == null ? null : base.name, base != null, serverLatest);
+        if (!TextUtils.equals(name, local.values.name)) {
+            values.put(FruitEntry.COLUMN_FRUIT_NAME, name);
+        }
+        String supplier = FieldMerge.pick(local.values.supplier, server.supplier,
+                base == null ? null : base.supplier, base != null, serverLatest);
+        if (!TextUtils.equals(supplier, local.values.supplier)) {
+            values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, supplier);
+        }
+        long price = FieldMerge.pick(local.values.price, server.price,
+                base == null ? 0 : base.price, base != null, serverLatest);
+        if (price != local.values.price) {
+            values.put(FruitEntry.COLUMN_FRUIT_PRICE, price);
+        }
+
+        int quantity = server.quantity;
+        int quantityOrdered = server.quantityOrdered;
+        if (base != null) {
+            quantity = FieldMerge.add(local.values.quantity, server.quantity, base.quantity);
+            quantityOrdered = FieldMerge.add(local.values.quantityOrdered,
+                    server.quantityOrdered, base.quantityOrdered);
+        } else if (!serverLatest) {
+            quantity = local.values.quantity;
+            quantityOrdered = local.values.quantityOrdered;
+        }
+        if (quantity != local.values.quantity
+                || quantityOrdered != local.values.quantityOrdered) {
+            // Both sides may have sold the last units, there is no stock below nothing
+            values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, Math.max(quantity, 0));
+            values.put(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED, quantityOrdered);
+        }
+        return values;
+    }
+
+    /**
+     * Push the local changes, one batch per request and transaction. The pushed state only moves
+     * on once every change is accepted, so the rejected ones are found again by the next sync.
+     */
+    private Result push(SQLiteDatabase db, int pulled) throws IOException {
+        Cursor state = db.rawQuery("SELECT " + SyncEntry.COLUMN_SYNCED_VERSION + ", "
+                + SyncEntry.COLUMN_CHANGE_VERSION + ", " + SyncEntry.COLUMN_SYNCED_ORDER_ID
+                + ", (SELECT IFNULL(MAX(" + OrderEntry._ID + "), 0) FROM "
+                + OrderEntry.TABLE_NAME + ") FROM " + SyncEntry.STATE_TABLE_NAME, null);
+        String[] args;
+        try {
+            state.moveToFirst();
+            args = new String[] { null, state.getString(0), state.getString(1),
+                    state.getString(2), state.getString(3) };
+        } finally {
+            state.close();
+        }
+
+        int pushed = 0;
+        int rejected = 0;
+        long lastId = 0;
+        while (true) {
+            args[0] = String.valueOf(lastId);
+            List<Local> fruits = new ArrayList<Local>(BATCH_SIZE);
+            Cursor cursor = db.rawQuery(SQL_SELECT_CHANGED, args);
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    Local fruit = new Local(cursor);
+                    lastId = fruit.id;
+                    if (fruit.hasChanges()) {
+                        fruits.add(fruit);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!fruits.isEmpty()) {
+                int accepted = pushFruits(db, fruits);
+                pushed += accepted;
+                rejected += fruits.size() - accepted;
+            }
+            if (count < BATCH_SIZE) {
+                break;
+            }
+        }
+
+        String lastSyncId = "";
+        while (true) {
+            List<SyncRecord> deleted = queryDeleted(db, lastSyncId);
+            if (deleted.isEmpty()) {
+                break;
+            }
+            lastSyncId = deleted.get(deleted.size() - 1).syncId;
+            int accepted = pushDeleted(db, deleted);
+            pushed += accepted;
+            rejected += deleted.size() - accepted;
+        }
+
+        if (rejected == 0) {
+            db.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                    + SyncEntry.COLUMN_SYNCED_VERSION + " = ?, "
+                    + SyncEntry.COLUMN_SYNCED_ORDER_ID + " = ?",
+                    new Object[] { args[2], args[4] });
+        } else {
+            Log.i(LOG_TAG, rejected + " changes rejected, pushed again by the next sync");
+        }
+        return new Result(pulled, pushed, rejected);
+    }
+
+    /**
+     * Push the given changed fruits, and make the accepted ones their new base. Return the
+     * number accepted.
+     */
+    private int pushFruits(SQLiteDatabase db, List<Local> fruits) throws IOException {
+        List<SyncRecord> records = new ArrayList<SyncRecord>(fruits.size());
+        db.beginTransaction();
+        try {
+            for (Local fruit : fruits) {
+                String syncId = fruit.syncId;
+                if (syncId == null) {
+                    // First push of the fruit. Not a change of the fruit, so no new version.
+                    syncId = UUID.randomUUID().toString();
+                    ContentValues values = new ContentValues();
+                    values.put(FruitEntry.COLUMN_FRUIT_SYNC_ID, syncId);
+                    db.update(FruitEntry.TABLE_NAME, values, FruitEntry._ID + " = " + fruit.id,
+                            null);
+                }
+                records.add(new SyncRecord(syncId, Math.max(fruit.baseVersion, 0),
+                        fruit.values.name, fruit.values.supplier, fruit.values.price,
+                        fruit.values.quantity, fruit.values.quantityOrdered,
+                        fruit.values.updatedAt));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The sync IDs given are read through the provider too
+        RowCache rowCache = mDbHelper.getRowCache();
+        for (Local fruit : fruits) {
+            if (fruit.syncId == null) {
+                rowCache.invalidate(fruit.id);
+            }
+        }
+
+        long[] versions = mServer.push(records);
+        int accepted = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < versions.length; i++) {
+                if (versions[i] != InventoryServer.REJECTED) {
+                    writeBase(db, fruits.get(i).id, versions[i], records.get(i));
+                    accepted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return accepted;
+    }
+
+    /**
+     * Return the next page of deleted fruits to push, after the given sync ID.
+     */
+    private static List<SyncRecord> queryDeleted(SQLiteDatabase db, String afterSyncId) {
+        Cursor cursor = db.query(SyncEntry.DELETED_TABLE_NAME, new String[] {
+                        FruitEntry.COLUMN_FRUIT_SYNC_ID, SyncEntry.COLUMN_SERVER_VERSION },
+                FruitEntry.COLUMN_FRUIT_SYNC_ID + " > ?", new String[] { afterSyncId },
+                null, null, FruitEntry.COLUMN_FRUIT_SYNC_ID, String.valueOf(BATCH_SIZE));
+        try {
+            List<SyncRecord> records = new ArrayList<SyncRecord>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                records.add(SyncRecord.deleted(cursor.getString(0), cursor.getLong(1)));
+            }
+            return records;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Push the given deletions, and forget the accepted ones. Return the number accepted.
+     */
+    private int pushDeleted(SQLiteDatabase db, List<SyncRecord> records) throws IOException {
+        long[] versions = mServer.push(records);
+        int accepted = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < versions.length; i++) {
+                if (versions[i] != InventoryServer.REJECTED) {
+                    // Only if it wasn't deleted again meanwhile, on top of an edit pulled since
+                    db.delete(SyncEntry.DELETED_TABLE_NAME, FruitEntry.COLUMN_FRUIT_SYNC_ID
+                                    + " = ? AND " + SyncEntry.COLUMN_SERVER_VERSION + " = ?",
+                            new String[] { records.get(i).syncId,
+                                    String.valueOf(records.get(i).version) });
+                    accepted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return accepted;
+    }
+
+    /**
+     * Make the given values the base of a fruit, at the given server version. Without values,
+     * nothing is agreed on, so the whole fruit is pushed again.
+     */
+    private static void writeBase(SQLiteDatabase db, long id, long version, SyncRecord record) {
+        ContentValues values = record == null ? new ContentValues() : toValues(record);
+        values.put(SyncEntry._ID, id);
+        values.put(SyncEntry.COLUMN_SERVER_VERSION, version);
+        db.replaceOrThrow(SyncEntry.BASE_TABLE_NAME, null, values);
+    }
+
+    private static ContentValues toValues(SyncRecord record) {
+        ContentValues values = new ContentValues();
+        values.put(FruitEntry.COLUMN_FRUIT_NAME, record.name);
+        values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, record.supplier);
+        values.put(FruitEntry.COLUMN_FRUIT_PRICE, record.price);
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, record.quantity);
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED, record.quantityOrdered);
+        values.put(FruitEntry.COLUMN_FRUIT_UPDATED_AT, record.updatedAt);
+        return values;
+    }
+
+    /**
+     * Return the fruit selected by the given query, or null if there is none.
+     */
+    private static Local queryLocal(SQLiteDatabase db, String sql, String[] args) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            return cursor.moveToFirst() ? new Local(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the value columns of the given table alias, separated by commas.
+     */
+    private static String buildColumns(String alias) {
+        StringBuilder columns = new StringBuilder();
+        for (String column : VALUE_COLUMNS) {
+            if (columns.length() != 0) {
+                columns.append(", ");
+            }
+            columns.append(alias).append('.').append(column);
+        }
+        return columns.toString();
+    }
+
+    /**
+     * A local fruit, with its current values and its base.
+     */
+    private static final class Local {
+
+        final long id;
+        final String syncId;
+        final SyncRecord values;
+
+        /** Server version of the base, -1 if the fruit was never synced */
+        final long baseVersion;
+
+        /** Values of the base, null if nothing was agreed on */
+        final SyncRecord base;
+
+        /** Reads the columns selected by {@link #SQL_SELECT_LOCAL} */
+        Local(Cursor cursor) {
+            id = cursor.getLong(0);
+            syncId = cursor.getString(1);
+            values = readValues(cursor, 2, syncId, 0);
+            int baseIndex = 2 + VALUE_COLUMNS.length;
+            baseVersion = cursor.isNull(baseIndex) ? -1 : cursor.getLong(baseIndex);
+            base = cursor.isNull(baseIndex + 1) ? null
+                    : readValues(cursor, baseIndex + 1, syncId, baseVersion);
+        }
+
+        private static SyncRecord readValues(Cursor cursor, int index, String syncId,
+                                             long version) {
+            return new SyncRecord(syncId, version, cursor.getString(index),
+                    cursor.getString(index + 1), cursor.getLong(index + 2),
+                    cursor.getInt(index + 3), cursor.getInt(index + 4), cursor.getLong(index + 5));
+        }
+
+        /**
+         * Return whether the fruit changed since its base.
+         */
+        boolean hasChanges() {
+            return base == null || !TextUtils.equals(values.name, base.name)
+                    || !TextUtils.equals(values.supplier, base.supplier)
+                    || values.price != base.price || values.quantity != base.quantity
+                    || values.quantityOrdered != base.quantityOrdered;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Writes {@link Fruit}s to the provider. When the provider runs in this process, the fruits are
+ * handed to it as they are, and bound to its statements as primitives; otherwise they go through
+ * {@link ContentValues}, like any other client would write them.
+ */
+public final class FruitWriter {
+
+    private FruitWriter() {
+    }
+
+    /**
+     * Insert the name, supplier, price and quantity of the given fruit. Return the content URI
+     * of the new fruit, or null if the insertion failed.
+     */
+    public static Uri insert(ContentResolver resolver, Fruit fruit) {
+        ContentProviderClient client =
+                resolver.acquireContentProviderClient(FruitEntry.CONTENT_URI);
+        if (client == null) {
+            return null;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof FruitProvider) {
+                return ((FruitProvider) provider).insert(fruit);
+            }
+            return resolver.insert(FruitEntry.CONTENT_URI, toContentValues(fruit));
+        } finally {
+            client.release();
+        }
+    }
+
+    /**
+     * Update the name, supplier, price and quantity of the fruit with the given content URI to
+     * the ones of the given fruit. Return the number of rows updated (0 or 1).
+     */
+    public static int update(ContentResolver resolver, Uri uri, Fruit fruit) {
+        ContentProviderClient client = resolver.acquireContentProviderClient(uri);
+        if (client == null) {
+            return 0;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof FruitProvider) {
+                return ((FruitProvider) provider).update(uri, fruit);
+            }
+            return resolver.update(uri, toContentValues(fruit), null, null);
+        } finally {
+            client.release();
+        }
+    }
+
+    /**
+     * Insert the given fruit along with the given picture, encoded, in one go: the picture is
+     * stored by the time this returns. Return the content URI of the new fruit, or null if the
+     * insertion failed.
+     */
+    public static Uri insert(ContentResolver resolver, Fruit fruit, byte[] picture) {
+        ContentValues values = toContentValues(fruit);
+        values.put(FruitEntry.COLUMN_FRUIT_PICTURE, picture);
+        return resolver.insert(FruitEntry.CONTENT_URI, values);
+    }
+
+    /**
+     * Update the fruit with the given content URI to the given fruit and picture, encoded, in
+     * one go: the picture is stored by the time this returns. Return the number of rows updated
+     * (0 or 1).
+     */
+    public static int update(ContentResolver resolver, Uri uri, Fruit fruit, byte[] picture) {
+        ContentValues values = toContentValues(fruit);
+        values.put(FruitEntry.COLUMN_FRUIT_PICTURE, picture);
+        return resolver.update(uri, values, null, null);
+    }
+
+    private static ContentValues toContentValues(Fruit fruit) {
+        ContentValues values = new ContentValues();
+        values.put(FruitEntry.COLUMN_FRUIT_NAME, fruit.name);
+        values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, fruit.supplier);
+        values.put(FruitEntry.COLUMN_FRUIT_PRICE, fruit.price);
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, fruit.quantity);
+        return values;
+    }
+}
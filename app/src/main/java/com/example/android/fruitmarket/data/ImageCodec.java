@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.core.PictureTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format the fruit pictures are encoded in.
+ *
+ * The codec used for new pictures is chosen at build time, through the PICTURE_CODEC and
+ * PICTURE_QUALITY fields of the build config. Decoding doesn't depend on it: pictures stored
+ * in any of the formats, like the PNG pictures stored before, stay readable.
+ */
+public abstract class ImageCodec {
+
+    /** Lossless, and big: the quality is ignored */
+    public static final ImageCodec PNG = new CompressCodec("png", PictureTypes.PNG,
+            Bitmap.CompressFormat.PNG);
+
+    /** Lossy, without transparency: transparent pixels are drawn over white */
+    public static final ImageCodec JPEG = new CompressCodec("jpeg", PictureTypes.JPEG,
+            Bitmap.CompressFormat.JPEG) {
+        @Override
+        public byte[] encode(Bitmap bitmap, int quality) {
+            if (!bitmap.hasAlpha()) {
+                return super.encode(bitmap, quality);
+            }
+            Bitmap opaque = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                    Bitmap.Config.RGB_565);
+            Canvas canvas = new Canvas(opaque);
+            canvas.drawColor(Color.WHITE);
+            canvas.drawBitmap(bitmap, 0, 0, null);
+            try {
+                return super.encode(opaque, quality);
+            } finally {
+                opaque.recycle();
+            }
+        }
+    };
+
+    /**
+     * Lossy, the smallest at the same quality. Transparency needs Android 4.2.1 (API 17) or
+     * later to be decoded.
+     */
+    public static final ImageCodec WEBP = new CompressCodec("webp", PictureTypes.WEBP,
+            Bitmap.CompressFormat.WEBP);
+
+    /** Every known codec */
+    public static final ImageCodec[] CODECS = { PNG, JPEG, WEBP };
+
+    /** Codec used for the new pictures */
+    private static final ImageCodec DEFAULT = forName(BuildConfig.PICTURE_CODEC);
+
+    private final String mName;
+    private final String mMimeType;
+
+    ImageCodec(String name, String mimeType) {
+        mName = name;
+        mMimeType = mimeType;
+    }
+
+    /**
+     * Returns the codec used for the new pictures.
+     */
+    public static ImageCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the codec with the given name.
+     *
+     * @throws IllegalArgumentException if there is no such codec
+     */
+    public static ImageCodec forName(String name) {
+        for (ImageCodec codec : CODECS) {
+            if (codec.mName.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown image codec " + name);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Encodes the given bitmap with the quality chosen at build time.
+     */
+    public byte[] encode(Bitmap bitmap) {
+        return encode(bitmap, BuildConfig.PICTURE_QUALITY);
+    }
+
+    /**
+     * Encodes the given bitmap.
+     *
+     * @param quality from 0 to 100, ignored by lossless codecs
+     */
+    public abstract byte[] encode(Bitmap bitmap, int quality);
+
+    /**
+     * Decodes a picture encoded by any of the codecs, or null if it can't be decoded.
+     */
+    public static Bitmap decode(byte[] encoded) {
+        return BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Returns the MIME type of the picture in the given stream, read from its first bytes, or
+     * null if it isn't encoded by any of the codecs. The stream is not closed.
+     */
+    static String readMimeType(InputStream in) throws IOException {
+        return PictureTypes.read(in);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * Codec backed by {@link Bitmap#compress}.
+     */
+    private static class CompressCodec extends ImageCodec {
+
+        private final Bitmap.CompressFormat mFormat;
+
+        CompressCodec(String name, String mimeType, Bitmap.CompressFormat format) {
+            super(name, mimeType);
+            mFormat = format;
+        }
+
+        @Override
+        public byte[] encode(Bitmap bitmap, int quality) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            bitmap.compress(mFormat, quality, stream);
+            return stream.toByteArray();
+        }
+    }
+}
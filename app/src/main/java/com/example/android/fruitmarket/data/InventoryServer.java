@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Server every copy of the app syncs its fruits with, see {@link FruitSync}.
+ *
+ * The server keeps the latest values of every fruit, each with a version increasing over the
+ * whole server, and hands out the changes made after a given version through tokens. It doesn't
+ * merge anything: a change made on an outdated version is rejected, and merged by the app.
+ */
+public interface InventoryServer {
+
+    /** Returned by {@link #push} for a rejected change */
+    long REJECTED = -1;
+
+    /**
+     * Changes made on the server, as returned by {@link #pull}.
+     */
+    final class Changes {
+
+        /** Changed fruits, in the order they were changed */
+        public final List<SyncRecord> records;
+
+        /** Token to pull the following changes with */
+        public final String token;
+
+        /** Whether there are more changes after these */
+        public final boolean hasMore;
+
+        public Changes(List<SyncRecord> records, String token, boolean hasMore) {
+            this.records = records;
+            this.token = token;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Apply the given changes. A change is only applied if the server version of its fruit is
+     * still the one it was made on.
+     *
+     * @return for every change, the new server version of its fruit, or {@link #REJECTED}
+     */
+    long[] push(List<SyncRecord> records) throws IOException;
+
+    /**
+     * Return the changes made after the given token, at most the given number of them.
+     *
+     * @param token token returned by the previous pull, or null to pull everything
+     */
+    Changes pull(String token, int limit) throws IOException;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.OrderEntry;
+
+/**
+ * Version 8: adds the order ledger (see {@link OrderLedger}), the view of the fruits with their
+ * ledger tails applied, and makes the summary follow the ledger.
+ *
+ * The existing quantities become the snapshots, with an empty tail, so no row is rewritten.
+ * The view lists the columns of the fruits table one by one: a later version adding a column
+ * has to create it again, with {@link #createCurrentView} (or, from version 10 on, with
+ * {@link MoneyMigration#createCurrentView}).
+ */
+class LedgerMigration extends Migration {
+
+    LedgerMigration() {
+        super(8, "order_ledger");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + " INTEGER NOT NULL DEFAULT 0");
+
+        db.execSQL("CREATE TABLE " + OrderEntry.TABLE_NAME + " ("
+                + OrderEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + OrderEntry.COLUMN_ORDER_FRUIT_ID + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_QUANTITY + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_TOTAL + " REAL NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_TIME + " INTEGER NOT NULL)");
+
+        // Ends with the entry ID, like every index, so a tail is a single range of it
+        db.execSQL("CREATE INDEX order_events_fruit ON " + OrderEntry.TABLE_NAME
+                + " (" + OrderEntry.COLUMN_ORDER_FRUIT_ID + ")");
+
+        db.execSQL("CREATE TABLE " + OrderEntry.COMPACTION_TABLE_NAME + " ("
+                + OrderEntry._ID + " INTEGER PRIMARY KEY CHECK (" + OrderEntry._ID + " = 1), "
+                + OrderEntry.COLUMN_COMPACTED_ID + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + OrderEntry.COMPACTION_TABLE_NAME + " VALUES (1, 0)");
+
+        createCurrentView(db);
+
+        // The summary adds up the quantities with their tails. Folding a tail leaves them as
+        // they were, so it doesn't change the summary.
+        db.execSQL("DROP TRIGGER fruits_summary_update");
+        db.execSQL("DROP TRIGGER fruits_summary_delete");
+        db.execSQL("CREATE TRIGGER fruits_summary_update AFTER UPDATE OF "
+                + FruitEntry.COLUMN_FRUIT_PRICE + ", " + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", " + FruitEntry.COLUMN_FRUIT_TOTAL
+                + ", " + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION
+                + " ON " + FruitEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("0",
+                        buildQuantity("new") + " - " + buildQuantity("old"),
+                        "new." + FruitEntry.COLUMN_FRUIT_PRICE + " * " + buildQuantity("new")
+                                + " - old." + FruitEntry.COLUMN_FRUIT_PRICE + " * "
+                                + buildQuantity("old"),
+                        buildQuantityOrdered("new") + " - " + buildQuantityOrdered("old"),
+                        buildTotal("new") + " - " + buildTotal("old"))
+                + " END");
+        db.execSQL("CREATE TRIGGER fruits_summary_delete AFTER DELETE ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("-1", "-" + buildQuantity("old"),
+                        "-old." + FruitEntry.COLUMN_FRUIT_PRICE + " * " + buildQuantity("old"),
+                        "-" + buildQuantityOrdered("old"), "-" + buildTotal("old"))
+                + " END");
+        db.execSQL("CREATE TRIGGER order_events_summary_insert AFTER INSERT ON "
+                + OrderEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("0", "new." + OrderEntry.COLUMN_ORDER_QUANTITY,
+                        "new." + OrderEntry.COLUMN_ORDER_QUANTITY + " * (SELECT "
+                                + FruitEntry.COLUMN_FRUIT_PRICE + " FROM " + FruitEntry.TABLE_NAME
+                                + " WHERE " + FruitEntry._ID + " = new."
+                                + OrderEntry.COLUMN_ORDER_FRUIT_ID + ")",
+                        "new." + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED,
+                        "new." + OrderEntry.COLUMN_ORDER_TOTAL)
+                + " END");
+    }
+
+    /**
+     * Create the view of the fruits with their tails applied, with the columns of the fruits
+     * table up to this version, and the given later ones.
+     */
+    static void createCurrentView(SQLiteDatabase db, String... laterColumns) {
+        String fruits = FruitEntry.TABLE_NAME;
+        StringBuilder sql = new StringBuilder("CREATE VIEW ")
+                .append(FruitEntry.CURRENT_VIEW_NAME).append(" AS SELECT ")
+                .append(FruitEntry._ID).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_NAME).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PRICE).append(", ")
+                .append(buildQuantity(fruits)).append(" AS ")
+                .append(FruitEntry.COLUMN_FRUIT_QUANTITY).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_SUPPLIER).append(", ")
+                .append(buildQuantityOrdered(fruits)).append(" AS ")
+                .append(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED).append(", ")
+                .append(buildTotal(fruits)).append(" AS ")
+                .append(FruitEntry.COLUMN_FRUIT_TOTAL).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PICTURE).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PICTURE_VERSION).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_THUMBNAIL);
+        for (String column : laterColumns) {
+            sql.append(", ").append(column);
+        }
+        db.execSQL(sql.append(" FROM ").append(fruits).toString());
+    }
+
+    /**
+     * Return the SQL expression of the quantity of the given fruit row, with its tail.
+     */
+    static String buildQuantity(String fruit) {
+        return "(" + fruit + "." + FruitEntry.COLUMN_FRUIT_QUANTITY + " + "
+                + OrderLedger.buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY, fruit, null) + ")";
+    }
+
+    /**
+     * Return the SQL expression of the ordered quantity of the given fruit row, with its tail.
+     */
+    static String buildQuantityOrdered(String fruit) {
+        return "(IFNULL(" + fruit + "." + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", 0) + "
+                + OrderLedger.buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED, fruit, null)
+                + ")";
+    }
+
+    /**
+     * Return the SQL expression of the total of the given fruit row, with its tail.
+     */
+    private static String buildTotal(String fruit) {
+        return "(IFNULL(" + fruit + "." + FruitEntry.COLUMN_FRUIT_TOTAL + ", 0) + "
+                + OrderLedger.buildTailSum(OrderEntry.COLUMN_ORDER_TOTAL, fruit, null) + ")";
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the database schema history, registered in {@link FruitDbHelper}.
+ *
+ * The schema change of every step runs inside the upgrade transaction, so it must be quick
+ * whatever the size of the tables. Steps that have to rewrite the existing rows extend
+ * {@link ChunkedMigration} instead, and do that part later on, in bounded chunks.
+ */
+abstract class Migration {
+
+    /** Database version once this step has been applied */
+    private final int mVersion;
+
+    /** Name of the step, for the logs and the migration progress */
+    private final String mName;
+
+    Migration(int version, String name) {
+        mVersion = version;
+        mName = name;
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Apply the schema change of this step.
+     */
+    abstract void migrateSchema(SQLiteDatabase db);
+}
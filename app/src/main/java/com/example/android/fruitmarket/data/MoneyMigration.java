@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.OrderEntry;
+import com.example.android.fruitmarket.data.FruitContract.SummaryEntry;
+import com.example.android.fruitmarket.data.FruitContract.SyncEntry;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Version 10: stores the prices as integer cents instead of REAL, and drops the stored totals of
+ * the fruits, the order ledger and the sync base. The total of a fruit is computed by the view
+ * from its price and ordered quantity, so it can't go stale when the price changes, and the
+ * summary adds up exact cents.
+ *
+ * SQLite can't change the type of a column, nor drop one, so the three tables are rebuilt here,
+ * keeping their IDs and AUTOINCREMENT sequences: a chunked rewrite would have to keep the REAL
+ * columns, NOT NULL and written by every insert, until the last chunk. Everything reading the
+ * rebuilt tables (the view, the indexes and the triggers) is created again afterwards.
+ *
+ * The upgrade transaction copies every column of the fruits but their pictures and thumbnails,
+ * which can be big: pictures stay inline until {@link PictureStoreMigration} moves them, and that
+ * may still be pending. The old table is set aside instead, and its pictures and thumbnails are
+ * copied afterwards, a chunk of fruits at a time, moving the inline pictures to the
+ * {@link PictureStore} on the way. Until then, the fruits show no picture.
+ */
+class MoneyMigration extends ChunkedMigration {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = MoneyMigration.class.getSimpleName();
+
+    /** SQLite's table of the AUTOINCREMENT sequences */
+    private static final String SEQUENCE_TABLE_NAME = "sqlite_sequence";
+
+    /** Fruits table of version 9, kept until its pictures and thumbnails are copied */
+    private static final String OLD_FRUITS_TABLE_NAME = FruitEntry.TABLE_NAME + "_v9";
+
+    /** Picture of the fruits without one */
+    private static final String NO_PICTURE = "'NO IMAGE AVAILABLE'";
+
+    /** Pictures may have to be moved to the store, or decoded, so keep the chunks small */
+    private static final int CHUNK_SIZE = 20;
+
+    /** Store the inline pictures are moved to */
+    private final PictureStore mPictureStore;
+
+    MoneyMigration(PictureStore pictureStore) {
+        super(10, "money");
+        mPictureStore = pictureStore;
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        // Nothing may refer to a dropped table while another one is renamed
+        db.execSQL("DROP VIEW " + FruitEntry.CURRENT_VIEW_NAME);
+        db.execSQL("DROP TRIGGER order_events_summary_insert");
+
+        String fruits = FruitEntry.TABLE_NAME;
+        db.execSQL("CREATE TABLE " + fruits + "_new ("
+                + FruitEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + FruitEntry.COLUMN_FRUIT_NAME + " TEXT NOT NULL, "
+                + FruitEntry.COLUMN_FRUIT_PRICE + " INTEGER NOT NULL, "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + " TEXT DEFAULT 'UNKNOWN', "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_PICTURE + " TEXT NOT NULL DEFAULT " + NO_PICTURE + ", "
+                + FruitEntry.COLUMN_FRUIT_PICTURE_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_THUMBNAIL + " BLOB, "
+                + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + " TEXT)");
+        db.execSQL("INSERT INTO " + fruits + "_new SELECT "
+                + FruitEntry._ID + ", "
+                + FruitEntry.COLUMN_FRUIT_NAME + ", "
+                + toCents(FruitEntry.COLUMN_FRUIT_PRICE) + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + ", "
+                + "IFNULL(" + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", 0), "
+                + "CASE WHEN typeof(" + FruitEntry.COLUMN_FRUIT_PICTURE + ") = 'blob' THEN "
+                + NO_PICTURE + " ELSE " + FruitEntry.COLUMN_FRUIT_PICTURE + " END, "
+                + FruitEntry.COLUMN_FRUIT_PICTURE_VERSION + ", "
+                + "NULL, "
+                + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + ", "
+                + FruitEntry.COLUMN_FRUIT_VERSION + ", "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + ", "
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + " FROM " + fruits);
+
+        // The old table keeps the inline pictures and the thumbnails until they are copied. Its
+        // triggers and indexes go, so it can be emptied without touching the rest, and their
+        // names are free for the new table.
+        Cursor schema = db.query("sqlite_master", new String[] { "type", "name" },
+                "tbl_name = ? AND type IN ('index', 'trigger') AND sql IS NOT NULL",
+                new String[] { fruits }, null, null, null);
+        try {
+            while (schema.moveToNext()) {
+                db.execSQL("DROP " + schema.getString(0).toUpperCase(Locale.US) + " "
+                        + schema.getString(1));
+            }
+        } finally {
+            schema.close();
+        }
+        replaceTable(db, fruits, OLD_FRUITS_TABLE_NAME);
+        if (DatabaseUtils.longForQuery(db, "SELECT NOT EXISTS (SELECT 1 FROM "
+                + OLD_FRUITS_TABLE_NAME + ")", null) == 1) {
+            // Nothing to copy
+            db.execSQL("DROP TABLE " + OLD_FRUITS_TABLE_NAME);
+        }
+
+        String orders = OrderEntry.TABLE_NAME;
+        db.execSQL("CREATE TABLE " + orders + "_new ("
+                + OrderEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + OrderEntry.COLUMN_ORDER_FRUIT_ID + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_QUANTITY + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + " INTEGER NOT NULL, "
+                + OrderEntry.COLUMN_ORDER_TIME + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + orders + "_new SELECT "
+                + OrderEntry._ID + ", "
+                + OrderEntry.COLUMN_ORDER_FRUIT_ID + ", "
+                + OrderEntry.COLUMN_ORDER_QUANTITY + ", "
+                + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + ", "
+                + OrderEntry.COLUMN_ORDER_TIME + " FROM " + orders);
+        replaceTable(db, orders, null);
+
+        String base = SyncEntry.BASE_TABLE_NAME;
+        db.execSQL("CREATE TABLE " + base + "_new ("
+                + SyncEntry._ID + " INTEGER PRIMARY KEY, "
+                + SyncEntry.COLUMN_SERVER_VERSION + " INTEGER NOT NULL, "
+                + FruitEntry.COLUMN_FRUIT_NAME + " TEXT, "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + " TEXT, "
+                + FruitEntry.COLUMN_FRUIT_PRICE + " INTEGER, "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + " INTEGER, "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " INTEGER, "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " INTEGER)");
+        db.execSQL("INSERT INTO " + base + "_new SELECT "
+                + SyncEntry._ID + ", "
+                + SyncEntry.COLUMN_SERVER_VERSION + ", "
+                + FruitEntry.COLUMN_FRUIT_NAME + ", "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + ", "
+                + toCents(FruitEntry.COLUMN_FRUIT_PRICE) + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " FROM " + base);
+        replaceTable(db, base, null);
+
+        db.execSQL("CREATE INDEX fruits_name ON " + fruits
+                + " (" + FruitEntry.COLUMN_FRUIT_NAME + ")");
+        db.execSQL("CREATE INDEX fruits_version ON " + fruits
+                + " (" + FruitEntry.COLUMN_FRUIT_VERSION + ")");
+        db.execSQL("CREATE UNIQUE INDEX fruits_sync_id ON " + fruits
+                + " (" + FruitEntry.COLUMN_FRUIT_SYNC_ID + ")");
+        db.execSQL("CREATE INDEX order_events_fruit ON " + orders
+                + " (" + OrderEntry.COLUMN_ORDER_FRUIT_ID + ")");
+
+        SearchIndexMigration.createTriggers(db);
+        SyncMigration.createTriggers(db, FruitEntry.COLUMN_FRUIT_NAME,
+                FruitEntry.COLUMN_FRUIT_SUPPLIER, FruitEntry.COLUMN_FRUIT_PRICE,
+                FruitEntry.COLUMN_FRUIT_QUANTITY, FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED);
+        createCurrentView(db, FruitEntry.COLUMN_FRUIT_VERSION, FruitEntry.COLUMN_FRUIT_UPDATED_AT,
+                FruitEntry.COLUMN_FRUIT_SYNC_ID);
+
+        // The summary values become cents too, summed up again from the view
+        db.execSQL("DROP TABLE " + SummaryEntry.TABLE_NAME);
+        db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " ("
+                + SummaryEntry._ID + " INTEGER PRIMARY KEY CHECK (" + SummaryEntry._ID + " = "
+                + SummaryEntry.ROW_ID + "), "
+                + SummaryEntry.COLUMN_FRUIT_COUNT + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_STOCK_QUANTITY + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_ORDERED_QUANTITY + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_ORDERED_VALUE + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " SELECT " + SummaryEntry.ROW_ID
+                + ", COUNT(*), IFNULL(SUM(" + FruitEntry.COLUMN_FRUIT_QUANTITY + "), 0), "
+                + "IFNULL(SUM(" + FruitEntry.COLUMN_FRUIT_PRICE + " * "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + "), 0), "
+                + "IFNULL(SUM(" + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + "), 0), "
+                + "IFNULL(SUM(" + FruitEntry.COLUMN_FRUIT_TOTAL + "), 0) FROM "
+                + FruitEntry.CURRENT_VIEW_NAME);
+        createSummaryTriggers(db);
+    }
+
+    @Override
+    int getChunkSize() {
+        return CHUNK_SIZE;
+    }
+
+    @Override
+    long migrateChunk(SQLiteDatabase db, long afterId, int limit) {
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = "
+                + "'table' AND name = ?", new String[] { OLD_FRUITS_TABLE_NAME }) == 0) {
+            // There was nothing to copy
+            return NO_MORE_ROWS;
+        }
+
+        Cursor cursor = db.query(OLD_FRUITS_TABLE_NAME, new String[] { FruitEntry._ID },
+                FruitEntry._ID + " > ?", new String[] { String.valueOf(afterId) }, null, null,
+                FruitEntry._ID, String.valueOf(limit));
+        long[] ids;
+        try {
+            ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length == 0) {
+            db.execSQL("DROP TABLE " + OLD_FRUITS_TABLE_NAME);
+            return NO_MORE_ROWS;
+        }
+
+        for (long id : ids) {
+            copyPicture(db, id);
+        }
+
+        // Copied rows go at once, so the old table is empty by the time it's dropped
+        long lastId = ids[ids.length - 1];
+        db.delete(OLD_FRUITS_TABLE_NAME, FruitEntry._ID + " > ? AND " + FruitEntry._ID + " <= ?",
+                new String[] { String.valueOf(afterId), String.valueOf(lastId) });
+        return lastId;
+    }
+
+    /**
+     * Copy the picture and thumbnail of the given fruit from the old table, unless its picture
+     * was changed since the upgrade. A picture still inline is moved to the store instead, with a
+     * thumbnail made from it if it had none yet.
+     */
+    private void copyPicture(SQLiteDatabase db, long id) {
+        // Pictures are read one row at a time, so a chunk never has to fit in a single cursor
+        // window
+        String[] selectionArgs = { String.valueOf(id) };
+        Cursor old = db.query(OLD_FRUITS_TABLE_NAME, new String[] {
+                        FruitEntry.COLUMN_FRUIT_PICTURE_VERSION,
+                        FruitEntry.COLUMN_FRUIT_PICTURE,
+                        FruitEntry.COLUMN_FRUIT_THUMBNAIL },
+                FruitEntry._ID + "=?", selectionArgs, null, null, null);
+        ContentValues values = new ContentValues();
+        try {
+            if (!old.moveToFirst() || DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                    + FruitEntry.TABLE_NAME + " WHERE " + FruitEntry._ID + " = ? AND "
+                    + FruitEntry.COLUMN_FRUIT_PICTURE_VERSION + " = ?", new String[] {
+                    String.valueOf(id), String.valueOf(old.getLong(0)) }) == 0) {
+                // Deleted, or given a new picture since
+                return;
+            }
+
+            byte[] thumbnail = old.isNull(2) ? null : old.getBlob(2);
+            if (old.getType(1) == Cursor.FIELD_TYPE_BLOB) {
+                byte[] picture = old.getBlob(1);
+                if (thumbnail == null) {
+                    thumbnail = ThumbnailCache.encodeThumbnail(picture);
+                }
+                try {
+                    values.put(FruitEntry.COLUMN_FRUIT_PICTURE, mPictureStore.write(db, picture));
+                } catch (IOException e) {
+                    // Keep the picture inline, rather than losing it
+                    Log.e(LOG_TAG, "Failed to move picture of fruit " + id, e);
+                    values.put(FruitEntry.COLUMN_FRUIT_PICTURE, picture);
+                }
+            }
+            if (thumbnail != null) {
+                values.put(FruitEntry.COLUMN_FRUIT_THUMBNAIL, thumbnail);
+            }
+        } finally {
+            old.close();
+        }
+
+        if (values.size() != 0) {
+            db.update(FruitEntry.TABLE_NAME, values, FruitEntry._ID + "=?", selectionArgs);
+        }
+    }
+
+    /**
+     * Create the triggers keeping the summary up to date, in cents, with the quantities and
+     * totals of the fruits as the view computes them.
+     */
+    private static void createSummaryTriggers(SQLiteDatabase db) {
+        String price = FruitEntry.COLUMN_FRUIT_PRICE;
+        db.execSQL("CREATE TRIGGER fruits_summary_insert AFTER INSERT ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("1", "new." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "new." + price + " * new." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "new." + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+                        "new." + price + " * new." + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED)
+                + " END");
+        db.execSQL("CREATE TRIGGER fruits_summary_update AFTER UPDATE OF "
+                + price + ", " + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", "
+                + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION
+                + " ON " + FruitEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("0",
+                        LedgerMigration.buildQuantity("new") + " - "
+                                + LedgerMigration.buildQuantity("old"),
+                        "new." + price + " * " + LedgerMigration.buildQuantity("new")
+                                + " - old." + price + " * "
+                                + LedgerMigration.buildQuantity("old"),
+                        LedgerMigration.buildQuantityOrdered("new") + " - "
+                                + LedgerMigration.buildQuantityOrdered("old"),
+                        "new." + price + " * " + LedgerMigration.buildQuantityOrdered("new")
+                                + " - old." + price + " * "
+                                + LedgerMigration.buildQuantityOrdered("old"))
+                + " END");
+        db.execSQL("CREATE TRIGGER fruits_summary_delete AFTER DELETE ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("-1", "-" + LedgerMigration.buildQuantity("old"),
+                        "-old." + price + " * " + LedgerMigration.buildQuantity("old"),
+                        "-" + LedgerMigration.buildQuantityOrdered("old"),
+                        "-old." + price + " * " + LedgerMigration.buildQuantityOrdered("old"))
+                + " END");
+
+        String fruitPrice = "(SELECT " + price + " FROM " + FruitEntry.TABLE_NAME
+                + " WHERE " + FruitEntry._ID + " = new." + OrderEntry.COLUMN_ORDER_FRUIT_ID + ")";
+        db.execSQL("CREATE TRIGGER order_events_summary_insert AFTER INSERT ON "
+                + OrderEntry.TABLE_NAME + " BEGIN "
+                + SummaryMigration.buildUpdate("0", "new." + OrderEntry.COLUMN_ORDER_QUANTITY,
+                        "new." + OrderEntry.COLUMN_ORDER_QUANTITY + " * " + fruitPrice,
+                        "new." + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED,
+                        "new." + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + " * " + fruitPrice)
+                + " END");
+    }
+
+    /**
+     * Create the view of the fruits with their tails applied and their totals computed, with
+     * the columns of the fruits table up to this version, and the given later ones.
+     */
+    static void createCurrentView(SQLiteDatabase db, String... laterColumns) {
+        String fruits = FruitEntry.TABLE_NAME;
+        String quantityOrdered = LedgerMigration.buildQuantityOrdered(fruits);
+        StringBuilder sql = new StringBuilder("CREATE VIEW ")
+                .append(FruitEntry.CURRENT_VIEW_NAME).append(" AS SELECT ")
+                .append(FruitEntry._ID).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_NAME).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PRICE).append(", ")
+                .append(LedgerMigration.buildQuantity(fruits)).append(" AS ")
+                .append(FruitEntry.COLUMN_FRUIT_QUANTITY).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_SUPPLIER).append(", ")
+                .append(quantityOrdered).append(" AS ")
+                .append(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PRICE).append(" * ").append(quantityOrdered)
+                .append(" AS ").append(FruitEntry.COLUMN_FRUIT_TOTAL).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PICTURE).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_PICTURE_VERSION).append(", ")
+                .append(FruitEntry.COLUMN_FRUIT_THUMBNAIL);
+        for (String column : laterColumns) {
+            sql.append(", ").append(column);
+        }
+        db.execSQL(sql.append(" FROM ").append(fruits).toString());
+    }
+
+    /**
+     * Return the SQL expression of the given price column, in units, as cents. NULL stays NULL.
+     */
+    private static String toCents(String column) {
+        return "CAST(ROUND(" + column + " * 100) AS INTEGER)";
+    }
+
+    /**
+     * Replace the given table with its rebuilt copy, named with the suffix _new, keeping the
+     * AUTOINCREMENT sequence of the table if it has one, so the IDs of deleted rows aren't
+     * handed out again.
+     *
+     * @param oldName name the table is renamed to, to keep its rows, or null to drop it
+     */
+    private static void replaceTable(SQLiteDatabase db, String table, String oldName) {
+        String[] sequenceArgs = { table };
+        long sequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), -1) FROM "
+                + SEQUENCE_TABLE_NAME + " WHERE name = ?", sequenceArgs);
+
+        if (oldName == null) {
+            db.execSQL("DROP TABLE " + table);
+        } else {
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + oldName);
+        }
+        db.execSQL("ALTER TABLE " + table + "_new RENAME TO " + table);
+
+        if (sequence != -1) {
+            db.execSQL("DELETE FROM " + SEQUENCE_TABLE_NAME + " WHERE name = ?", sequenceArgs);
+            db.execSQL("INSERT INTO " + SEQUENCE_TABLE_NAME + " (name, seq) VALUES (?, ?)",
+                    new Object[] { table, sequence });
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Version 5: adds the index backing the name order of the catalog pages. Like every index, it
+ * ends with the rowid (the fruit ID), so it also covers the (name, ID) page keys.
+ */
+class NameIndexMigration extends Migration {
+
+    NameIndexMigration() {
+        super(5, "name_index");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX fruits_name ON " + FruitEntry.TABLE_NAME
+                + " (" + FruitEntry.COLUMN_FRUIT_NAME + ")");
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.AsyncTask;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.OrderEntry;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the orders and stock changes of the fruits as entries appended to the order ledger,
+ * instead of rewriting the quantities of the fruit: recording one is a single insert.
+ *
+ * The quantities of a fruit are the snapshot held by its row in the fruits table, plus the
+ * entries recorded after its ledger position (the tail). Every so many entries, the tails are
+ * folded into the snapshots in the background, a chunk at a time, so they stay short and reading
+ * the quantities of a fruit stays cheap. The entries themselves are kept, as the history of the
+ * fruit.
+ */
+final class OrderLedger {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = OrderLedger.class.getSimpleName();
+
+    /** Number of entries recorded since the last compaction that start a new one */
+    private static final int COMPACTION_THRESHOLD = 256;
+
+    /** Maximum number of entries folded per transaction */
+    private static final int COMPACTION_CHUNK_SIZE = 500;
+
+    /**
+     * Records an order of one unit of a fruit, but only while there is stock left. Its price is
+     * applied by the total of the fruit, see {@link FruitEntry#COLUMN_FRUIT_TOTAL}.
+     */
+    private static final String SQL_ORDER = "INSERT INTO " + OrderEntry.TABLE_NAME + " ("
+            + OrderEntry.COLUMN_ORDER_FRUIT_ID + ", " + OrderEntry.COLUMN_ORDER_QUANTITY + ", "
+            + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + ", " + OrderEntry.COLUMN_ORDER_TIME
+            + ") SELECT " + FruitEntry._ID + ", -1, 1, ?1 FROM " + FruitEntry.TABLE_NAME
+            + " WHERE " + FruitEntry._ID + " = ?2 AND " + FruitEntry.COLUMN_FRUIT_QUANTITY + " + "
+            + buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY, FruitEntry.TABLE_NAME, null) + " > 0";
+
+    /**
+     * Records a change to the stock of a fruit, but only if it doesn't take more than there is.
+     */
+    private static final String SQL_CHANGE_STOCK = "INSERT INTO " + OrderEntry.TABLE_NAME + " ("
+            + OrderEntry.COLUMN_ORDER_FRUIT_ID + ", " + OrderEntry.COLUMN_ORDER_QUANTITY + ", "
+            + OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED + ", " + OrderEntry.COLUMN_ORDER_TIME
+            + ") SELECT " + FruitEntry._ID + ", ?3, 0, ?1 FROM "
+            + FruitEntry.TABLE_NAME + " WHERE " + FruitEntry._ID + " = ?2 AND "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY + " + "
+            + buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY, FruitEntry.TABLE_NAME, null)
+            + " + ?3 >= 0";
+
+    /**
+     * Folds the tail of a fruit, up to the given entry ID, into its snapshot. All the expressions
+     * read the row as it was before the update.
+     */
+    private static final String SQL_FOLD = "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY + " = " + FruitEntry.COLUMN_FRUIT_QUANTITY + " + "
+            + buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY, FruitEntry.TABLE_NAME, "?1") + ", "
+            + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " = IFNULL("
+            + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", 0) + "
+            + buildTailSum(OrderEntry.COLUMN_ORDER_QUANTITY_ORDERED, FruitEntry.TABLE_NAME, "?1")
+            + ", "
+            + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + " = IFNULL((SELECT MAX(e." + OrderEntry._ID
+            + ") FROM " + OrderEntry.TABLE_NAME + " e WHERE e." + OrderEntry.COLUMN_ORDER_FRUIT_ID
+            + " = " + FruitEntry.TABLE_NAME + "." + FruitEntry._ID + " AND e." + OrderEntry._ID
+            + " > " + FruitEntry.TABLE_NAME + "." + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION
+            + " AND e." + OrderEntry._ID + " <= ?1), "
+            + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + ")"
+            + " WHERE " + FruitEntry._ID + " = ?2";
+
+    private final FruitDbHelper mDbHelper;
+
+    /** Number of entries recorded since the last compaction */
+    private final AtomicInteger mRecorded = new AtomicInteger();
+
+    /** Whether a compaction is running */
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    OrderLedger(FruitDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Return the SQL expression adding up the given column over the tail of a fruit.
+     *
+     * @param column column of the order ledger
+     * @param fruit  name of the fruit row the expression is evaluated for (a table, or the
+     *               new or old row in a trigger)
+     * @param upTo   SQL expression of the last entry ID to include, or null for every entry
+     */
+    static String buildTailSum(String column, String fruit, String upTo) {
+        return "(SELECT IFNULL(SUM(e." + column + "), 0) FROM " + OrderEntry.TABLE_NAME
+                + " e WHERE e." + OrderEntry.COLUMN_ORDER_FRUIT_ID + " = " + fruit + "."
+                + FruitEntry._ID + " AND e." + OrderEntry._ID + " > " + fruit + "."
+                + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION
+                + (upTo == null ? "" : " AND e." + OrderEntry._ID + " <= " + upTo) + ")";
+    }
+
+    /**
+     * Record an order of one unit of the given fruit, as long as there is stock left.
+     * Return 1 if the fruit was ordered, 0 if it is out of stock (or doesn't exist).
+     */
+    int order(long id) {
+        SQLiteStatement statement = mDbHelper.acquireStatement(SQL_ORDER);
+        int recorded;
+        try {
+            statement.bindLong(1, System.currentTimeMillis());
+            statement.bindLong(2, id);
+            recorded = statement.executeUpdateDelete();
+        } finally {
+            mDbHelper.releaseStatement(statement);
+        }
+        onRecorded(recorded);
+        return recorded;
+    }
+
+    /**
+     * Record a change of the stock of the given fruit, as long as it doesn't take more than
+     * there is. Return 1 if the stock was changed, 0 otherwise.
+     *
+     * @param quantity quantity to add, negative to take from the stock
+     */
+    int changeStock(long id, int quantity) {
+        SQLiteStatement statement = mDbHelper.acquireStatement(SQL_CHANGE_STOCK);
+        int recorded;
+        try {
+            statement.bindLong(1, System.currentTimeMillis());
+            statement.bindLong(2, id);
+            statement.bindLong(3, quantity);
+            recorded = statement.executeUpdateDelete();
+        } finally {
+            mDbHelper.releaseStatement(statement);
+        }
+        onRecorded(recorded);
+        return recorded;
+    }
+
+    /**
+     * Fold the whole tail of the given fruits into their snapshots, so their quantities can be
+     * written directly. Must be called inside the transaction doing the writing.
+     */
+    void fold(long[] ids) {
+        fold(ids, Long.MAX_VALUE);
+    }
+
+    private void fold(long[] ids, long upTo) {
+        SQLiteStatement statement = mDbHelper.acquireStatement(SQL_FOLD);
+        try {
+            for (long id : ids) {
+                statement.bindLong(1, upTo);
+                statement.bindLong(2, id);
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            mDbHelper.releaseStatement(statement);
+        }
+    }
+
+    /**
+     * Start a compaction in the background once enough entries have been recorded.
+     */
+    private void onRecorded(int recorded) {
+        if (recorded != 0 && mRecorded.addAndGet(recorded) >= COMPACTION_THRESHOLD
+                && !mCompacting.get()) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mCompaction);
+        }
+    }
+
+    /**
+     * Fold every entry recorded so far into the snapshots, one chunk of entries per transaction.
+     * Does nothing if a compaction is already running. Compacting doesn't change the quantities
+     * read, so there is nothing to notify.
+     */
+    @WorkerThread
+    void compact() {
+        if (!mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mRecorded.set(0);
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            long compactedId = DatabaseUtils.longForQuery(db, "SELECT "
+                    + OrderEntry.COLUMN_COMPACTED_ID + " FROM "
+                    + OrderEntry.COMPACTION_TABLE_NAME, null);
+            long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + OrderEntry._ID + "), 0) FROM " + OrderEntry.TABLE_NAME, null);
+
+            while (compactedId < lastId) {
+                long upTo = Math.min(compactedId + COMPACTION_CHUNK_SIZE, lastId);
+                db.beginTransaction();
+                try {
+                    fold(queryFruitIds(db, compactedId, upTo), upTo);
+                    db.execSQL("UPDATE " + OrderEntry.COMPACTION_TABLE_NAME + " SET "
+                            + OrderEntry.COLUMN_COMPACTED_ID + " = ?", new Object[] { upTo });
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                compactedId = upTo;
+            }
+        } catch (RuntimeException e) {
+            // Nothing is lost, the entries are folded by the next compaction
+            Log.e(LOG_TAG, "Failed to compact the order ledger", e);
+        } finally {
+            mCompacting.set(false);
+        }
+    }
+
+    /**
+     * Return the IDs of the fruits with entries in the given range of entry IDs.
+     */
+    private static long[] queryFruitIds(SQLiteDatabase db, long afterId, long upTo) {
+        Cursor cursor = db.query(true, OrderEntry.TABLE_NAME,
+                new String[] { OrderEntry.COLUMN_ORDER_FRUIT_ID },
+                OrderEntry._ID + " > ? AND " + OrderEntry._ID + " <= ?",
+                new String[] { String.valueOf(afterId), String.valueOf(upTo) },
+                null, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
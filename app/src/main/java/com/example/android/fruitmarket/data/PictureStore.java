@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed store for the fruit pictures.
+ *
+ * Every picture lives in its own file inside the app storage, named after the SHA-1 of its
+ * bytes. The fruits table only keeps that name in {@link FruitEntry#COLUMN_FRUIT_PICTURE}, so
+ * pictures never travel through cursors, and two fruits with the same picture share one file.
+ */
+class PictureStore {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PictureStore.class.getSimpleName();
+
+    /** Name of the directory (inside the app files directory) holding the pictures */
+    private static final String PICTURES_DIR = "pictures";
+
+    /** Size of the buffer used to copy the pictures */
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Directory holding the pictures */
+    private final File mDirectory;
+
+    PictureStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), PICTURES_DIR);
+    }
+
+    /**
+     * Returns the file of the picture with the given reference, or null if the reference doesn't
+     * point to a stored picture (like the column default).
+     */
+    File getFile(String reference) {
+        if (!isReference(reference)) {
+            return null;
+        }
+        File file = new File(mDirectory, reference);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Stores the given picture and returns its reference. Must be called inside the transaction
+     * that writes the fruits using it, see {@link #commit(SQLiteDatabase, StagedPicture)}.
+     */
+    String write(SQLiteDatabase database, byte[] picture) throws IOException {
+        StagedPicture staged = stage(picture);
+        try {
+            commit(database, staged);
+        } finally {
+            discard(staged);
+        }
+        return staged.reference;
+    }
+
+    /**
+     * Copies the given picture into the store, under a temporary name, and returns it with its
+     * reference. It isn't stored until it's committed, and the temporary file must be discarded
+     * either way.
+     *
+     * This is where the bytes are written, so it's best done before the transaction.
+     */
+    StagedPicture stage(byte[] picture) throws IOException {
+        return stage(new ByteArrayInputStream(picture));
+    }
+
+    /**
+     * Same as {@link #stage(byte[])}, for a picture streamed from the given input. The stream is
+     * consumed, but not closed.
+     */
+    StagedPicture stage(InputStream in) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Copy the picture into a temporary file while hashing it
+        File temp = File.createTempFile("picture", ".tmp", mDirectory);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            deleteFile(temp);
+            throw e;
+        } finally {
+            out.close();
+        }
+        return new StagedPicture(toHex(digest.digest()), temp);
+    }
+
+    /**
+     * Moves the given staged picture in place, unless the same picture is already stored. Must be
+     * called inside the transaction that writes the fruits using it: write transactions run one
+     * at a time, so {@link #releaseIfUnused(SQLiteDatabase, String)} either deletes the file
+     * before, and it's stored again, or runs after, and sees those fruits.
+     */
+    void commit(SQLiteDatabase database, StagedPicture picture) throws IOException {
+        if (!database.inTransaction()) {
+            throw new IllegalStateException("Pictures are stored inside a transaction");
+        }
+        File file = new File(mDirectory, picture.reference);
+        if (!file.isFile() && !picture.file.renameTo(file)) {
+            throw new IOException("Failed to store picture " + picture.reference);
+        }
+    }
+
+    /**
+     * Deletes what is left of the given staged picture, once it's committed or given up.
+     */
+    void discard(StagedPicture picture) {
+        if (picture.file.exists()) {
+            deleteFile(picture.file);
+        }
+    }
+
+    /**
+     * Deletes the picture with the given reference, unless some fruit still uses it. Must be
+     * called inside the transaction that drops the fruits' references to it, as its last step, so
+     * no fruit can start using the picture between the check and the delete.
+     */
+    void releaseIfUnused(SQLiteDatabase database, String reference) {
+        if (!database.inTransaction()) {
+            throw new IllegalStateException("Pictures are released inside a transaction");
+        }
+        File file = getFile(reference);
+        if (file == null) {
+            return;
+        }
+
+        long users = DatabaseUtils.queryNumEntries(database, FruitEntry.TABLE_NAME,
+                FruitEntry.COLUMN_FRUIT_PICTURE + "=?", new String[] { reference });
+        if (users == 0) {
+            deleteFile(file);
+        }
+    }
+
+    /**
+     * Returns true if the given column value is a reference to a stored picture.
+     */
+    static boolean isReference(String value) {
+        if (value == null || value.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(LOG_TAG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * A picture copied into the store under a temporary name, with the reference it's stored
+     * under once committed.
+     */
+    static final class StagedPicture {
+
+        /** Reference of the picture, which the fruits using it keep */
+        final String reference;
+
+        /** Temporary file holding the picture until it's committed */
+        final File file;
+
+        private StagedPicture(String reference, File file) {
+            this.reference = reference;
+            this.file = file;
+        }
+    }
+}
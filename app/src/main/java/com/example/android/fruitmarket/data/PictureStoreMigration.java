@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.io.IOException;
+
+/**
+ * Version 4: moves the pictures out of the table into the {@link PictureStore}, leaving only
+ * their reference in the rows.
+ *
+ * This is also what fixes the picture column, declared TEXT but holding the picture bytes until
+ * now: from this version on it holds the text reference of the picture file.
+ */
+class PictureStoreMigration extends ChunkedMigration {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PictureStoreMigration.class.getSimpleName();
+
+    /** Store the pictures are moved to */
+    private final PictureStore mPictureStore;
+
+    PictureStoreMigration(PictureStore pictureStore) {
+        super(4, "picture_store");
+        mPictureStore = pictureStore;
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        // Only the rows change
+    }
+
+    @Override
+    long migrateChunk(SQLiteDatabase db, long afterId, int limit) {
+        long[] ids = queryChunkIds(db,
+                "typeof(" + FruitEntry.COLUMN_FRUIT_PICTURE + ")='blob'", afterId, limit);
+        for (long id : ids) {
+            // Pictures are read one row at a time, so a chunk never has to fit in a single
+            // cursor window
+            String[] selectionArgs = { String.valueOf(id) };
+            Cursor picture = db.query(FruitEntry.TABLE_NAME,
+                    new String[] { FruitEntry.COLUMN_FRUIT_PICTURE },
+                    FruitEntry._ID + "=?", selectionArgs, null, null, null);
+            String reference = null;
+            try {
+                if (picture.moveToFirst()) {
+                    reference = mPictureStore.write(db, picture.getBlob(0));
+                }
+            } catch (IOException e) {
+                // Keep the picture inline, rather than losing it
+                Log.e(LOG_TAG, "Failed to move picture of fruit " + id, e);
+            } finally {
+                picture.close();
+            }
+
+            if (reference != null) {
+                ContentValues values = new ContentValues();
+                values.put(FruitEntry.COLUMN_FRUIT_PICTURE, reference);
+                db.update(FruitEntry.TABLE_NAME, values, FruitEntry._ID + "=?", selectionArgs);
+            }
+        }
+        return ids.length == 0 ? NO_MORE_ROWS : ids[ids.length - 1];
+    }
+}
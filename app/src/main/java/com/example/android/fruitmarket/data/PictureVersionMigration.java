@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Version 2: adds the picture version used to key cached thumbnails.
+ */
+class PictureVersionMigration extends Migration {
+
+    PictureVersionMigration() {
+        super(2, "picture_version");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_PICTURE_VERSION + " INTEGER NOT NULL DEFAULT 0");
+    }
+}
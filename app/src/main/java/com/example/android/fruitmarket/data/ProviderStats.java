@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+
+import com.example.android.fruitmarket.BuildConfig;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls made to {@link FruitProvider}, per URI and operation: how many, the rows they
+ * changed or that were read from the cursors they returned, the bytes of blobs read from those
+ * cursors, the changes they notified, and a histogram of their latencies.
+ *
+ * Recording only adds to atomic counters, no lock is taken. Stats are only kept when
+ * {@link BuildConfig#PROVIDER_STATS} is set (debug builds); otherwise {@link #ENABLED} is a false
+ * constant, and the code recording them is compiled out of the provider.
+ */
+final class ProviderStats {
+
+    /** Whether the stats are kept */
+    static final boolean ENABLED = BuildConfig.PROVIDER_STATS;
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+
+    private static final String[] OPERATION_NAMES = { "query", "insert", "update", "delete" };
+
+    // Counters of each slot, followed by its latency histogram
+    private static final int CALLS = 0;
+    private static final int ROWS = 1;
+    private static final int BLOB_BYTES = 2;
+    private static final int NOTIFICATIONS = 3;
+    private static final int TOTAL_NANOS = 4;
+    private static final int HISTOGRAM = 5;
+
+    /**
+     * Number of latency buckets: bucket 0 counts the calls under 1 microsecond, bucket b the ones
+     * from 2^(b-1) up to 2^b microseconds, and the last one every call from 2^22 (about 4 s) on.
+     */
+    private static final int BUCKET_COUNT = 24;
+
+    private static final int SLOT_SIZE = HISTOGRAM + BUCKET_COUNT;
+
+    /** Name of each URI, by its index */
+    private final String[] mUriNames;
+
+    /** Counters of every URI and operation, one slot after another */
+    private final AtomicLongArray mCounters;
+
+    /** Number of notifications dispatched, each one possibly covering many changes */
+    private final AtomicLong mDispatched = new AtomicLong();
+
+    /** Changes notified by the call running on each thread */
+    private final ThreadLocal<long[]> mNotified = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * @param uriNames name of each URI the calls are recorded for, by its index
+     */
+    ProviderStats(String[] uriNames) {
+        mUriNames = uriNames;
+        mCounters = new AtomicLongArray(uriNames.length * OPERATION_NAMES.length * SLOT_SIZE);
+    }
+
+    /**
+     * Start recording a call on the current thread, return the time it started.
+     */
+    long begin() {
+        mNotified.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a call started by {@link #begin()} on the current thread.
+     *
+     * @param uri       index of the URI called
+     * @param operation one of {@link #QUERY}, {@link #INSERT}, {@link #UPDATE} or {@link #DELETE}
+     * @param start     time returned by {@link #begin()}
+     * @param rows      number of rows changed, queries count theirs as they are read
+     */
+    void end(int uri, int operation, long start, long rows) {
+        long nanos = System.nanoTime() - start;
+        int slot = (uri * OPERATION_NAMES.length + operation) * SLOT_SIZE;
+        mCounters.incrementAndGet(slot + CALLS);
+        mCounters.addAndGet(slot + ROWS, rows);
+        mCounters.addAndGet(slot + NOTIFICATIONS, mNotified.get()[0]);
+        mCounters.addAndGet(slot + TOTAL_NANOS, nanos);
+        mCounters.incrementAndGet(slot + HISTOGRAM + bucketOf(nanos / 1000));
+    }
+
+    /**
+     * Record a query, and return its cursor counting the rows and blob bytes read from it. The
+     * rows aren't counted up front, which would fill the cursor window inside the call timed.
+     */
+    Cursor endQuery(int uri, long start, Cursor cursor) {
+        end(uri, QUERY, start, 0);
+        return new CountingCursor(cursor, (uri * OPERATION_NAMES.length + QUERY) * SLOT_SIZE);
+    }
+
+    /**
+     * Record changes notified by the call running on the current thread.
+     */
+    void onNotify(int changes) {
+        mNotified.get()[0] += changes;
+    }
+
+    /**
+     * Record a notification dispatched.
+     */
+    void onDispatch() {
+        mDispatched.incrementAndGet();
+    }
+
+    private static int bucketOf(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Return the upper bound (in microseconds) of the bucket holding the given fraction of the
+     * calls of a slot, or 0 if it has none.
+     */
+    private long percentile(int slot, long calls, double fraction) {
+        long rank = (long) Math.ceil(calls * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounters.get(slot + HISTOGRAM + bucket);
+            if (seen >= rank && seen != 0) {
+                return 1L << bucket;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the stats as a bundle: the number of notifications dispatched, and a bundle per URI
+     * and operation called at least once, named like "fruits.query", with its counters, its
+     * estimated p50 and p99 latencies, and its latency histogram.
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean("enabled", ENABLED);
+        bundle.putLong("dispatched", mDispatched.get());
+        for (int uri = 0; uri < mUriNames.length; uri++) {
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                int slot = (uri * OPERATION_NAMES.length + operation) * SLOT_SIZE;
+                long calls = mCounters.get(slot + CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                Bundle stats = new Bundle();
+                stats.putLong("calls", calls);
+                stats.putLong("rows", mCounters.get(slot + ROWS));
+                stats.putLong("blob_bytes", mCounters.get(slot + BLOB_BYTES));
+                stats.putLong("notifications", mCounters.get(slot + NOTIFICATIONS));
+                stats.putLong("total_us", mCounters.get(slot + TOTAL_NANOS) / 1000);
+                stats.putLong("p50_us", percentile(slot, calls, 0.5));
+                stats.putLong("p99_us", percentile(slot, calls, 0.99));
+                long[] histogram = new long[BUCKET_COUNT];
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    histogram[bucket] = mCounters.get(slot + HISTOGRAM + bucket);
+                }
+                stats.putLongArray("histogram", histogram);
+                bundle.putBundle(mUriNames[uri] + "." + OPERATION_NAMES[operation], stats);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Print the stats as a table, one line per URI and operation called at least once. The
+     * latencies are upper bounds, in microseconds.
+     */
+    void dump(PrintWriter writer) {
+        if (!ENABLED) {
+            writer.println("Provider stats are disabled in this build");
+            return;
+        }
+        writer.println(String.format(Locale.US, "%-16s %8s %10s %12s %8s %10s %8s %8s",
+                "call", "calls", "rows", "blob_bytes", "notified", "avg_us", "p50_us", "p99_us"));
+        for (int uri = 0; uri < mUriNames.length; uri++) {
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                int slot = (uri * OPERATION_NAMES.length + operation) * SLOT_SIZE;
+                long calls = mCounters.get(slot + CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                writer.println(String.format(Locale.US,
+                        "%-16s %8d %10d %12d %8d %10d %8d %8d",
+                        mUriNames[uri] + "." + OPERATION_NAMES[operation], calls,
+                        mCounters.get(slot + ROWS), mCounters.get(slot + BLOB_BYTES),
+                        mCounters.get(slot + NOTIFICATIONS),
+                        mCounters.get(slot + TOTAL_NANOS) / 1000 / calls,
+                        percentile(slot, calls, 0.5), percentile(slot, calls, 0.99)));
+            }
+        }
+        writer.println("Notifications dispatched: " + mDispatched.get());
+    }
+
+    /**
+     * Cursor adding the rows it moves to, and the size of the blobs read from it, to the counters
+     * of a slot. A row counts once, however many times it is moved to, and every row before the
+     * furthest one moved to counts as read.
+     */
+    private final class CountingCursor extends CursorWrapper {
+
+        /** Index of the slot of the counters */
+        private final int mSlot;
+
+        /** Number of rows counted so far, up to the furthest one moved to */
+        private int mRowsCounted;
+
+        CountingCursor(Cursor cursor, int slot) {
+            super(cursor);
+            mSlot = slot;
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return countRows(super.move(offset));
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return countRows(super.moveToPosition(position));
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return countRows(super.moveToFirst());
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return countRows(super.moveToLast());
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return countRows(super.moveToNext());
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return countRows(super.moveToPrevious());
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            byte[] blob = super.getBlob(columnIndex);
+            if (blob != null) {
+                mCounters.addAndGet(mSlot + BLOB_BYTES, blob.length);
+            }
+            return blob;
+        }
+
+        /**
+         * Count the rows up to the current one if it's further than any before, and return the
+         * given result of the move.
+         */
+        private boolean countRows(boolean moved) {
+            if (moved) {
+                int rows = getPosition() + 1;
+                if (rows > mRowsCounted) {
+                    mCounters.addAndGet(mSlot + ROWS, rows - mRowsCounted);
+                    mRowsCounted = rows;
+                }
+            }
+            return moved;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.util.LruCache;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last fruits looked up by ID, whole, so opening a fruit, then editing it, then opening it
+ * again reads it from the database only once. Any projection of a cached fruit is served from
+ * memory, as a {@link MatrixCursor}.
+ *
+ * Every write to a fruit must {@link #invalidate} it once committed, or {@link #clear} the cache
+ * when the fruits written aren't known. A fruit read before a write committed, and put after it
+ * was invalidated, would be stale: {@link #put} drops it, see {@link #getGeneration()}.
+ */
+final class RowCache {
+
+    /** Maximum number of fruits kept */
+    private static final int MAX_SIZE = 32;
+
+    /** A fruit row, with every column of {@link FruitEntry#CURRENT_VIEW_NAME} */
+    static final class Row {
+
+        private final String[] mColumns;
+        private final Object[] mValues;
+
+        private Row(String[] columns, Object[] values) {
+            mColumns = columns;
+            mValues = values;
+        }
+
+        /**
+         * Return a cursor holding the given columns of the row, or null if some of them aren't
+         * plain columns of the row (an expression, for instance).
+         *
+         * @param projection columns to return, or null for every column
+         */
+        Cursor toCursor(String[] projection) {
+            if (projection == null) {
+                MatrixCursor cursor = new MatrixCursor(mColumns, 1);
+                cursor.addRow(mValues);
+                return cursor;
+            }
+
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                int index = indexOf(projection[i]);
+                if (index == -1) {
+                    return null;
+                }
+                values[i] = mValues[index];
+            }
+            MatrixCursor cursor = new MatrixCursor(projection, 1);
+            cursor.addRow(values);
+            return cursor;
+        }
+
+        private int indexOf(String column) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equals(column)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final LruCache<Long, Row> mRows = new LruCache<Long, Row>(MAX_SIZE);
+
+    /** Number of invalidations so far */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Read the row of the given cursor, and close it. Return null if the cursor is empty.
+     */
+    static Row readRow(Cursor cursor) {
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Object[] values = new Object[cursor.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        values[i] = null;
+                }
+            }
+            return new Row(cursor.getColumnNames(), values);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the cached row of the given fruit, or null if it isn't cached.
+     */
+    Row get(long id) {
+        Row row = mRows.get(id);
+        if (row != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return row;
+    }
+
+    /**
+     * Return the current generation, to get before reading a row to {@link #put}.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Cache the row of the given fruit, unless something was invalidated since it was read.
+     *
+     * @param generation generation got before reading the row
+     */
+    synchronized void put(long id, Row row, long generation) {
+        if (mGeneration.get() == generation) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drop the given fruit.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration.incrementAndGet();
+        mRows.remove(id);
+    }
+
+    /**
+     * Drop the given fruits.
+     */
+    synchronized void invalidate(long[] ids) {
+        mGeneration.incrementAndGet();
+        for (long id : ids) {
+            mRows.remove(id);
+        }
+    }
+
+    /**
+     * Drop every fruit.
+     */
+    synchronized void clear() {
+        mGeneration.incrementAndGet();
+        mRows.evictAll();
+    }
+
+    /** Number of lookups served from the cache */
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Number of lookups that had to read the database */
+    long getMissCount() {
+        return mMisses.get();
+    }
+}
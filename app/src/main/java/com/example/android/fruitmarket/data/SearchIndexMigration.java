@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Version 6: adds the full-text index over the name and supplier of the fruits, and the
+ * triggers that keep it in sync with the fruits table. The docid of the index is the fruit ID.
+ *
+ * The triggers take care of the fruits written from then on, the existing ones are indexed
+ * chunk by chunk.
+ */
+class SearchIndexMigration extends ChunkedMigration {
+
+    /** Indexing only copies two short columns, so the chunks can be big */
+    private static final int CHUNK_SIZE = 1000;
+
+    SearchIndexMigration() {
+        super(6, "search_index");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + FruitEntry.SEARCH_TABLE_NAME + " USING fts4("
+                + FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry.COLUMN_FRUIT_SUPPLIER + ")");
+        createTriggers(db);
+    }
+
+    /**
+     * Create the triggers keeping the index in sync with the fruits table.
+     */
+    static void createTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER fruits_search_insert AFTER INSERT ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + FruitEntry.SEARCH_TABLE_NAME + " (docid, "
+                + FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry.COLUMN_FRUIT_SUPPLIER + ") "
+                + "VALUES (new." + FruitEntry._ID + ", new." + FruitEntry.COLUMN_FRUIT_NAME
+                + ", new." + FruitEntry.COLUMN_FRUIT_SUPPLIER + "); END");
+        db.execSQL("CREATE TRIGGER fruits_search_update AFTER UPDATE OF "
+                + FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry.COLUMN_FRUIT_SUPPLIER
+                + " ON " + FruitEntry.TABLE_NAME + " BEGIN "
+                + "UPDATE " + FruitEntry.SEARCH_TABLE_NAME + " SET "
+                + FruitEntry.COLUMN_FRUIT_NAME + " = new." + FruitEntry.COLUMN_FRUIT_NAME + ", "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + " = new." + FruitEntry.COLUMN_FRUIT_SUPPLIER
+                + " WHERE docid = old." + FruitEntry._ID + "; END");
+        db.execSQL("CREATE TRIGGER fruits_search_delete AFTER DELETE ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + FruitEntry.SEARCH_TABLE_NAME
+                + " WHERE docid = old." + FruitEntry._ID + "; END");
+    }
+
+    @Override
+    int getChunkSize() {
+        return CHUNK_SIZE;
+    }
+
+    @Override
+    long migrateChunk(SQLiteDatabase db, long afterId, int limit) {
+        long[] ids = queryChunkIds(db, null, afterId, limit);
+        if (ids.length == 0) {
+            return NO_MORE_ROWS;
+        }
+
+        // Fruits written since the upgrade are indexed by the triggers already
+        long lastId = ids[ids.length - 1];
+        db.execSQL("INSERT INTO " + FruitEntry.SEARCH_TABLE_NAME + " (docid, "
+                        + FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry.COLUMN_FRUIT_SUPPLIER + ") "
+                        + "SELECT " + FruitEntry._ID + ", " + FruitEntry.COLUMN_FRUIT_NAME + ", "
+                        + FruitEntry.COLUMN_FRUIT_SUPPLIER + " FROM " + FruitEntry.TABLE_NAME
+                        + " WHERE " + FruitEntry._ID + " > ? AND " + FruitEntry._ID + " <= ?"
+                        + " AND " + FruitEntry._ID + " NOT IN (SELECT docid FROM "
+                        + FruitEntry.SEARCH_TABLE_NAME + ")",
+                new Object[] { afterId, lastId });
+        return lastId;
+    }
+}
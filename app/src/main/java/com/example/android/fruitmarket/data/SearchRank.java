@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Ranks the fruits found by a full-text search, best first. Fruits whose name starts with the
+ * first word of the query come first, then the ones with the highest {@link #score}, then they
+ * are sorted by name.
+ *
+ * SQLite has no relevance function of its own, and the app can't register one, so the score is
+ * computed here from the raw counts of {@code matchinfo(..., 'pcx')}.
+ */
+final class SearchRank {
+
+    /**
+     * Orders the matches best first.
+     */
+    private static final Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match a, Match b) {
+            if (a.namePrefix != b.namePrefix) {
+                return a.namePrefix ? -1 : 1;
+            }
+            int byScore = Double.compare(b.score, a.score);
+            return byScore != 0 ? byScore : a.name.compareTo(b.name);
+        }
+    };
+
+    /** A fruit found by the search */
+    private static final class Match {
+        long id;
+        String name;
+        boolean namePrefix;
+        double score;
+    }
+
+    private SearchRank() {
+    }
+
+    /**
+     * Return the IDs of the fruits in the given cursor, best first. Its columns are the ID, the
+     * name and the {@code matchinfo(..., 'pcx')} of every fruit, in that order.
+     *
+     * @param firstWord first word of the query
+     */
+    static long[] rank(Cursor matches, String firstWord) {
+        Match[] ranked = new Match[matches.getCount()];
+        for (int i = 0; matches.moveToPosition(i); i++) {
+            Match match = new Match();
+            match.id = matches.getLong(0);
+            match.name = matches.getString(1) != null ? matches.getString(1) : "";
+            match.namePrefix = match.name.regionMatches(true, 0, firstWord, 0,
+                    firstWord.length());
+            match.score = score(matches.getBlob(2));
+            ranked[i] = match;
+        }
+        Arrays.sort(ranked, BEST_FIRST);
+
+        long[] ids = new long[ranked.length];
+        for (int i = 0; i < ranked.length; i++) {
+            ids[i] = ranked[i].id;
+        }
+        return ids;
+    }
+
+    /**
+     * Return the relevance of a fruit to the query, from its {@code matchinfo(..., 'pcx')}:
+     * every word adds the times it's found in the fruit, over the times it's found in every
+     * fruit. Words found in many fruits weigh less than rare ones, and the length of the fruit
+     * doesn't matter.
+     */
+    static double score(byte[] matchinfo) {
+        // Unsigned 32 bit integers, in the byte order of the device: the number of phrases and
+        // of columns, then 3 counts per phrase and column (hits in this row, hits in every
+        // row, rows with hits)
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int i = 0; i < phrases * columns; i++) {
+            int hits = info.get(2 + i * 3);
+            int allHits = info.get(3 + i * 3);
+            if (hits != 0) {
+                score += (double) hits / allHits;
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled statements of an open database, by their SQL, so the hot paths of
+ * {@link FruitProvider} don't prepare the same statement on every call.
+ *
+ * A statement keeps its bound arguments until it runs, so it must not be shared by two threads at
+ * once: {@link #acquire} hands it out to a single caller, which binds and executes it, then
+ * {@link #release}s it, in a finally block. A thread asking for a statement already in use gets
+ * a new one, and only one of them is kept once released.
+ *
+ * Statements belong to the database object they were compiled against. The cache is dropped
+ * whenever a new database object shows up (the helper was closed and reopened), and by
+ * {@link FruitDbHelper} around schema changes. Only the idle statements are closed then; the
+ * ones in use are closed as they are released.
+ */
+final class StatementCache {
+
+    /** Database the cached statements were compiled against */
+    private SQLiteDatabase mDatabase;
+
+    /** Idle statements, by their SQL */
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    /** SQL of the statements handed out and not released yet, by statement */
+    private final Map<SQLiteStatement, String> mInUse = new HashMap<SQLiteStatement, String>();
+
+    /**
+     * Return the compiled statement for the given SQL, compiling it only the first time, for the
+     * caller's use only until it's released.
+     */
+    synchronized SQLiteStatement acquire(SQLiteDatabase database, String sql) {
+        if (database != mDatabase) {
+            clear();
+            mDatabase = database;
+        }
+
+        SQLiteStatement statement = mStatements.remove(sql);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+        }
+        mInUse.put(statement, sql);
+        return statement;
+    }
+
+    /**
+     * Give back a statement returned by {@link #acquire}. It's kept for the next caller, unless
+     * the cache was cleared meanwhile or another one is already kept for the same SQL.
+     */
+    synchronized void release(SQLiteStatement statement) {
+        String sql = mInUse.remove(statement);
+        if (sql != null && !mStatements.containsKey(sql)) {
+            mStatements.put(sql, statement);
+        } else {
+            statement.close();
+        }
+    }
+
+    /**
+     * Close and forget every idle statement. The ones in use are closed once released.
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mInUse.clear();
+        mDatabase = null;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Set of SQLite settings the fruit database is opened with, applied by {@link FruitDbHelper}.
+ *
+ * The profile used by the app is chosen at build time, through the STORAGE_PROFILE field of
+ * the build config. Settings left at 0 keep the SQLite default.
+ *
+ * Android opens extra read connections on its own when write-ahead logging is enabled, and only
+ * the primary connection goes through the profile. The journal mode and the page size belong to
+ * the database file, so they reach every connection. The synchronous level and the checkpoint
+ * policy only matter to writes, which always run on the primary connection. The cache size and
+ * the memory map size only apply to the primary connection.
+ */
+final class StorageProfile {
+
+    /**
+     * Rollback journal, the SQLite default: a write blocks every read until it commits.
+     */
+    static final StorageProfile ROLLBACK = new StorageProfile("rollback", false, "FULL",
+            0, 0, 0, 0);
+
+    /**
+     * Write-ahead log: readers keep reading the last committed state while a write is running.
+     * NORMAL synchronous is safe in WAL mode, a power loss can only lose the last commits.
+     */
+    static final StorageProfile WAL = new StorageProfile("wal", true, "NORMAL",
+            4096, 2048, 0, 1000);
+
+    /**
+     * Same as {@link #WAL}, also reading the database through a memory map (SQLite 3.7.17 and
+     * later, older versions ignore it).
+     */
+    static final StorageProfile WAL_MMAP = new StorageProfile("wal_mmap", true, "NORMAL",
+            4096, 2048, 32 * 1024 * 1024, 1000);
+
+    /** Every known profile */
+    static final StorageProfile[] PROFILES = { ROLLBACK, WAL, WAL_MMAP };
+
+    /** Name of the profile, as used in the build config */
+    private final String mName;
+
+    /** Whether the database uses a write-ahead log instead of a rollback journal */
+    private final boolean mWriteAheadLogging;
+
+    /** Synchronous level: OFF, NORMAL or FULL */
+    private final String mSynchronous;
+
+    /** Page size in bytes, only taken into account by new databases */
+    private final int mPageSize;
+
+    /** Page cache size in kilobytes */
+    private final int mCacheSizeKb;
+
+    /** Maximum number of bytes of the database read through a memory map */
+    private final long mMmapSize;
+
+    /** Number of write-ahead log pages that trigger a checkpoint at commit */
+    private final int mAutoCheckpointPages;
+
+    private StorageProfile(String name, boolean writeAheadLogging, String synchronous,
+                           int pageSize, int cacheSizeKb, long mmapSize, int autoCheckpointPages) {
+        mName = name;
+        mWriteAheadLogging = writeAheadLogging;
+        mSynchronous = synchronous;
+        mPageSize = pageSize;
+        mCacheSizeKb = cacheSizeKb;
+        mMmapSize = mmapSize;
+        mAutoCheckpointPages = autoCheckpointPages;
+    }
+
+    /**
+     * Returns the profile with the given name.
+     *
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    static StorageProfile forName(String name) {
+        for (StorageProfile profile : PROFILES) {
+            if (profile.mName.equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage profile " + name);
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    boolean isWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    /**
+     * Apply the settings of this profile, but the journal mode, to the given connection. The
+     * page size goes first, since it can't change anymore once the database is in WAL mode.
+     */
+    void applyPragmas(SQLiteDatabase db) {
+        if (mPageSize > 0) {
+            pragma(db, "page_size=" + mPageSize);
+        }
+        pragma(db, "synchronous=" + mSynchronous);
+        if (mCacheSizeKb > 0) {
+            // Given in pages: a negative size, in kilobytes, needs SQLite 3.7.10, which API 15
+            // doesn't have. The page size is read back, since it can't change once set.
+            long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+            pragma(db, "cache_size=" + Math.max(1, mCacheSizeKb * 1024L / pageSize));
+        }
+        if (mMmapSize > 0) {
+            pragma(db, "mmap_size=" + mMmapSize);
+        }
+        if (mWriteAheadLogging && mAutoCheckpointPages > 0) {
+            pragma(db, "wal_autocheckpoint=" + mAutoCheckpointPages);
+        }
+    }
+
+    /**
+     * Run the given pragma. Some pragmas return their new value, which {@link SQLiteDatabase#execSQL}
+     * refuses, so they all go through a query.
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
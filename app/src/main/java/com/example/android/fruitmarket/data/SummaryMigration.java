@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.SummaryEntry;
+
+/**
+ * Version 7: adds the one-row inventory summary, and the triggers that keep it up to date.
+ * Every trigger applies the difference made by the changed fruit to the totals, so writing a
+ * fruit costs one more single-row update, and reading the summary costs one row whatever the
+ * number of fruits.
+ *
+ * The existing fruits are summed up once, here. It is a single read of the table, no row is
+ * rewritten, so it doesn't need to be chunked.
+ */
+class SummaryMigration extends Migration {
+
+    /** Ordered quantity and total were nullable in the first version of the table */
+    private static final String NEW_QUANTITY_ORDERED =
+            "IFNULL(new." + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", 0)";
+    private static final String OLD_QUANTITY_ORDERED =
+            "IFNULL(old." + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", 0)";
+    private static final String NEW_TOTAL = "IFNULL(new." + FruitEntry.COLUMN_FRUIT_TOTAL + ", 0)";
+    private static final String OLD_TOTAL = "IFNULL(old." + FruitEntry.COLUMN_FRUIT_TOTAL + ", 0)";
+
+    SummaryMigration() {
+        super(7, "summary");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " ("
+                + SummaryEntry._ID + " INTEGER PRIMARY KEY CHECK (" + SummaryEntry._ID + " = "
+                + SummaryEntry.ROW_ID + "), "
+                + SummaryEntry.COLUMN_FRUIT_COUNT + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_STOCK_QUANTITY + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " REAL NOT NULL, "
+                + SummaryEntry.COLUMN_ORDERED_QUANTITY + " INTEGER NOT NULL, "
+                + SummaryEntry.COLUMN_ORDERED_VALUE + " REAL NOT NULL)");
+
+        // TOTAL() is 0 for no rows, where SUM() would be NULL
+        db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " SELECT " + SummaryEntry.ROW_ID
+                + ", COUNT(*), TOTAL(" + FruitEntry.COLUMN_FRUIT_QUANTITY + "), TOTAL("
+                + FruitEntry.COLUMN_FRUIT_PRICE + " * " + FruitEntry.COLUMN_FRUIT_QUANTITY
+                + "), TOTAL(" + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + "), TOTAL("
+                + FruitEntry.COLUMN_FRUIT_TOTAL + ") FROM "
+                + FruitEntry.TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER fruits_summary_insert AFTER INSERT ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + buildUpdate("1", "new." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "new." + FruitEntry.COLUMN_FRUIT_PRICE
+                                + " * new." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        NEW_QUANTITY_ORDERED, NEW_TOTAL)
+                + " END");
+        db.execSQL("CREATE TRIGGER fruits_summary_update AFTER UPDATE OF "
+                + FruitEntry.COLUMN_FRUIT_PRICE + ", " + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + ", " + FruitEntry.COLUMN_FRUIT_TOTAL
+                + " ON " + FruitEntry.TABLE_NAME + " BEGIN "
+                + buildUpdate("0",
+                        "new." + FruitEntry.COLUMN_FRUIT_QUANTITY
+                                + " - old." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "new." + FruitEntry.COLUMN_FRUIT_PRICE
+                                + " * new." + FruitEntry.COLUMN_FRUIT_QUANTITY
+                                + " - old." + FruitEntry.COLUMN_FRUIT_PRICE
+                                + " * old." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        NEW_QUANTITY_ORDERED + " - " + OLD_QUANTITY_ORDERED,
+                        NEW_TOTAL + " - " + OLD_TOTAL)
+                + " END");
+        db.execSQL("CREATE TRIGGER fruits_summary_delete AFTER DELETE ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + buildUpdate("-1", "-old." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "-old." + FruitEntry.COLUMN_FRUIT_PRICE
+                                + " * old." + FruitEntry.COLUMN_FRUIT_QUANTITY,
+                        "-" + OLD_QUANTITY_ORDERED, "-" + OLD_TOTAL)
+                + " END");
+    }
+
+    /**
+     * Return the statement adding the given differences to the summary row.
+     */
+    static String buildUpdate(String countDelta, String quantityDelta, String valueDelta,
+                              String orderedQuantityDelta, String orderedValueDelta) {
+        return "UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.COLUMN_FRUIT_COUNT + " = " + SummaryEntry.COLUMN_FRUIT_COUNT
+                + " + " + countDelta + ", "
+                + SummaryEntry.COLUMN_STOCK_QUANTITY + " = " + SummaryEntry.COLUMN_STOCK_QUANTITY
+                + " + (" + quantityDelta + "), "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " = " + SummaryEntry.COLUMN_STOCK_VALUE
+                + " + (" + valueDelta + "), "
+                + SummaryEntry.COLUMN_ORDERED_QUANTITY + " = "
+                + SummaryEntry.COLUMN_ORDERED_QUANTITY + " + (" + orderedQuantityDelta + "), "
+                + SummaryEntry.COLUMN_ORDERED_VALUE + " = " + SummaryEntry.COLUMN_ORDERED_VALUE
+                + " + (" + orderedValueDelta + ")"
+                + " WHERE " + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID + ";";
+    }
+}
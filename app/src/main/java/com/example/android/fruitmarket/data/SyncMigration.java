@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.SyncEntry;
+
+/**
+ * Version 9: adds the version and modification time of the fruits, and the tables of
+ * {@link FruitSync}.
+ *
+ * The triggers give every inserted or changed fruit the next version, and stamp the time of the
+ * change. Folding an order ledger tail doesn't change a fruit, so it doesn't get a new version.
+ *
+ * The existing fruits keep version 0, and the sync starts from version -1, so they are all
+ * pushed by the first sync. No row is rewritten.
+ */
+class SyncMigration extends Migration {
+
+    /** Current time in milliseconds since the epoch, in SQL */
+    private static final String SQL_NOW =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    SyncMigration() {
+        super(9, "sync");
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_VERSION + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + " TEXT");
+        db.execSQL("CREATE INDEX fruits_version ON " + FruitEntry.TABLE_NAME
+                + " (" + FruitEntry.COLUMN_FRUIT_VERSION + ")");
+        db.execSQL("CREATE UNIQUE INDEX fruits_sync_id ON " + FruitEntry.TABLE_NAME
+                + " (" + FruitEntry.COLUMN_FRUIT_SYNC_ID + ")");
+
+        db.execSQL("DROP VIEW " + FruitEntry.CURRENT_VIEW_NAME);
+        LedgerMigration.createCurrentView(db, FruitEntry.COLUMN_FRUIT_VERSION,
+                FruitEntry.COLUMN_FRUIT_UPDATED_AT, FruitEntry.COLUMN_FRUIT_SYNC_ID);
+
+        db.execSQL("CREATE TABLE " + SyncEntry.STATE_TABLE_NAME + " ("
+                + SyncEntry._ID + " INTEGER PRIMARY KEY CHECK (" + SyncEntry._ID + " = 1), "
+                + SyncEntry.COLUMN_CHANGE_VERSION + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_SYNCED_VERSION + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_SYNCED_ORDER_ID + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_SERVER_TOKEN + " TEXT)");
+        db.execSQL("INSERT INTO " + SyncEntry.STATE_TABLE_NAME + " VALUES (1, 0, -1, 0, NULL)");
+
+        db.execSQL("CREATE TABLE " + SyncEntry.BASE_TABLE_NAME + " ("
+                + SyncEntry._ID + " INTEGER PRIMARY KEY, "
+                + SyncEntry.COLUMN_SERVER_VERSION + " INTEGER NOT NULL, "
+                + FruitEntry.COLUMN_FRUIT_NAME + " TEXT, "
+                + FruitEntry.COLUMN_FRUIT_SUPPLIER + " TEXT, "
+                + FruitEntry.COLUMN_FRUIT_PRICE + " REAL, "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY + " INTEGER, "
+                + FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED + " INTEGER, "
+                + FruitEntry.COLUMN_FRUIT_TOTAL + " REAL, "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " INTEGER)");
+        db.execSQL("CREATE TABLE " + SyncEntry.DELETED_TABLE_NAME + " ("
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + " TEXT PRIMARY KEY, "
+                + SyncEntry.COLUMN_SERVER_VERSION + " INTEGER NOT NULL)");
+
+        createTriggers(db, FruitEntry.COLUMN_FRUIT_NAME, FruitEntry.COLUMN_FRUIT_SUPPLIER,
+                FruitEntry.COLUMN_FRUIT_PRICE, FruitEntry.COLUMN_FRUIT_QUANTITY,
+                FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED, FruitEntry.COLUMN_FRUIT_TOTAL);
+    }
+
+    /**
+     * Create the triggers stamping the changes of the fruits, and recording the deletions.
+     *
+     * @param watchedColumns columns of the fruits table whose changes make a new version
+     */
+    static void createTriggers(SQLiteDatabase db, String... watchedColumns) {
+        db.execSQL("CREATE TRIGGER fruits_sync_insert AFTER INSERT ON "
+                + FruitEntry.TABLE_NAME + " BEGIN "
+                + buildStamp("new." + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " = 0") + " END");
+        db.execSQL("CREATE TRIGGER fruits_sync_update AFTER UPDATE OF "
+                + TextUtils.join(", ", watchedColumns)
+                + " ON " + FruitEntry.TABLE_NAME
+                + " WHEN new." + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION
+                + " = old." + FruitEntry.COLUMN_FRUIT_LEDGER_POSITION + " BEGIN "
+                + buildStamp("new." + FruitEntry.COLUMN_FRUIT_UPDATED_AT
+                        + " = old." + FruitEntry.COLUMN_FRUIT_UPDATED_AT) + " END");
+
+        // A synced fruit deleted here has to be deleted on the server too
+        db.execSQL("CREATE TRIGGER fruits_sync_delete AFTER DELETE ON "
+                + FruitEntry.TABLE_NAME + " WHEN old." + FruitEntry.COLUMN_FRUIT_SYNC_ID
+                + " IS NOT NULL BEGIN "
+                + "INSERT OR REPLACE INTO " + SyncEntry.DELETED_TABLE_NAME + " SELECT old."
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + ", IFNULL((SELECT "
+                + SyncEntry.COLUMN_SERVER_VERSION + " FROM " + SyncEntry.BASE_TABLE_NAME
+                + " WHERE " + SyncEntry._ID + " = old." + FruitEntry._ID + "), 0); "
+                + "DELETE FROM " + SyncEntry.BASE_TABLE_NAME + " WHERE " + SyncEntry._ID
+                + " = old." + FruitEntry._ID + "; END");
+    }
+
+    /**
+     * Return the statements giving the new fruit row the next version, and the current time
+     * unless the change set one.
+     *
+     * @param unstamped SQL condition true if the change didn't set the time
+     */
+    private static String buildStamp(String unstamped) {
+        return "UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                + SyncEntry.COLUMN_CHANGE_VERSION + " = " + SyncEntry.COLUMN_CHANGE_VERSION
+                + " + 1; "
+                + "UPDATE " + FruitEntry.TABLE_NAME + " SET "
+                + FruitEntry.COLUMN_FRUIT_VERSION + " = (SELECT "
+                + SyncEntry.COLUMN_CHANGE_VERSION + " FROM " + SyncEntry.STATE_TABLE_NAME + "), "
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " = CASE WHEN " + unstamped
+                + " THEN " + SQL_NOW + " ELSE new."
+                + FruitEntry.COLUMN_FRUIT_UPDATED_AT + " END"
+                + " WHERE " + FruitEntry._ID + " = new." + FruitEntry._ID + ";";
+    }
+}
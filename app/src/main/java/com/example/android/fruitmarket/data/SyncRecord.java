@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+/**
+ * One fruit as exchanged with an {@link InventoryServer}: its values, or the fact that it was
+ * deleted. Fruits are identified by their sync ID, the same for every copy of the app.
+ */
+public final class SyncRecord {
+
+    public final String syncId;
+
+    /**
+     * Coming from the server, the server version of these values. Going to the server, the
+     * server version the change was made on, 0 for a new fruit.
+     */
+    public final long version;
+
+    /** Whether the fruit was deleted, none of the values are set then */
+    public final boolean deleted;
+
+    public final String name;
+    public final String supplier;
+    /** Price per kg, in cents */
+    public final long price;
+    public final int quantity;
+    public final int quantityOrdered;
+
+    /** Time of the last change to the values, in milliseconds since the epoch */
+    public final long updatedAt;
+
+    public SyncRecord(String syncId, long version, String name, String supplier, long price,
+                      int quantity, int quantityOrdered, long updatedAt) {
+        this.syncId = syncId;
+        this.version = version;
+        this.deleted = false;
+        this.name = name;
+        this.supplier = supplier;
+        this.price = price;
+        this.quantity = quantity;
+        this.quantityOrdered = quantityOrdered;
+        this.updatedAt = updatedAt;
+    }
+
+    private SyncRecord(String syncId, long version) {
+        this.syncId = syncId;
+        this.version = version;
+        this.deleted = true;
+        this.name = null;
+        this.supplier = null;
+        this.price = 0;
+        this.quantity = 0;
+        this.quantityOrdered = 0;
+        this.updatedAt = 0;
+    }
+
+    /**
+     * Returns the record of a deleted fruit.
+     */
+    public static SyncRecord deleted(String syncId, long version) {
+        return new SyncRecord(syncId, version);
+    }
+
+    /**
+     * Returns a copy of this record with the given version.
+     */
+    public SyncRecord withVersion(long version) {
+        return deleted ? deleted(syncId, version) : new SyncRecord(syncId, version, name,
+                supplier, price, quantity, quantityOrdered, updatedAt);
+    }
+}
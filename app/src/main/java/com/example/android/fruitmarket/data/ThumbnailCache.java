@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Two-level cache of the pre-scaled fruit thumbnails shown in the catalog.
+ *
+ * Thumbnails are keyed by the fruit ID plus its {@link FruitContract.FruitEntry#COLUMN_FRUIT_PICTURE_VERSION},
+ * so a new picture never hits a stale entry. The first level keeps decoded bitmaps in memory,
+ * the second one keeps the already scaled thumbnails on disk, so a cold start doesn't need to
+ * decode and rescale the full picture again.
+ *
+ * Only the memory tier is read on the main thread, by {@link #get(long, long)}, without
+ * allocating. Everything else (reading the disk tier, decoding, scaling, writing to disk) runs in
+ * the background, started by {@link #load(long, long, byte[], Callback)}.
+ */
+public final class ThumbnailCache {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ThumbnailCache.class.getSimpleName();
+
+    /** Width and height (in pixels) of every thumbnail */
+    public static final int THUMBNAIL_SIZE = 250;
+
+    /** JPEG quality of the thumbnails stored in {@link FruitContract.FruitEntry#COLUMN_FRUIT_THUMBNAIL} */
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    /** Name of the directory (inside the app cache directory) holding the disk tier */
+    private static final String DISK_CACHE_DIR = "thumbnails";
+
+    /** Shared instance, see {@link #getInstance(Context)} */
+    private static ThumbnailCache sInstance;
+
+    /**
+     * Receives the thumbnails loaded by {@link #load(long, long, byte[], Callback)}, on the main
+     * thread.
+     */
+    public interface Callback {
+        /**
+         * Called with the loaded thumbnail, or null if it can't be decoded.
+         *
+         * @param id      ID of the fruit
+         * @param version version of the fruit picture
+         */
+        void onThumbnailLoaded(long id, long version, Bitmap thumbnail);
+    }
+
+    /** In-memory tier, sized in kilobytes */
+    private final LruCache<Key, Bitmap> mMemoryCache;
+
+    /** Key of the lookups of {@link #get(long, long)}, reused so they don't allocate */
+    private final Key mLookupKey = new Key(0, 0);
+
+    /** On-disk tier */
+    private final File mDiskCacheDir;
+
+    /** Posts the loaded thumbnails back to the main thread */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ThumbnailCache(Context context) {
+        // Use 1/8th of the available heap for the in-memory tier
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        mMemoryCache = new LruCache<Key, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+    }
+
+    /**
+     * Returns the cache shared by the whole app.
+     *
+     * @param context any context of the app
+     */
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the thumbnail of the given fruit picture held in memory, or null if it isn't
+     * there. Doesn't touch the disk, nor allocate, so it can be called while binding a row.
+     *
+     * @param id      ID of the fruit
+     * @param version version of the fruit picture
+     */
+    @MainThread
+    public Bitmap get(long id, long version) {
+        mLookupKey.id = id;
+        mLookupKey.version = version;
+        return mMemoryCache.get(mLookupKey);
+    }
+
+    /**
+     * Loads the thumbnail of the given fruit picture in the background, from the disk tier, or
+     * else decoded from the given encoded picture and stored in the disk tier. The thumbnail is
+     * then put in memory and handed to the given callback, on the main thread.
+     *
+     * @param id       ID of the fruit
+     * @param version  version of the fruit picture
+     * @param encoded  encoded thumbnail (or full picture) of the fruit
+     * @param callback receives the thumbnail
+     */
+    @MainThread
+    public void load(final long id, final long version, final byte[] encoded,
+                     final Callback callback) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = loadFromDisk(id, version, encoded);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (thumbnail != null) {
+                            mMemoryCache.put(new Key(id, version), thumbnail);
+                        }
+                        callback.onThumbnailLoaded(id, version, thumbnail);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the thumbnail of the given fruit picture from the disk tier, or else decodes it
+     * from the given encoded picture and stores it in the disk tier. Returns null if it can't be
+     * decoded.
+     */
+    @WorkerThread
+    private Bitmap loadFromDisk(long id, long version, byte[] encoded) {
+        File file = new File(mDiskCacheDir, id + "_" + version);
+        if (file.exists()) {
+            Bitmap thumbnail = BitmapFactory.decodeFile(file.getPath());
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        if (encoded == null) {
+            return null;
+        }
+        Bitmap thumbnail = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+        if (thumbnail == null) {
+            return null;
+        }
+        if (thumbnail.getWidth() != THUMBNAIL_SIZE || thumbnail.getHeight() != THUMBNAIL_SIZE) {
+            thumbnail = Bitmap.createScaledBitmap(thumbnail, THUMBNAIL_SIZE, THUMBNAIL_SIZE, false);
+        }
+        writeToDisk(file, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Drops every cached thumbnail of the given fruit, whatever its picture version.
+     *
+     * @param id ID of the fruit
+     */
+    public void invalidate(long id) {
+        for (Key key : mMemoryCache.snapshot().keySet()) {
+            if (key.id == id) {
+                mMemoryCache.remove(key);
+            }
+        }
+
+        String prefix = id + "_";
+
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && !file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete cached thumbnail " + file);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached thumbnail.
+     */
+    public void clear() {
+        mMemoryCache.evictAll();
+
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete cached thumbnail " + file);
+            }
+        }
+    }
+
+    /**
+     * Releases memory according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * The disk tier is kept, so trimmed thumbnails are only a cheap read away.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.size() / 2);
+        }
+    }
+
+    /**
+     * Scales the given picture down to a thumbnail and encodes it as a small JPEG, to be stored
+     * in {@link FruitContract.FruitEntry#COLUMN_FRUIT_THUMBNAIL}.
+     *
+     * @param picture encoded picture of the fruit
+     * @return the encoded thumbnail, or null if the picture can't be decoded
+     */
+    static byte[] encodeThumbnail(byte[] picture) {
+        if (picture == null) {
+            return null;
+        }
+        return encodeThumbnail(BitmapFactory.decodeByteArray(picture, 0, picture.length));
+    }
+
+    /**
+     * Same as {@link #encodeThumbnail(byte[])}, for a picture stored in a file.
+     *
+     * @param picture file of the fruit picture
+     * @return the encoded thumbnail, or null if the picture can't be decoded
+     */
+    static byte[] encodeThumbnail(File picture) {
+        if (picture == null) {
+            return null;
+        }
+        return encodeThumbnail(BitmapFactory.decodeFile(picture.getPath()));
+    }
+
+    private static byte[] encodeThumbnail(Bitmap image) {
+        if (image == null) {
+            return null;
+        }
+
+        // JPEG has no alpha channel, so draw the picture over a white background
+        Bitmap thumbnail = Bitmap.createBitmap(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(Bitmap.createScaledBitmap(image, THUMBNAIL_SIZE, THUMBNAIL_SIZE, true),
+                0, 0, null);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, stream);
+        return stream.toByteArray();
+    }
+
+    private void writeToDisk(File file, Bitmap thumbnail) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create " + mDiskCacheDir);
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(file);
+            thumbnail.compress(Bitmap.CompressFormat.PNG, 0, stream);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write cached thumbnail " + file, e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close cached thumbnail " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Key of the memory tier: a fruit ID and its picture version.
+     */
+    private static final class Key {
+
+        long id;
+        long version;
+
+        Key(long id, long version) {
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && version == other.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (id ^ id >>> 32) + (int) (version ^ version >>> 32);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+/**
+ * Version 3: adds the thumbnail column, and fills it from the existing pictures.
+ */
+class ThumbnailMigration extends ChunkedMigration {
+
+    /** Decoding pictures is slow, so keep the chunks small */
+    private static final int CHUNK_SIZE = 20;
+
+    /** Store holding the pictures already moved out of the table */
+    private final PictureStore mPictureStore;
+
+    ThumbnailMigration(PictureStore pictureStore) {
+        super(3, "thumbnail");
+        mPictureStore = pictureStore;
+    }
+
+    @Override
+    void migrateSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + FruitEntry.TABLE_NAME + " ADD COLUMN "
+                + FruitEntry.COLUMN_FRUIT_THUMBNAIL + " BLOB");
+    }
+
+    @Override
+    int getChunkSize() {
+        return CHUNK_SIZE;
+    }
+
+    @Override
+    long migrateChunk(SQLiteDatabase db, long afterId, int limit) {
+        long[] ids = queryChunkIds(db, FruitEntry.COLUMN_FRUIT_THUMBNAIL + " IS NULL",
+                afterId, limit);
+        for (long id : ids) {
+            // Pictures are read one row at a time, so a chunk never has to fit in a single
+            // cursor window. The picture may still be inline, or already in the store.
+            String[] selectionArgs = { String.valueOf(id) };
+            Cursor picture = db.query(FruitEntry.TABLE_NAME,
+                    new String[] { FruitEntry.COLUMN_FRUIT_PICTURE },
+                    FruitEntry._ID + "=?", selectionArgs, null, null, null);
+            byte[] thumbnail = null;
+            try {
+                if (picture.moveToFirst()) {
+                    if (picture.getType(0) == Cursor.FIELD_TYPE_BLOB) {
+                        thumbnail = ThumbnailCache.encodeThumbnail(picture.getBlob(0));
+                    } else {
+                        thumbnail = ThumbnailCache.encodeThumbnail(
+                                mPictureStore.getFile(picture.getString(0)));
+                    }
+                }
+            } finally {
+                picture.close();
+            }
+
+            if (thumbnail != null) {
+                ContentValues values = new ContentValues();
+                values.put(FruitEntry.COLUMN_FRUIT_THUMBNAIL, thumbnail);
+                db.update(FruitEntry.TABLE_NAME, values, FruitEntry._ID + "=?", selectionArgs);
+            }
+        }
+        return ids.length == 0 ? NO_MORE_ROWS : ids[ids.length - 1];
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.ThumbnailCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowTextView;
+import org.robolectric.shadows.ShadowView;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that binding a catalog row stays within a near-zero allocation budget, so scrolling
+ * doesn't feed the garbage collector. The rows alternate between several fruits, like a list
+ * being scrolled.
+ *
+ * Only what the app allocates is counted: the views keep the text and pictures they are given
+ * without laying them out (see {@link QuietTextView} and {@link QuietImageView}), since the
+ * framework run on the JVM allocates nothing like it does on a device. The on-device count is
+ * the bind_allocations debug benchmark.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25,
+        shadows = { BindAllocationTest.QuietTextView.class,
+                BindAllocationTest.QuietImageView.class })
+public class BindAllocationTest {
+
+    /**
+     * Maximum number of bytes allocated per bind, on average: about one object every other bind
+     * (the smallest object takes 16 bytes).
+     */
+    private static final double ALLOCATION_BUDGET_BYTES = 8;
+
+    /** Number of distinct fruits bound */
+    private static final int FRUIT_COUNT = 16;
+
+    /** Number of uncounted binds, so every buffer has grown to its final size */
+    private static final int WARMUP_BINDS = 20000;
+
+    /** Number of counted binds */
+    private static final int BINDS = 2000;
+
+    private FruitCursorAdapter.FruitViewHolder mHolder;
+    private ThumbnailCache mThumbnailCache;
+    private List<FruitItem> mItems;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        View view = LayoutInflater.from(context)
+                .inflate(R.layout.list_item, new FrameLayout(context), false);
+        mHolder = new FruitCursorAdapter.FruitViewHolder(view);
+        mThumbnailCache = ThumbnailCache.getInstance(context);
+        mItems = createItems();
+    }
+
+    @Test
+    public void bindStaysWithinAllocationBudget() {
+        for (int i = 0; i < WARMUP_BINDS; i++) {
+            mHolder.bind(mItems.get(i % FRUIT_COUNT), mThumbnailCache);
+        }
+
+        // Only the allocations of this thread are counted
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BINDS; i++) {
+            mHolder.bind(mItems.get(i % FRUIT_COUNT), mThumbnailCache);
+        }
+        double perBind = (double) (threads.getThreadAllocatedBytes(threadId) - start) / BINDS;
+
+        assertTrue("Binding a row allocates " + perBind + " bytes, over the budget of "
+                + ALLOCATION_BUDGET_BYTES, perBind <= ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void bindShowsTheFruit() {
+        mHolder.bind(mItems.get(3), mThumbnailCache);
+
+        assertEquals("Fruit 3", textOf(mHolder.nameTextView));
+        assertEquals("0.75 $/kg", textOf(mHolder.priceTextView));
+        assertEquals("Quantity: 1000 kg", textOf(mHolder.quantityTextView));
+        assertEquals("Quantity ordered: 3 kg", textOf(mHolder.quantityOrderedTextView));
+        assertEquals("Total: 2.25 $", textOf(mHolder.totalTextView));
+    }
+
+    private static String textOf(TextView view) {
+        return ((QuietTextView) Shadow.extract(view)).getShownText();
+    }
+
+    /**
+     * Create fruits with values of every length, and no thumbnail.
+     */
+    private static List<FruitItem> createItems() {
+        String[] columns = {
+                FruitEntry._ID,
+                FruitEntry.COLUMN_FRUIT_NAME,
+                FruitEntry.COLUMN_FRUIT_SUPPLIER,
+                FruitEntry.COLUMN_FRUIT_PRICE,
+                FruitEntry.COLUMN_FRUIT_QUANTITY,
+                FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+                FruitEntry.COLUMN_FRUIT_TOTAL,
+                FruitEntry.COLUMN_FRUIT_PICTURE_VERSION,
+                FruitEntry.COLUMN_FRUIT_THUMBNAIL};
+        MatrixCursor cursor = new MatrixCursor(columns, FRUIT_COUNT);
+        for (int i = 0; i < FRUIT_COUNT; i++) {
+            int quantity = (int) Math.pow(10, i % 7);
+            cursor.addRow(new Object[] { i + 1, "Fruit " + i, "Supplier " + i, 25L * i,
+                    quantity, i, 25L * i * i, 0, null });
+        }
+        try {
+            return FruitItem.readAll(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Text view that only keeps what it's given to show, without copying it or laying it out.
+     */
+    @Implements(TextView.class)
+    public static class QuietTextView extends ShadowTextView {
+
+        private CharSequence mText;
+        private char[] mChars;
+        private int mStart;
+        private int mLength;
+
+        @Implementation
+        public final void setText(CharSequence text) {
+            mText = text;
+            mChars = null;
+        }
+
+        @Implementation
+        public final void setText(char[] text, int start, int len) {
+            mChars = text;
+            mStart = start;
+            mLength = len;
+        }
+
+        String getShownText() {
+            return mChars != null ? new String(mChars, mStart, mLength) : String.valueOf(mText);
+        }
+    }
+
+    /**
+     * Image view that ignores the pictures it's given.
+     */
+    @Implements(ImageView.class)
+    public static class QuietImageView extends ShadowView {
+
+        @Implementation
+        public void setImageBitmap(Bitmap bitmap) {
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+import com.example.android.fruitmarket.data.FruitContract.SyncEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks {@link FruitSync} against a {@link LocalInventoryServer}: the fruits of the provider
+ * database are synced with the server, while the changes of another copy of the app are pushed
+ * straight to the server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class FruitSyncTest {
+
+    /** Number of fruits seeded, more than a batch of the sync */
+    private static final int FRUIT_COUNT = 250;
+
+    /** Price of the seeded fruits, in cents */
+    private static final long PRICE = 150;
+
+    /** Quantity of the seeded fruits */
+    private static final int QUANTITY = 100;
+
+    /** Time far enough from now to be before or after any local change */
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private FruitProvider mProvider;
+    private SQLiteDatabase mDatabase;
+    private FruitSync mSync;
+
+    /** Change of another copy, pushed as soon as the sync has pulled, see {@link #mServer} */
+    private SyncRecord mRacingChange;
+
+    private final LocalInventoryServer mServer = new LocalInventoryServer() {
+        @Override
+        public synchronized Changes pull(String token, int limit) {
+            Changes changes = super.pull(token, limit);
+            if (mRacingChange != null && !changes.hasMore) {
+                push(Collections.singletonList(mRacingChange));
+                mRacingChange = null;
+            }
+            return changes;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mProvider = Robolectric.buildContentProvider(FruitProvider.class).create().get();
+        mDatabase = FruitDbHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase();
+        mSync = new FruitSync(RuntimeEnvironment.application, mServer);
+
+        ContentValues[] fruits = new ContentValues[FRUIT_COUNT];
+        for (int i = 0; i < FRUIT_COUNT; i++) {
+            fruits[i] = new ContentValues();
+            fruits[i].put(FruitEntry.COLUMN_FRUIT_NAME, "Fruit " + i);
+            fruits[i].put(FruitEntry.COLUMN_FRUIT_SUPPLIER, "Supplier " + i % 10);
+            fruits[i].put(FruitEntry.COLUMN_FRUIT_PRICE, PRICE);
+            fruits[i].put(FruitEntry.COLUMN_FRUIT_QUANTITY, QUANTITY);
+        }
+        mProvider.bulkInsert(FruitEntry.CONTENT_URI, fruits);
+
+        FruitSync.Result result = mSync.sync();
+        assertEquals(FRUIT_COUNT, result.pushed);
+        assertEquals(FRUIT_COUNT, mServer.size());
+
+        // Our own changes come back once, then nothing moves
+        mSync.sync();
+        assertSynced(0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        FruitDbHelper.resetInstance();
+    }
+
+    @Test
+    public void fewEditsPushOnlyTheEditedFruits() throws IOException {
+        updateFruit(1, FruitEntry.COLUMN_FRUIT_PRICE, 400L);
+        updateFruit(2, FruitEntry.COLUMN_FRUIT_SUPPLIER, "Other supplier");
+        mProvider.update(FruitEntry.buildOrderUri(3), null, null, null);
+
+        int pushedCount = mServer.getPushedCount();
+        FruitSync.Result result = mSync.sync();
+        assertEquals(3, result.pushed);
+        assertEquals(0, result.rejected);
+        assertEquals(3, mServer.getPushedCount() - pushedCount);
+
+        assertEquals(400, mServer.get(querySyncId(1)).price);
+        assertEquals("Other supplier", mServer.get(querySyncId(2)).supplier);
+        assertEquals(1, mServer.get(querySyncId(3)).quantityOrdered);
+    }
+
+    @Test
+    public void pullResumesFromTheToken() throws IOException {
+        SyncRecord record = mServer.get(querySyncId(5));
+        pushFromOtherCopy(new SyncRecord(record.syncId, record.version, "Renamed fruit",
+                record.supplier, record.price, record.quantity, record.quantityOrdered,
+                System.currentTimeMillis()));
+
+        int pulledCount = mServer.getPulledCount();
+        FruitSync.Result result = mSync.sync();
+        assertEquals(1, result.pulled);
+        assertEquals(1, mServer.getPulledCount() - pulledCount);
+        assertEquals("Renamed fruit", queryFruit(5).getAsString(FruitEntry.COLUMN_FRUIT_NAME));
+        assertEquals(String.valueOf(mServer.get(record.syncId).version),
+                DatabaseUtils.stringForQuery(mDatabase, "SELECT "
+                        + SyncEntry.COLUMN_SERVER_TOKEN + " FROM "
+                        + SyncEntry.STATE_TABLE_NAME, null));
+
+        // Already pulled, so not pulled again
+        mSync.sync();
+        assertSynced(0, 0);
+    }
+
+    @Test
+    public void conflictsTakeTheLatestValuesAndAddUpTheQuantities() throws IOException {
+        // Both sides change the price of fruit 1, and sell some of it. The server is later.
+        updateFruit(1, FruitEntry.COLUMN_FRUIT_PRICE, 200L);
+        updateFruit(1, FruitEntry.COLUMN_FRUIT_NAME, "Local name");
+        mProvider.update(FruitEntry.buildOrderUri(1), null, null, null);
+        mProvider.update(FruitEntry.buildOrderUri(1), null, null, null);
+        SyncRecord record = mServer.get(querySyncId(1));
+        pushFromOtherCopy(new SyncRecord(record.syncId, record.version, record.name,
+                "Server supplier", 300, QUANTITY - 3, 3, System.currentTimeMillis() + HOUR_MS));
+
+        // Both sides change the name of fruit 2. The server is earlier.
+        updateFruit(2, FruitEntry.COLUMN_FRUIT_NAME, "Local name 2");
+        record = mServer.get(querySyncId(2));
+        pushFromOtherCopy(new SyncRecord(record.syncId, record.version, "Server name 2",
+                record.supplier, record.price, record.quantity, record.quantityOrdered,
+                System.currentTimeMillis() - HOUR_MS));
+
+        // Fruit 2 keeps its local values, so only fruit 1 is changed by the pull
+        FruitSync.Result result = mSync.sync();
+        assertEquals(1, result.pulled);
+        assertEquals(2, result.pushed);
+
+        // Changed on one side only, or on both with the server being the latest
+        ContentValues fruit = queryFruit(1);
+        assertEquals("Local name", fruit.getAsString(FruitEntry.COLUMN_FRUIT_NAME));
+        assertEquals("Server supplier", fruit.getAsString(FruitEntry.COLUMN_FRUIT_SUPPLIER));
+        assertEquals(300L, (long) fruit.getAsLong(FruitEntry.COLUMN_FRUIT_PRICE));
+        assertEquals(QUANTITY - 5, (int) fruit.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY));
+        assertEquals(5, (int) fruit.getAsInteger(FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED));
+        assertEquals("Local name 2", queryFruit(2).getAsString(FruitEntry.COLUMN_FRUIT_NAME));
+
+        // And the server got the merged values
+        record = mServer.get(querySyncId(1));
+        assertEquals("Local name", record.name);
+        assertEquals("Server supplier", record.supplier);
+        assertEquals(300, record.price);
+        assertEquals(QUANTITY - 5, record.quantity);
+        assertEquals(5, record.quantityOrdered);
+        assertEquals("Local name 2", mServer.get(querySyncId(2)).name);
+    }
+
+    @Test
+    public void editWinsOverDeletion() throws IOException {
+        // Fruit 1 deleted on the server, edited here
+        String editedSyncId = querySyncId(1);
+        pushFromOtherCopy(SyncRecord.deleted(editedSyncId, mServer.get(editedSyncId).version));
+        updateFruit(1, FruitEntry.COLUMN_FRUIT_PRICE, 500L);
+
+        // Fruit 2 deleted here, edited on the server
+        String deletedSyncId = querySyncId(2);
+        mProvider.delete(ContentUris.withAppendedId(FruitEntry.CONTENT_URI, 2), null, null);
+        SyncRecord record = mServer.get(deletedSyncId);
+        pushFromOtherCopy(new SyncRecord(record.syncId, record.version, record.name,
+                record.supplier, 600, record.quantity, record.quantityOrdered,
+                System.currentTimeMillis()));
+
+        FruitSync.Result result = mSync.sync();
+        assertEquals(0, result.rejected);
+
+        assertEquals(500L, (long) queryFruit(1).getAsLong(FruitEntry.COLUMN_FRUIT_PRICE));
+        assertFalse(mServer.get(editedSyncId).deleted);
+        assertEquals(500, mServer.get(editedSyncId).price);
+
+        assertEquals(600L, (long) queryFruitBySyncId(deletedSyncId)
+                .getAsLong(FruitEntry.COLUMN_FRUIT_PRICE));
+        assertFalse(mServer.get(deletedSyncId).deleted);
+        assertEquals(FRUIT_COUNT, queryFruitCount());
+    }
+
+    @Test
+    public void rejectedFruitsStayDirty() throws IOException {
+        // Another copy changes fruit 1 between our pull and our push
+        String syncId = querySyncId(1);
+        SyncRecord record = mServer.get(syncId);
+        mRacingChange = new SyncRecord(record.syncId, record.version, record.name,
+                "Server supplier", record.price, record.quantity, record.quantityOrdered,
+                System.currentTimeMillis());
+        updateFruit(1, FruitEntry.COLUMN_FRUIT_PRICE, 700L);
+        updateFruit(2, FruitEntry.COLUMN_FRUIT_PRICE, 800L);
+
+        FruitSync.Result result = mSync.sync();
+        assertEquals(1, result.pushed);
+        assertEquals(1, result.rejected);
+        assertEquals(PRICE, mServer.get(syncId).price);
+        assertEquals(800, mServer.get(querySyncId(2)).price);
+
+        // Pushed again by the next sync, merged with the change that got it rejected
+        result = mSync.sync();
+        assertEquals(1, result.pulled);
+        assertEquals(0, result.rejected);
+        assertEquals(700, mServer.get(syncId).price);
+        assertEquals("Server supplier", mServer.get(syncId).supplier);
+        assertEquals("Server supplier",
+                queryFruit(1).getAsString(FruitEntry.COLUMN_FRUIT_SUPPLIER));
+
+        mSync.sync();
+        assertSynced(0, 0);
+    }
+
+    /**
+     * Sync, ignoring our own changes coming back, and check what moved.
+     */
+    private void assertSynced(int pulled, int pushed) throws IOException {
+        FruitSync.Result result = mSync.sync();
+        assertEquals(pulled, result.pulled);
+        assertEquals(pushed, result.pushed);
+        assertEquals(0, result.rejected);
+    }
+
+    /**
+     * Push the given change as another copy of the app would, and check it was accepted.
+     */
+    private void pushFromOtherCopy(SyncRecord record) {
+        long[] versions = mServer.push(Collections.singletonList(record));
+        assertFalse(versions[0] == InventoryServer.REJECTED);
+    }
+
+    private void updateFruit(long id, String column, Object value) {
+        ContentValues values = new ContentValues();
+        if (value instanceof Long) {
+            values.put(column, (Long) value);
+        } else {
+            values.put(column, (String) value);
+        }
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(FruitEntry.CONTENT_URI, id),
+                values, null, null));
+    }
+
+    private String querySyncId(long id) {
+        return DatabaseUtils.stringForQuery(mDatabase, "SELECT "
+                + FruitEntry.COLUMN_FRUIT_SYNC_ID + " FROM " + FruitEntry.TABLE_NAME + " WHERE "
+                + FruitEntry._ID + " = " + id, null);
+    }
+
+    private ContentValues queryFruit(long id) {
+        return queryFruit(ContentUris.withAppendedId(FruitEntry.CONTENT_URI, id), null, null);
+    }
+
+    private ContentValues queryFruitBySyncId(String syncId) {
+        return queryFruit(FruitEntry.CONTENT_URI, FruitEntry.COLUMN_FRUIT_SYNC_ID + " = ?",
+                new String[] { syncId });
+    }
+
+    /**
+     * Return the values of the single fruit selected through the provider.
+     */
+    private ContentValues queryFruit(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = mProvider.query(uri, new String[] {
+                FruitEntry.COLUMN_FRUIT_NAME,
+                FruitEntry.COLUMN_FRUIT_SUPPLIER,
+                FruitEntry.COLUMN_FRUIT_PRICE,
+                FruitEntry.COLUMN_FRUIT_QUANTITY,
+                FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED }, selection, selectionArgs, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            ContentValues values = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, values);
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int queryFruitCount() {
+        return (int) DatabaseUtils.queryNumEntries(mDatabase, FruitEntry.TABLE_NAME);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link InventoryServer} held in memory, to test {@link FruitSync} without a network. Its tokens
+ * are server versions, and it counts the fruits moved either way.
+ */
+public class LocalInventoryServer implements InventoryServer {
+
+    /** Latest record of every fruit, by sync ID */
+    private final Map<String, SyncRecord> mRecords = new HashMap<String, SyncRecord>();
+
+    /** Latest record of every fruit, by server version, so the changes are a tail of it */
+    private final TreeMap<Long, SyncRecord> mChanges = new TreeMap<Long, SyncRecord>();
+
+    /** Last server version given */
+    private long mVersion;
+
+    private int mPushedCount;
+    private int mPulledCount;
+
+    @Override
+    public synchronized long[] push(List<SyncRecord> records) {
+        long[] versions = new long[records.size()];
+        for (int i = 0; i < versions.length; i++) {
+            SyncRecord record = records.get(i);
+            SyncRecord current = mRecords.get(record.syncId);
+            long currentVersion = current == null ? 0 : current.version;
+            if (record.version != currentVersion) {
+                versions[i] = REJECTED;
+                continue;
+            }
+
+            SyncRecord stored = record.withVersion(++mVersion);
+            if (current != null) {
+                mChanges.remove(currentVersion);
+            }
+            mRecords.put(stored.syncId, stored);
+            mChanges.put(stored.version, stored);
+            versions[i] = stored.version;
+        }
+        mPushedCount += records.size();
+        return versions;
+    }
+
+    @Override
+    public synchronized Changes pull(String token, int limit) {
+        long version = token == null ? 0 : Long.parseLong(token);
+        SortedMap<Long, SyncRecord> changes = mChanges.tailMap(version + 1);
+        List<SyncRecord> records = new ArrayList<SyncRecord>(Math.min(limit, changes.size()));
+        for (SyncRecord record : changes.values()) {
+            if (records.size() == limit) {
+                break;
+            }
+            records.add(record);
+            version = record.version;
+        }
+        mPulledCount += records.size();
+        return new Changes(records, String.valueOf(version), records.size() < changes.size());
+    }
+
+    /** Latest record of the fruit with the given sync ID, or null if the server has none */
+    public synchronized SyncRecord get(String syncId) {
+        return mRecords.get(syncId);
+    }
+
+    /** Number of fruits pushed to the server so far, accepted or not */
+    public synchronized int getPushedCount() {
+        return mPushedCount;
+    }
+
+    /** Number of fruits pulled from the server so far */
+    public synchronized int getPulledCount() {
+        return mPulledCount;
+    }
+
+    /** Number of fruits held by the server, deleted ones included */
+    public synchronized int size() {
+        return mRecords.size();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.fruitmarket.BuildConfig;
+import com.example.android.fruitmarket.data.FruitContract.FruitEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the throughput of the hot operations of {@link FruitProvider} over tables of 1k, 10k
+ * and 100k fruits, each with a thumbnail: listing a page, looking a fruit up by ID, inserting,
+ * updating by ID and by selection, and deleting. Every operation, at every table size, must
+ * keep a minimum rate and a maximum p99 latency, or the build fails.
+ *
+ * The provider runs on the JVM over real SQLite, so the rates are not the ones of a device. The
+ * thresholds leave room for a slow machine, but not for an operation that scans the table
+ * instead of using an index, which gets slower as the table grows.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ProviderThroughputTest {
+
+    /** Number of fruits of each table measured, each one adding to the previous one */
+    private static final int[] ROW_COUNTS = { 1000, 10000, 100000 };
+
+    /** Number of untimed calls before each measure */
+    private static final int WARMUP_CALLS = 100;
+
+    /** Number of timed calls per measure */
+    private static final int CALLS = 1000;
+
+    /** Number of fruits per page, as listed by the catalog */
+    private static final int PAGE_SIZE = 50;
+
+    /** Number of distinct thumbnails shared by the fruits */
+    private static final int THUMBNAIL_COUNT = 16;
+
+    /** Size of a thumbnail, about the one of a JPEG thumbnail of a photo */
+    private static final int THUMBNAIL_BYTES = 8 * 1024;
+
+    /** Number of fruits inserted per transaction while seeding */
+    private static final int SEED_CHUNK_SIZE = 5000;
+
+    /** Columns read by the catalog list */
+    private static final String[] LIST_PROJECTION = {
+            FruitEntry._ID,
+            FruitEntry.COLUMN_FRUIT_NAME,
+            FruitEntry.COLUMN_FRUIT_QUANTITY,
+            FruitEntry.COLUMN_FRUIT_THUMBNAIL,
+            FruitEntry.COLUMN_FRUIT_PICTURE_VERSION,
+            FruitEntry.COLUMN_FRUIT_SUPPLIER,
+            FruitEntry.COLUMN_FRUIT_TOTAL,
+            FruitEntry.COLUMN_FRUIT_QUANTITY_ORDERED,
+            FruitEntry.COLUMN_FRUIT_PRICE };
+
+    /**
+     * An operation measured, with its thresholds. Each call is given its index, negative while
+     * warming up.
+     */
+    private abstract static class Operation {
+
+        final String name;
+
+        /** Minimum number of calls per second */
+        final double minCallsPerSecond;
+
+        /** Maximum p99 latency, in microseconds */
+        final double maxP99Micros;
+
+        Operation(String name, double minCallsPerSecond, double maxP99Micros) {
+            this.name = name;
+            this.minCallsPerSecond = minCallsPerSecond;
+            this.maxP99Micros = maxP99Micros;
+        }
+
+        abstract void call(int i);
+    }
+
+    private FruitProvider mProvider;
+    private SQLiteDatabase mDatabase;
+    private final byte[][] mThumbnails = new byte[THUMBNAIL_COUNT][];
+
+    /** Number of fruits seeded so far */
+    private int mRowCount;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(FruitProvider.class).create().get();
+        mDatabase = FruitDbHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase();
+
+        Random random = new Random(0);
+        for (int i = 0; i < THUMBNAIL_COUNT; i++) {
+            mThumbnails[i] = new byte[THUMBNAIL_BYTES];
+            random.nextBytes(mThumbnails[i]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void operationsKeepUpAtEveryTableSize() {
+        List<String> failures = new ArrayList<String>();
+        for (int rowCount : ROW_COUNTS) {
+            seed(rowCount);
+            for (Operation operation : createOperations(rowCount)) {
+                measure(operation, rowCount, failures);
+            }
+        }
+
+        assertTrue("Provider throughput regressed:\n  "
+                + TextUtils.join("\n  ", failures), failures.isEmpty());
+    }
+
+    private List<Operation> createOperations(final int rowCount) {
+        final Random random = new Random(rowCount);
+        List<Operation> operations = new ArrayList<Operation>();
+
+        // Each one with its minimum calls per second and maximum p99 latency in microseconds
+        operations.add(new Operation("query_list", 100, 50000) {
+            @Override
+            void call(int i) {
+                int after = random.nextInt(rowCount);
+                Uri uri = FruitEntry.buildPageUri(after == 0 ? null
+                        : FruitEntry.buildPageKey(buildName(after - 1), after), null, PAGE_SIZE);
+                readAndClose(mProvider.query(uri, LIST_PROJECTION, null, null, null));
+            }
+        });
+        operations.add(new Operation("query_by_id", 200, 25000) {
+            @Override
+            void call(int i) {
+                Uri uri = ContentUris.withAppendedId(FruitEntry.CONTENT_URI,
+                        1 + random.nextInt(rowCount));
+                readAndClose(mProvider.query(uri, null, null, null, null));
+            }
+        });
+
+        // The inserted fruits are the ones deleted at the end, so every measure runs on the
+        // same number of fruits
+        final long[] insertedIds = new long[WARMUP_CALLS + CALLS];
+        operations.add(new Operation("insert", 200, 25000) {
+            @Override
+            void call(int i) {
+                ContentValues values = buildFruit(rowCount + WARMUP_CALLS + i);
+                insertedIds[WARMUP_CALLS + i] = ContentUris.parseId(
+                        mProvider.insert(FruitEntry.CONTENT_URI, values));
+            }
+        });
+        operations.add(new Operation("update_by_id", 200, 25000) {
+            @Override
+            void call(int i) {
+                ContentValues values = new ContentValues();
+                values.put(FruitEntry.COLUMN_FRUIT_PRICE, 100L + (i & 0xff));
+                mProvider.update(ContentUris.withAppendedId(FruitEntry.CONTENT_URI,
+                        1 + random.nextInt(rowCount)), values, null, null);
+            }
+        });
+        operations.add(new Operation("update_by_selection", 100, 50000) {
+            @Override
+            void call(int i) {
+                ContentValues values = new ContentValues();
+                values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, "Supplier " + (i & 0xff));
+                mProvider.update(FruitEntry.CONTENT_URI, values,
+                        FruitEntry.COLUMN_FRUIT_NAME + "=?",
+                        new String[] { buildName(random.nextInt(rowCount)) });
+            }
+        });
+        operations.add(new Operation("delete", 100, 50000) {
+            @Override
+            void call(int i) {
+                mProvider.delete(ContentUris.withAppendedId(FruitEntry.CONTENT_URI,
+                        insertedIds[WARMUP_CALLS + i]), null, null);
+            }
+        });
+        return operations;
+    }
+
+    /**
+     * Time each call of the given operation, and add a failure for each threshold it misses.
+     */
+    private static void measure(Operation operation, int rowCount, List<String> failures) {
+        for (int i = -WARMUP_CALLS; i < 0; i++) {
+            operation.call(i);
+        }
+
+        long[] latencies = new long[CALLS];
+        long total = 0;
+        for (int i = 0; i < CALLS; i++) {
+            long start = System.nanoTime();
+            operation.call(i);
+            latencies[i] = System.nanoTime() - start;
+            total += latencies[i];
+        }
+        Arrays.sort(latencies);
+
+        double callsPerSecond = CALLS * 1e9 / total;
+        double p99Micros = latencies[CALLS * 99 / 100] / 1e3;
+        if (callsPerSecond < operation.minCallsPerSecond) {
+            failures.add(String.format(Locale.US, "%s at %d rows: %.0f calls/s, below %.0f",
+                    operation.name, rowCount, callsPerSecond, operation.minCallsPerSecond));
+        }
+        if (p99Micros > operation.maxP99Micros) {
+            failures.add(String.format(Locale.US, "%s at %d rows: p99 of %.0f us, above %.0f",
+                    operation.name, rowCount, p99Micros, operation.maxP99Micros));
+        }
+    }
+
+    private static void readAndClose(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                // Nothing to do, moving fills the cursor window like a list would
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the name of the fruit with the given index, sorted like the index: the fruit with
+     * index i gets the ID i + 1.
+     */
+    private static String buildName(int index) {
+        return String.format(Locale.US, "Fruit %06d", index);
+    }
+
+    private ContentValues buildFruit(int index) {
+        ContentValues values = new ContentValues();
+        values.put(FruitEntry.COLUMN_FRUIT_NAME, buildName(index));
+        values.put(FruitEntry.COLUMN_FRUIT_SUPPLIER, "Supplier " + index % 100);
+        values.put(FruitEntry.COLUMN_FRUIT_PRICE, 50L + index % 40 * 25);
+        values.put(FruitEntry.COLUMN_FRUIT_QUANTITY, index % 300);
+        values.put(FruitEntry.COLUMN_FRUIT_PICTURE_VERSION, index);
+        values.put(FruitEntry.COLUMN_FRUIT_THUMBNAIL, mThumbnails[index % THUMBNAIL_COUNT]);
+        return values;
+    }
+
+    /**
+     * Insert fruits up to the given number straight into the database, through the triggers
+     * like the provider would, but a chunk per transaction.
+     */
+    private void seed(int rowCount) {
+        SQLiteStatement statement = mDatabase.compileStatement("INSERT INTO "
+                + FruitEntry.TABLE_NAME + " (" + FruitEntry._ID + ", "
+                + FruitEntry.COLUMN_FRUIT_NAME + ", " + FruitEntry.COLUMN_FRUIT_SUPPLIER + ", "
+                + FruitEntry.COLUMN_FRUIT_PRICE + ", " + FruitEntry.COLUMN_FRUIT_QUANTITY + ", "
+                + FruitEntry.COLUMN_FRUIT_PICTURE_VERSION + ", "
+                + FruitEntry.COLUMN_FRUIT_THUMBNAIL + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            for (int start = mRowCount; start < rowCount; start += SEED_CHUNK_SIZE) {
+                mDatabase.beginTransaction();
+                try {
+                    for (int i = start; i < Math.min(start + SEED_CHUNK_SIZE, rowCount); i++) {
+                        statement.bindLong(1, i + 1);
+                        statement.bindString(2, buildName(i));
+                        statement.bindString(3, "Supplier " + i % 100);
+                        statement.bindLong(4, 50 + i % 40 * 25);
+                        statement.bindLong(5, i % 300);
+                        statement.bindLong(6, i);
+                        statement.bindBlob(7, mThumbnails[i % THUMBNAIL_COUNT]);
+                        statement.executeInsert();
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        mRowCount = rowCount;
+    }
+}
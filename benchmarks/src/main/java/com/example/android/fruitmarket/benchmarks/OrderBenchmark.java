@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.benchmarks;
+
+import com.example.android.fruitmarket.core.FieldMerge;
+import com.example.android.fruitmarket.core.StockChange;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the order and stock arithmetic: a run of stock changes made by the user on a fruit
+ * ({@link StockChange}), and the merge of a fruit ordered on two devices ({@link FieldMerge}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBenchmark {
+
+    /** Number of distinct cases run in turn, so no value is folded away */
+    private static final int CASE_COUNT = 1024;
+
+    /** Number of stock changes per run, each one a click on the + or - buttons */
+    private static final int CLICKS = 32;
+
+    private final int[] mStocks = new int[CASE_COUNT];
+    private final boolean[][] mClicks = new boolean[CASE_COUNT][CLICKS];
+    private final int[][] mQuantities = new int[CASE_COUNT][3];
+    private final long[][] mPrices = new long[CASE_COUNT][3];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < CASE_COUNT; i++) {
+            mStocks[i] = random.nextInt(20);
+            for (int j = 0; j < CLICKS; j++) {
+                mClicks[i][j] = random.nextBoolean();
+            }
+            int base = random.nextInt(500);
+            mQuantities[i] = new int[] {
+                    base - random.nextInt(10), base - random.nextInt(10), base };
+            long price = random.nextInt(1000);
+            mPrices[i] = new long[] {
+                    random.nextBoolean() ? price + 100 : price,
+                    random.nextBoolean() ? price + 200 : price, price };
+        }
+    }
+
+    @Benchmark
+    public int stockChanges() {
+        int i = mNext++ & (CASE_COUNT - 1);
+        StockChange stock = new StockChange();
+        stock.load(mStocks[i]);
+        for (boolean increase : mClicks[i]) {
+            if (increase) {
+                stock.increase();
+            } else {
+                stock.decrease();
+            }
+        }
+        return stock.take();
+    }
+
+    @Benchmark
+    public long mergeOrders() {
+        int i = mNext++ & (CASE_COUNT - 1);
+        int[] quantities = mQuantities[i];
+        long[] prices = mPrices[i];
+        int quantity = FieldMerge.add(quantities[0], quantities[1], quantities[2]);
+        Long price = FieldMerge.pick(prices[0], prices[1], prices[2], true, (i & 1) == 0);
+        return quantity * price;
+    }
+}
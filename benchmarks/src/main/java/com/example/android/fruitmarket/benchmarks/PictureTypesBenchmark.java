@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.benchmarks;
+
+import com.example.android.fruitmarket.core.PictureTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of telling the format of a stored picture, done by the provider every time a picture
+ * is streamed or its type asked for, see {@link PictureTypes}. Encoding and decoding the
+ * pictures needs Android, they are measured on a device by the image_codecs benchmark of the
+ * debug app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PictureTypesBenchmark {
+
+    /** Start of a picture in each format, and of something else */
+    private final byte[][] mPictures = {
+            { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13, 'I', 'H' },
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F' },
+            { 'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P' },
+            { 'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0, 0, 0 } };
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        for (byte[] picture : mPictures) {
+            PictureTypes.match(picture, picture.length);
+        }
+    }
+
+    @Benchmark
+    public String matchHeader() {
+        byte[] picture = mPictures[mNext++ & 3];
+        return PictureTypes.match(picture, picture.length);
+    }
+
+    @Benchmark
+    public String readStream() throws IOException {
+        return PictureTypes.read(new ByteArrayInputStream(mPictures[mNext++ & 3]));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.benchmarks;
+
+import com.example.android.fruitmarket.core.CsvReader;
+import com.example.android.fruitmarket.core.Money;
+import com.example.android.fruitmarket.core.TextBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping fruit rows to and from text: the texts of a catalog row, built into reused
+ * {@link TextBuffer}s as the list does, or with String.format, and the lines of a CSV import
+ * read by {@link CsvReader}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+
+    /** Number of distinct rows bound in turn */
+    private static final int ROW_COUNT = 1024;
+
+    /** Number of lines of the CSV read per operation */
+    @Param({ "1000" })
+    public int csvLines;
+
+    /** Prices and totals, in cents */
+    private final long[] mPrices = new long[ROW_COUNT];
+    private final int[] mQuantities = new int[ROW_COUNT];
+    private final long[] mTotals = new long[ROW_COUNT];
+    private int mNext;
+
+    private final TextBuffer mPriceText = new TextBuffer(32);
+    private final TextBuffer mQuantityText = new TextBuffer(32);
+    private final TextBuffer mTotalText = new TextBuffer(32);
+
+    private String mCsv;
+    private final List<String> mFields = new ArrayList<String>();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < ROW_COUNT; i++) {
+            mPrices[i] = 25 + i % 40 * 35;
+            mQuantities[i] = i % 300;
+            mTotals[i] = mPrices[i] * (i % 17);
+        }
+
+        StringBuilder csv = new StringBuilder("name,supplier,price,quantity\r\n");
+        for (int i = 0; i < csvLines; i++) {
+            csv.append("Fruit ").append(i).append(",\"Supplier, ").append(i % 50).append("\",")
+                    .append(Money.format(mPrices[i % ROW_COUNT])).append(',')
+                    .append(mQuantities[i % ROW_COUNT]).append("\r\n");
+        }
+        mCsv = csv.toString();
+    }
+
+    @Benchmark
+    public void bindRowBuffers(Blackhole blackhole) {
+        int i = mNext++ & (ROW_COUNT - 1);
+        blackhole.consume(mPriceText.clear().appendFixed(mPrices[i], Money.DECIMALS)
+                .append(" $/kg").getChars());
+        blackhole.consume(mQuantityText.clear().append("Quantity: ").append(mQuantities[i])
+                .append(" kg").getChars());
+        blackhole.consume(mTotalText.clear().append("Total: ")
+                .appendFixed(mTotals[i], Money.DECIMALS).append(" $").getChars());
+    }
+
+    @Benchmark
+    public void bindRowFormat(Blackhole blackhole) {
+        int i = mNext++ & (ROW_COUNT - 1);
+        blackhole.consume(String.format("%.2f $/kg", mPrices[i] / 100.0));
+        blackhole.consume("Quantity: " + mQuantities[i] + " kg");
+        blackhole.consume(String.format("Total: %.2f $", mTotals[i] / 100.0));
+    }
+
+    @Benchmark
+    public int readCsv() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(mCsv));
+        int fields = 0;
+        while (reader.readRecord(mFields)) {
+            fields += mFields.size();
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.benchmarks;
+
+import com.example.android.fruitmarket.core.FruitRules;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the checks the provider runs on every fruit written, see {@link FruitRules}, for a
+ * valid fruit and for one rejected on its price.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+    /** Number of distinct fruits checked in turn, so no value is folded away */
+    private static final int FRUIT_COUNT = 1024;
+
+    private final String[] mNames = new String[FRUIT_COUNT];
+    private final Long[] mPrices = new Long[FRUIT_COUNT];
+    private final Integer[] mQuantities = new Integer[FRUIT_COUNT];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < FRUIT_COUNT; i++) {
+            mNames[i] = "Fruit " + i;
+            mPrices[i] = (long) random.nextInt(1000);
+            mQuantities[i] = random.nextBoolean() ? random.nextInt(500) : null;
+        }
+    }
+
+    @Benchmark
+    public int validFruit() {
+        int i = mNext++ & (FRUIT_COUNT - 1);
+        FruitRules.checkName(mNames[i]);
+        FruitRules.checkPrice(mPrices[i]);
+        FruitRules.checkQuantity(mQuantities[i]);
+        return i;
+    }
+
+    @Benchmark
+    public boolean invalidPrice() {
+        int i = mNext++ & (FRUIT_COUNT - 1);
+        try {
+            FruitRules.checkName(mNames[i]);
+            FruitRules.checkPrice(-mPrices[i] - 1);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads CSV records one at a time, so a file of any length is read with the same memory: only
+ * the record being read is held. Fields can be quoted, with doubled quotes inside, and quoted
+ * fields can hold commas and line breaks. Lines can end with CRLF or LF.
+ */
+public final class CsvReader {
+
+    /** Maximum number of characters of a record, so a broken quote can't swallow the file */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[8192];
+    private int mPosition;
+    private int mLimit;
+
+    /** Field being read, reused from one field to the next */
+    private final StringBuilder mField = new StringBuilder();
+
+    /** Number of lines read so far */
+    private int mLineNumber;
+
+    public CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Return the line the last record read ends on, starting from 1.
+     */
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * Read the next record into the given list, replacing what it held. An empty line is a
+     * record with a single empty field.
+     *
+     * @return false if there are no records left
+     * @throws IOException if the record can't be read, or isn't valid CSV
+     */
+    public boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        if (mLineNumber == 0 && c == BYTE_ORDER_MARK) {
+            // Left by some spreadsheets at the start of the file
+            c = read();
+        }
+
+        mLineNumber++;
+        mField.setLength(0);
+        boolean fieldStart = true;
+        boolean quoted = false;
+        int length = 0;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quote on line " + mLineNumber);
+                }
+                if (c == '"') {
+                    c = read();
+                    if (c != '"') {
+                        // Closing quote, whatever follows is read unquoted
+                        quoted = false;
+                        continue;
+                    }
+                } else if (c == '\n') {
+                    mLineNumber++;
+                }
+                mField.append((char) c);
+            } else if (c == '"' && fieldStart) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(mField.toString());
+                mField.setLength(0);
+                fieldStart = true;
+                c = read();
+                continue;
+            } else if (c == '\n' || c == -1) {
+                fields.add(mField.toString());
+                return true;
+            } else if (c != '\r') {
+                mField.append((char) c);
+            }
+
+            fieldStart = false;
+            if (++length > MAX_RECORD_LENGTH) {
+                throw new IOException("Line " + mLineNumber + " is too long");
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit) {
+            mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPosition++];
+    }
+}
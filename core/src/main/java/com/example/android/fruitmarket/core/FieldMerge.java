@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+/**
+ * Three-way merge of the fields of a fruit changed on two sides, a local one and a server one,
+ * against the base: the last values both sides agreed on.
+ */
+public final class FieldMerge {
+
+    private FieldMerge() {
+    }
+
+    /**
+     * Returns the merged value of a field that can't be added up: the changed side if only one
+     * changed, else the latest change.
+     *
+     * @param hasBase      whether there is a base to compare with, without one both changed
+     * @param serverLatest whether the server change is the latest one
+     */
+    public static <T> T pick(T local, T server, T base, boolean hasBase, boolean serverLatest) {
+        boolean localChanged = !hasBase || !equal(local, base);
+        boolean serverChanged = !hasBase || !equal(server, base);
+        return localChanged && (!serverChanged || !serverLatest) ? local : server;
+    }
+
+    /**
+     * Returns the merged value of a quantity: the base, plus what each side added to it.
+     */
+    public static int add(int local, int server, int base) {
+        return server + local - base;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
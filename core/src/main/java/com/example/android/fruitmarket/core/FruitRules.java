@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+/**
+ * Rules every fruit stored by the app has to follow. Each check throws an
+ * {@link IllegalArgumentException} describing the broken rule.
+ */
+public final class FruitRules {
+
+    private FruitRules() {
+    }
+
+    /**
+     * Checks the name of a fruit: every fruit requires one.
+     */
+    public static void checkName(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Fruit requires a name");
+        }
+    }
+
+    /**
+     * Checks the price of a fruit, in cents: every fruit requires one, and it can't be negative.
+     */
+    public static void checkPrice(Long price) {
+        if (price == null) {
+            throw new IllegalArgumentException("Fruit requires valid price");
+        }
+        checkPrice(price.longValue());
+    }
+
+    /**
+     * Checks the price of a fruit in cents, as a primitive: it can't be negative.
+     */
+    public static void checkPrice(long price) {
+        if (price < 0) {
+            throw new IllegalArgumentException("Fruit requires valid price");
+        }
+    }
+
+    /**
+     * Checks the quantity of a fruit, in kg: it can be left out, but it can't be negative.
+     */
+    public static void checkQuantity(Integer quantity) {
+        if (quantity != null) {
+            checkQuantity(quantity.intValue());
+        }
+    }
+
+    /**
+     * Checks the quantity of a fruit in kg, as a primitive: it can't be negative.
+     */
+    public static void checkQuantity(int quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Fruit requires valid quantity");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts of money, held as whole numbers of cents so they add up and multiply exactly, and
+ * written in units with {@link #DECIMALS} decimals.
+ */
+public final class Money {
+
+    /** Number of decimals of an amount written in units */
+    public static final int DECIMALS = 2;
+
+    private Money() {
+    }
+
+    /**
+     * Returns the cents of the given amount written in units, like "1.5", rounded half up to
+     * the nearest cent.
+     *
+     * @throws NumberFormatException if the text isn't a decimal number, or too big an amount
+     */
+    public static long parse(String amount) {
+        try {
+            return new BigDecimal(amount.trim()).movePointRight(DECIMALS)
+                    .setScale(0, RoundingMode.HALF_UP).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + amount);
+        }
+    }
+
+    /**
+     * Returns the given cents written in units, like "1.50".
+     */
+    public static String format(long cents) {
+        return new TextBuffer(24).appendFixed(cents, DECIMALS).toString();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tells the format of a stored picture from its first bytes, since pictures encoded with
+ * different formats live side by side.
+ */
+public final class PictureTypes {
+
+    public static final String PNG = "image/png";
+    public static final String JPEG = "image/jpeg";
+    public static final String WEBP = "image/webp";
+
+    /** Number of bytes needed to tell every format apart */
+    public static final int HEADER_LENGTH = 12;
+
+    private PictureTypes() {
+    }
+
+    /**
+     * Returns the MIME type of the picture in the given stream, read from its first bytes, or
+     * null if it isn't in any of the known formats. The stream is not closed.
+     */
+    public static String read(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = 0;
+        int read;
+        while (length < header.length
+                && (read = in.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+        return match(header, length);
+    }
+
+    /**
+     * Returns the MIME type of the picture starting with the given bytes, or null if it isn't
+     * in any of the known formats.
+     *
+     * @param length number of bytes of the header to look at
+     */
+    public static String match(byte[] header, int length) {
+        if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N'
+                && header[3] == 'G') {
+            return PNG;
+        }
+        if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8
+                && (header[2] & 0xff) == 0xff) {
+            return JPEG;
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B'
+                && header[11] == 'P') {
+            return WEBP;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+/**
+ * Change to the stock of a fruit being made by the user, one unit at a time, on top of the
+ * stock last read. The stock shown never goes below nothing.
+ */
+public final class StockChange {
+
+    /** Stock last read */
+    private int mLoaded;
+
+    /** Change made on top of it, not submitted yet */
+    private int mChange;
+
+    /**
+     * Sets the stock last read. The change made so far is kept, on top of it.
+     */
+    public void load(int stock) {
+        mLoaded = stock;
+    }
+
+    public void increase() {
+        mChange++;
+    }
+
+    /**
+     * Takes one unit from the stock, unless there is none left.
+     *
+     * @return false if there was no stock left
+     */
+    public boolean decrease() {
+        if (getStock() <= 0) {
+            return false;
+        }
+        mChange--;
+        return true;
+    }
+
+    /**
+     * Returns the stock last read, with the change applied.
+     */
+    public int getStock() {
+        return mLoaded + mChange;
+    }
+
+    /**
+     * Returns the change made so far, without submitting it, so it can be saved.
+     */
+    public int getChange() {
+        return mChange;
+    }
+
+    /**
+     * Restores a change saved from {@link #getChange()}.
+     */
+    public void restore(int change) {
+        mChange = change;
+    }
+
+    /**
+     * Returns the change made so far, and starts a new one.
+     */
+    public int take() {
+        int change = mChange;
+        mChange = 0;
+        return change;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+/**
+ * Reusable buffer to build the text of a view without allocating.
+ *
+ * A view can show {@link #getChars()} without copying them (TextView.setText(char[], int, int)
+ * on Android), so the text must be shown again every time the buffer is changed.
+ */
+public final class TextBuffer {
+
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000 };
+
+    private char[] mChars;
+    private int mLength;
+
+    public TextBuffer(int capacity) {
+        mChars = new char[capacity];
+    }
+
+    /**
+     * Empties the buffer.
+     */
+    public TextBuffer clear() {
+        mLength = 0;
+        return this;
+    }
+
+    public TextBuffer append(String text) {
+        int length = text.length();
+        ensureCapacity(mLength + length);
+        text.getChars(0, length, mChars, mLength);
+        mLength += length;
+        return this;
+    }
+
+    public TextBuffer append(long value) {
+        if (value < 0) {
+            ensureCapacity(mLength + 1);
+            mChars[mLength++] = '-';
+            return appendNegated(value);
+        }
+        return appendNegated(-value);
+    }
+
+    /**
+     * Appends the given value rounded to the given number of decimals (at most 4).
+     */
+    public TextBuffer append(double value, int decimals) {
+        long scaled = Math.round(Math.abs(value) * POWERS_OF_TEN[decimals]);
+        return appendFixed(value < 0 ? -scaled : scaled, decimals);
+    }
+
+    /**
+     * Appends the given fixed-point value, a whole number of 10^-decimals, with the given number
+     * of decimals (at most 4). Amounts of cents are appended with 2 decimals.
+     */
+    public TextBuffer appendFixed(long value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        if (value < 0) {
+            append("-");
+        } else {
+            value = -value;
+        }
+        appendNegated(value / scale);
+        if (decimals > 0) {
+            ensureCapacity(mLength + 1 + decimals);
+            mChars[mLength++] = '.';
+            long fraction = -(value % scale);
+            for (long digit = scale / 10; digit > 0; digit /= 10) {
+                mChars[mLength++] = (char) ('0' + fraction / digit % 10);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the characters of the buffer, valid up to {@link #length()} and until the buffer
+     * is changed.
+     */
+    public char[] getChars() {
+        return mChars;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    /**
+     * Appends the digits of -value. Negative values are used because the magnitude of
+     * Long.MIN_VALUE cannot be held by a positive long.
+     */
+    private TextBuffer appendNegated(long value) {
+        // Write the digits backwards, then reverse them in place
+        int start = mLength;
+        do {
+            ensureCapacity(mLength + 1);
+            mChars[mLength++] = (char) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            char c = mChars[i];
+            mChars[i] = mChars[j];
+            mChars[j] = c;
+        }
+        return this;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mChars.length) {
+            char[] chars = new char[Math.max(capacity, mChars.length * 2)];
+            System.arraycopy(mChars, 0, chars, 0, mLength);
+            mChars = chars;
+        }
+    }
+}
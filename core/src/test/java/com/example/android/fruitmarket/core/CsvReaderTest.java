@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CsvReaderTest {
+
+    @Test
+    public void readsRecordsOneAtATime() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("name,price\nApple,0.75\r\nPear,1\n"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name", "price"), fields);
+        assertEquals(1, reader.getLineNumber());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("Apple", "0.75"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("Pear", "1"), fields);
+        assertEquals(3, reader.getLineNumber());
+        assertFalse(reader.readRecord(fields));
+        assertTrue(fields.isEmpty());
+    }
+
+    @Test
+    public void readsTheLastRecordWithoutALineBreak() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a,,b"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a", "", "b"), fields);
+        assertFalse(reader.readRecord(fields));
+    }
+
+    @Test
+    public void readsAnEmptyLineAsOneEmptyField() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\nx\n"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList(""), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("x"), fields);
+    }
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+        CsvReader reader = new CsvReader(
+                new StringReader("\"Red, \"\"sweet\"\"\",\"two\nlines\",plain\"quote\nnext\n"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("Red, \"sweet\"", "two\nlines", "plain\"quote"), fields);
+        assertEquals(2, reader.getLineNumber());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("next"), fields);
+        assertEquals(3, reader.getLineNumber());
+    }
+
+    @Test
+    public void skipsTheByteOrderMark() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\uFEFFname\n\uFEFF\n"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name"), fields);
+        // Only at the start of the file
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("\uFEFF"), fields);
+    }
+
+    @Test
+    public void readsRecordsLongerThanTheBuffer() throws IOException {
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            field.append((char) ('a' + i % 26));
+        }
+        CsvReader reader = new CsvReader(new StringReader(field + "," + field + "\nend"));
+        List<String> fields = new ArrayList<String>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList(field.toString(), field.toString()), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("end"), fields);
+    }
+
+    @Test
+    public void rejectsAnUnterminatedQuote() {
+        CsvReader reader = new CsvReader(new StringReader("a\n\"b,c\nd\n"));
+        List<String> fields = new ArrayList<String>();
+        try {
+            assertTrue(reader.readRecord(fields));
+            reader.readRecord(fields);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Unterminated quote"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTooLongARecord() throws IOException {
+        StringBuilder text = new StringBuilder("\"");
+        for (int i = 0; i < 70000; i++) {
+            text.append('x');
+        }
+        new CsvReader(new StringReader(text.toString())).readRecord(new ArrayList<String>());
+    }
+}
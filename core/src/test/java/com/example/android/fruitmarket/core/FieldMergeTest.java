@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FieldMergeTest {
+
+    @Test
+    public void picksTheOnlySideThatChanged() {
+        assertEquals("local", FieldMerge.pick("local", "base", "base", true, true));
+        assertEquals("server", FieldMerge.pick("base", "server", "base", true, false));
+        assertEquals("base", FieldMerge.pick("base", "base", "base", true, false));
+    }
+
+    @Test
+    public void picksTheLatestChangeWhenBothChanged() {
+        assertEquals("server", FieldMerge.pick("local", "server", "base", true, true));
+        assertEquals("local", FieldMerge.pick("local", "server", "base", true, false));
+    }
+
+    @Test
+    public void treatsBothSidesAsChangedWithoutABase() {
+        assertEquals("server", FieldMerge.pick("local", "server", null, false, true));
+        assertEquals("local", FieldMerge.pick("local", "server", null, false, false));
+    }
+
+    @Test
+    public void comparesNullValues() {
+        assertNull(FieldMerge.pick(null, "base", "base", true, false));
+        assertEquals("server", FieldMerge.pick(null, "server", null, true, false));
+    }
+
+    @Test
+    public void addsUpWhatEachSideAdded() {
+        // Base 10: 3 sold locally, 5 received on the server
+        assertEquals(12, FieldMerge.add(7, 15, 10));
+        assertEquals(10, FieldMerge.add(10, 10, 10));
+        assertEquals(-2, FieldMerge.add(0, 0, 2));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MoneyTest {
+
+    @Test
+    public void parsesUnitsIntoCents() {
+        assertEquals(150, Money.parse("1.5"));
+        assertEquals(150, Money.parse(" 1.50 "));
+        assertEquals(3, Money.parse("0.03"));
+        assertEquals(-250, Money.parse("-2.5"));
+        assertEquals(100000, Money.parse("1000"));
+    }
+
+    @Test
+    public void roundsHalfUpToTheNearestCent() {
+        assertEquals(1, Money.parse("0.005"));
+        assertEquals(0, Money.parse("0.0049"));
+        assertEquals(-1, Money.parse("-0.005"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsText() {
+        Money.parse("1,50");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsAmountsOutOfRange() {
+        Money.parse("100000000000000000000");
+    }
+
+    @Test
+    public void formatsCentsInUnits() {
+        assertEquals("1.50", Money.format(150));
+        assertEquals("0.03", Money.format(3));
+        assertEquals("-2.50", Money.format(-250));
+        assertEquals("0.00", Money.format(0));
+    }
+
+    @Test
+    public void formatsWhatItParses() {
+        long[] amounts = { 1, 99, 100, 12345, -7, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long cents : amounts) {
+            assertEquals(cents, Money.parse(Money.format(cents)));
+        }
+    }
+}
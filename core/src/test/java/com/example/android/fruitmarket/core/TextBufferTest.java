@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 by Francis Gálvez.
+ */
+package com.example.android.fruitmarket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextBufferTest {
+
+    @Test
+    public void appendsWholeNumbers() {
+        assertEquals("0", new TextBuffer(4).append(0).toString());
+        assertEquals("7", new TextBuffer(4).append(7).toString());
+        assertEquals("-42", new TextBuffer(4).append(-42).toString());
+        assertEquals("1000", new TextBuffer(4).append(1000).toString());
+    }
+
+    @Test
+    public void appendsExtremeWholeNumbers() {
+        assertEquals(String.valueOf(Long.MAX_VALUE),
+                new TextBuffer(1).append(Long.MAX_VALUE).toString());
+        assertEquals(String.valueOf(Long.MIN_VALUE),
+                new TextBuffer(1).append(Long.MIN_VALUE).toString());
+    }
+
+    @Test
+    public void appendsFixedPointValues() {
+        assertEquals("2.25", new TextBuffer(8).appendFixed(225, 2).toString());
+        assertEquals("0.05", new TextBuffer(8).appendFixed(5, 2).toString());
+        assertEquals("-0.05", new TextBuffer(8).appendFixed(-5, 2).toString());
+        assertEquals("12", new TextBuffer(8).appendFixed(12, 0).toString());
+        assertEquals("-92233720368547758.08",
+                new TextBuffer(8).appendFixed(Long.MIN_VALUE, 2).toString());
+        assertEquals("92233720368547758.07",
+                new TextBuffer(8).appendFixed(Long.MAX_VALUE, 2).toString());
+    }
+
+    @Test
+    public void appendsRoundedDecimals() {
+        assertEquals("0.75", new TextBuffer(8).append(0.749, 2).toString());
+        assertEquals("-1.5", new TextBuffer(8).append(-1.46, 1).toString());
+        assertEquals("3", new TextBuffer(8).append(2.5, 0).toString());
+    }
+
+    @Test
+    public void growsAndClears() {
+        TextBuffer buffer = new TextBuffer(1);
+        buffer.append("Quantity: ").append(1000).append(" kg");
+        assertEquals("Quantity: 1000 kg", buffer.toString());
+        assertEquals(buffer.length(), buffer.toString().length());
+
+        buffer.clear().append("Total: ");
+        assertEquals("Total: ", buffer.toString());
+        assertEquals("Total: ", new String(buffer.getChars(), 0, buffer.length()));
+    }
+}